@@ -16,9 +16,22 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.dome.streamer.databinding.ActivityMainBinding;
+import com.dome.streamer.metrics.MetricsServer;
+import com.dome.streamer.protocol.SignalingMessage;
+import com.dome.streamer.webrtc.CaptureProfile;
+import com.dome.streamer.webrtc.NegotiationMode;
+import com.dome.streamer.webrtc.PublishMode;
+import com.dome.streamer.webrtc.QualityGovernor;
 import com.dome.streamer.webrtc.SignalingClient;
+import com.dome.streamer.webrtc.SimulcastLayer;
+import com.dome.streamer.webrtc.StartupTimings;
 import com.dome.streamer.webrtc.WebRTCClient;
 
+import org.webrtc.IceCandidate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 public class MainActivity extends AppCompatActivity {
@@ -28,13 +41,17 @@ public class MainActivity extends AppCompatActivity {
             Manifest.permission.CAMERA,
             Manifest.permission.RECORD_AUDIO
     };
+    // start_settings key, per stream id, of the token that resumes that stream
+    private static final String RESUME_TOKEN_PREFIX = "resume_token_";
 
     private ActivityMainBinding binding;
     private WebRTCClient webRTCClient;
-    private SignalingClient signalingClient;
+    // Read from WebRTCClient callbacks, which run on its media thread
+    private volatile SignalingClient signalingClient;
+
+    private MetricsServer metricsServer;
 
     private boolean isStreaming = false;
-    private String currentViewerId = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -85,6 +102,24 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initializeWebRTC() {
+        SharedPreferences settings = getSharedPreferences("start_settings", MODE_PRIVATE);
+        WebRTCClient.Options options = new WebRTCClient.Options();
+        // One encoder for every viewer: cheaper, but the weakest viewer sets everyone's bitrate
+        options.encodeOnce = settings.getBoolean("encode_once", false);
+        options.publishMode = "relay".equals(settings.getString("publish_mode", "direct"))
+                ? PublishMode.RELAY
+                : PublishMode.DIRECT;
+        // "half-trickle" holds each offer briefly so it carries its candidates
+        options.negotiationMode = "half-trickle".equals(settings.getString("negotiation_mode", "trickle"))
+                ? NegotiationMode.HALF_TRICKLE
+                : NegotiationMode.TRICKLE;
+        try {
+            options.captureProfile = CaptureProfile.valueOf(
+                    settings.getString("capture_profile", CaptureProfile.VGA_480P24.name()));
+        } catch (IllegalArgumentException e) {
+            options.captureProfile = CaptureProfile.VGA_480P24;
+        }
+
         webRTCClient = new WebRTCClient(getApplication(), new WebRTCClient.PeerConnectionObserver() {
             @Override
             public void onStreamReady() {
@@ -98,7 +133,34 @@ public class MainActivity extends AppCompatActivity {
                     Toast.makeText(MainActivity.this, error, Toast.LENGTH_SHORT).show();
                 });
             }
-        });
+
+            @Override
+            public void onFirstFrame(StartupTimings timings) {
+                Log.d("MainActivity", "Startup timings: " + timings);
+            }
+
+            @Override
+            public void onQualityTierChanged(QualityGovernor.Tier tier) {
+                Log.d("MainActivity", "Quality tier: " + tier);
+                if (tier != QualityGovernor.Tier.NORMAL) {
+                    runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                            "Reducing quality to protect the device (" + tier + ")", Toast.LENGTH_SHORT).show());
+                }
+            }
+        }, options);
+
+        // Optional Prometheus endpoint, off unless a port is set
+        int metricsPort = settings.getInt("metrics_port", 0);
+        if (metricsPort > 0) {
+            metricsServer = new MetricsServer(metricsPort, settings.getBoolean("metrics_lan", false));
+            metricsServer.addSource(webRTCClient);
+            try {
+                metricsServer.start();
+            } catch (IOException e) {
+                Log.e("MainActivity", "Failed to start metrics server on port " + metricsPort, e);
+                metricsServer = null;
+            }
+        }
 
         // Initialize surface view
         binding.localView.init(webRTCClient.eglBase.getEglBaseContext(), null);
@@ -111,9 +173,8 @@ public class MainActivity extends AppCompatActivity {
             try {
                 Log.d("MainActivity", "Starting local video capture...");
                 webRTCClient.startLocalVideoCapture(binding.localView);
-                Log.d("MainActivity", "Local video capture started successfully");
-                
-                // AUTO-START
+
+                // AUTO-START: signaling connects while the camera is still opening
                 if (!isStreaming) {
                     Log.d("MainActivity", "Auto-starting stream...");
                     SharedPreferences prefs = getSharedPreferences("start_settings", MODE_PRIVATE);
@@ -139,14 +200,20 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        webRTCClient.onIceCandidate = candidate -> {
-            if (currentViewerId != null) {
-                Log.d("MainActivity", "Sending ICE candidate to viewer: " + currentViewerId);
-                signalingClient.sendIceCandidate(candidate, currentViewerId);
+        webRTCClient.onIceCandidates = (viewerId, candidates) -> {
+            SignalingClient client = signalingClient;
+            if (client != null) {
+                Log.d("MainActivity", "Sending " + candidates.size() + " ICE candidate(s) to viewer: " + viewerId);
+                List<SignalingMessage.Candidate> wire = new ArrayList<>(candidates.size());
+                for (IceCandidate candidate : candidates) {
+                    wire.add(new SignalingMessage.Candidate(candidate.sdp, candidate.sdpMid, candidate.sdpMLineIndex));
+                }
+                client.sendIceCandidates(wire, viewerId);
             } else {
-                Log.e("MainActivity", "No viewer ID set, cannot send ICE candidate");
+                Log.e("MainActivity", "Signaling not connected, cannot send ICE candidates");
             }
         };
+        webRTCClient.restartOffers = this::offerCallback;
     }
 
     private void setupUI() {
@@ -200,6 +267,9 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void startStreaming(String serverUrl, String streamId) {
+        if (metricsServer != null && signalingClient != null) {
+            metricsServer.removeSource(signalingClient);
+        }
         signalingClient = new SignalingClient(serverUrl, new SignalingClient.Listener() {
             @Override
             public void onConnected(String clientId) {
@@ -208,6 +278,13 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void onStreamRegistered(String streamId, String embedUrl) {
+                // Kept across restarts; the server gives the stream back only for its token
+                SignalingClient client = signalingClient;
+                if (client != null) {
+                    getSharedPreferences("start_settings", MODE_PRIVATE).edit()
+                            .putString(RESUME_TOKEN_PREFIX + streamId, client.getResumeToken())
+                            .apply();
+                }
                 runOnUiThread(() -> {
                     updateStatus("Streaming");
                     binding.streamIdText.setText("Stream ID: " + streamId);
@@ -217,23 +294,34 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void onViewerJoined(String viewerId) {
-                currentViewerId = viewerId;
-                webRTCClient.createOffer(new WebRTCClient.Callback<String>() {
-                    @Override
-                    public void onSuccess(String offer) {
-                        signalingClient.sendOffer(offer, viewerId);
-                    }
+                webRTCClient.createOffer(viewerId, offerCallback(viewerId));
+            }
 
-                    @Override
-                    public void onError(String error) {
-                        runOnUiThread(() -> Toast.makeText(MainActivity.this, "Offer error: " + error, Toast.LENGTH_SHORT).show());
-                    }
-                });
+            @Override
+            public void onRelayAssigned(String relayId) {
+                Log.d("MainActivity", "Publishing through relay: " + relayId);
+                webRTCClient.createRelayOffer(relayId, offerCallback(relayId));
+            }
+
+            @Override
+            public void onRelayLost(String relayId) {
+                Log.d("MainActivity", "Relay lost, viewers will connect directly: " + relayId);
+                webRTCClient.closeRelaySession();
+            }
+
+            @Override
+            public void onViewerLeft(String viewerId) {
+                webRTCClient.removeViewer(viewerId);
+            }
+
+            @Override
+            public void onLayerRequest(String viewerId, String rid) {
+                webRTCClient.setViewerLayer(viewerId, rid != null ? SimulcastLayer.fromRid(rid) : null);
             }
 
             @Override
-            public void onAnswer(String answer, String senderId) {
-                webRTCClient.setRemoteAnswer(answer, new WebRTCClient.Callback<Void>() {
+            public void onAnswer(String sdp, String senderId) {
+                webRTCClient.setRemoteAnswer(senderId, sdp, new WebRTCClient.Callback<Void>() {
                     @Override
                     public void onSuccess(Void result) {}
 
@@ -245,27 +333,48 @@ public class MainActivity extends AppCompatActivity {
             }
 
             @Override
-            public void onIceCandidate(String candidate, String senderId) {
-                webRTCClient.addRemoteIceCandidate(candidate);
+            public void onIceCandidates(List<SignalingMessage.Candidate> candidates, String senderId) {
+                List<IceCandidate> iceCandidates = new ArrayList<>(candidates.size());
+                for (SignalingMessage.Candidate candidate : candidates) {
+                    iceCandidates.add(new IceCandidate(candidate.sdpMid, candidate.sdpMLineIndex, candidate.candidate));
+                }
+                webRTCClient.addRemoteIceCandidates(senderId, iceCandidates);
             }
 
             @Override
             public void onError(String error) {
                 runOnUiThread(() -> {
+                    // Stops the socket and its reconnect, keepalive and telemetry timers too
+                    stopStreaming();
                     updateStatus("Error: " + error);
                     Toast.makeText(MainActivity.this, error, Toast.LENGTH_SHORT).show();
-                    
-                    // Reset UI
-                    isStreaming = false;
-                    binding.startButton.setText("Start Streaming");
-                    binding.serverUrlInput.setEnabled(true);
-                    binding.streamIdInput.setEnabled(true);
                 });
             }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMs) {
+                // Viewers already connected keep watching; only new joins wait for this
+                runOnUiThread(() -> updateStatus("Reconnecting (attempt " + attempt + ")..."));
+            }
+
+            @Override
+            public void onResumed(List<String> viewerIds) {
+                webRTCClient.reconcileViewers(viewerIds, MainActivity.this::offerCallback);
+            }
         });
 
         signalingClient.setStreamId(streamId);
+        signalingClient.setResumeToken(getSharedPreferences("start_settings", MODE_PRIVATE)
+                .getString(RESUME_TOKEN_PREFIX + streamId, null));
+        signalingClient.setPublishMode(webRTCClient.getPublishMode());
+        // Offer CBOR frames; the server decides, and older ones keep JSON
+        signalingClient.setBinaryFrames(getSharedPreferences("start_settings", MODE_PRIVATE)
+                .getBoolean("binary_signaling", false));
         signalingClient.connect();
+        signalingClient.startTelemetry(webRTCClient::sampleHealth);
+        if (metricsServer != null) {
+            metricsServer.addSource(signalingClient);
+        }
         
         isStreaming = true;
         binding.startButton.setText("Stop Streaming");
@@ -273,10 +382,30 @@ public class MainActivity extends AppCompatActivity {
         binding.streamIdInput.setEnabled(false);
     }
 
+    private WebRTCClient.Callback<String> offerCallback(String targetId) {
+        return new WebRTCClient.Callback<String>() {
+            @Override
+            public void onSuccess(String offerSdp) {
+                SignalingClient client = signalingClient;
+                if (client != null) {
+                    client.sendOffer(offerSdp, targetId);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> Toast.makeText(MainActivity.this, "Offer error: " + error, Toast.LENGTH_SHORT).show());
+            }
+        };
+    }
+
     private void stopStreaming() {
         if (signalingClient != null) {
             signalingClient.disconnect();
         }
+        if (webRTCClient != null) {
+            webRTCClient.closeAllSessions();
+        }
         isStreaming = false;
         binding.startButton.setText("Start Streaming");
         binding.serverUrlInput.setEnabled(true);
@@ -293,6 +422,15 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        SignalingClient client = signalingClient;
+        if (client != null) {
+            // Stops the reconnect, keepalive and telemetry timers and gives the stream up
+            client.disconnect();
+            signalingClient = null;
+        }
         if (webRTCClient != null) {
             webRTCClient.close();
         }
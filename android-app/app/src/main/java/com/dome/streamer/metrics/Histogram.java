@@ -0,0 +1,47 @@
+package com.dome.streamer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cumulative histogram of durations in microseconds, rendered as seconds. Bucket
+ * bounds and their {@code le} labels are fixed at construction, so observing and
+ * rendering allocate nothing.
+ */
+public class Histogram {
+    final long[] upperBoundsMicros;
+    final String[] leLabels;
+    final AtomicLongArray bucketCounts;
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sumMicros = new AtomicLong();
+
+    /** @param upperBoundsMs ascending bucket bounds in milliseconds; +Inf is implied */
+    public Histogram(long... upperBoundsMs) {
+        upperBoundsMicros = new long[upperBoundsMs.length];
+        leLabels = new String[upperBoundsMs.length + 1];
+        for (int i = 0; i < upperBoundsMs.length; i++) {
+            upperBoundsMicros[i] = upperBoundsMs[i] * 1000;
+            leLabels[i] = Double.toString(upperBoundsMs[i] / 1000.0);
+        }
+        leLabels[upperBoundsMs.length] = "+Inf";
+        bucketCounts = new AtomicLongArray(upperBoundsMs.length + 1);
+    }
+
+    public void observeMicros(long micros) {
+        int bucket = 0;
+        while (bucket < upperBoundsMicros.length && micros > upperBoundsMicros[bucket]) {
+            bucket++;
+        }
+        bucketCounts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+    }
+
+    public void observeNanos(long nanos) {
+        observeMicros(nanos / 1000);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+}
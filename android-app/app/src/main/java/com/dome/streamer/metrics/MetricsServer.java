@@ -0,0 +1,167 @@
+package com.dome.streamer.metrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Minimal HTTP endpoint serving {@code GET /metrics} in the Prometheus text format.
+ * Binds to loopback by default (reach it with {@code adb forward}); pass
+ * {@code lan = true} to listen on every interface. Scrapes are served one at a time
+ * on the "MetricsServer" thread, rendering into buffers that are reused between
+ * scrapes and only grow.
+ */
+public class MetricsServer {
+    private static final String TAG = "MetricsServer";
+    private static final int SOCKET_TIMEOUT_MS = 2000;
+    private static final byte[] NOT_FOUND =
+            "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+
+    private final int port;
+    private final boolean lan;
+    private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+    private final StringBuilder body = new StringBuilder(4096);
+    private final StringBuilder header = new StringBuilder(128);
+    private final MetricsWriter writer = new MetricsWriter(body);
+    private final byte[] request = new byte[1024];
+    private byte[] response = new byte[8192];
+
+    private volatile ServerSocket serverSocket;
+    private Thread thread;
+
+    public MetricsServer(int port, boolean lan) {
+        this.port = port;
+        this.lan = lan;
+    }
+
+    public void addSource(MetricsSource source) {
+        sources.add(source);
+    }
+
+    public void removeSource(MetricsSource source) {
+        sources.remove(source);
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        InetAddress address = lan ? null : InetAddress.getLoopbackAddress();
+        socket.bind(new InetSocketAddress(address, port));
+        serverSocket = socket;
+        thread = new Thread(this::serve, "MetricsServer");
+        thread.start();
+        Log.d(TAG, "Serving metrics on " + (lan ? "all interfaces" : "loopback") + ", port " + port);
+    }
+
+    public synchronized void stop() {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        thread = null;
+    }
+
+    private void serve() {
+        ServerSocket socket;
+        while ((socket = serverSocket) != null) {
+            try (Socket client = socket.accept()) {
+                client.setSoTimeout(SOCKET_TIMEOUT_MS);
+                handle(client);
+            } catch (IOException e) {
+                if (serverSocket != null) {
+                    Log.w(TAG, "Scrape failed", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        OutputStream out = client.getOutputStream();
+        if (!readRequestIsMetrics(client.getInputStream())) {
+            out.write(NOT_FOUND);
+            out.flush();
+            return;
+        }
+
+        body.setLength(0);
+        for (MetricsSource source : sources) {
+            source.writeMetrics(writer);
+        }
+        header.setLength(0);
+        header.append("HTTP/1.1 200 OK\r\n")
+                .append("Content-Type: text/plain; version=0.0.4\r\n")
+                .append("Content-Length: ").append(body.length()).append("\r\n")
+                .append("Connection: close\r\n\r\n");
+
+        int length = header.length() + body.length();
+        if (response.length < length) {
+            response = new byte[Math.max(length, response.length * 2)];
+        }
+        // Exposition text is ASCII, so chars map straight onto bytes.
+        int position = copyAscii(header, response, 0);
+        copyAscii(body, response, position);
+        out.write(response, 0, length);
+        out.flush();
+    }
+
+    /** Reads the request head and checks for {@code GET /metrics}; the rest of the request is ignored. */
+    private boolean readRequestIsMetrics(InputStream in) throws IOException {
+        int length = 0;
+        while (length < request.length) {
+            int read = in.read(request, length, request.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            if (endsHead(length)) {
+                break;
+            }
+        }
+        return startsWith(request, length, "GET /metrics ") || startsWith(request, length, "GET /metrics?");
+    }
+
+    private boolean endsHead(int length) {
+        for (int i = 3; i < length; i++) {
+            if (request[i - 3] == '\r' && request[i - 2] == '\n' && request[i - 1] == '\r' && request[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int copyAscii(CharSequence text, byte[] target, int offset) {
+        for (int i = 0; i < text.length(); i++) {
+            target[offset++] = (byte) text.charAt(i);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,6 @@
+package com.dome.streamer.metrics;
+
+/** Something that can write its current metrics for a scrape. */
+public interface MetricsSource {
+    void writeMetrics(MetricsWriter out);
+}
@@ -0,0 +1,89 @@
+package com.dome.streamer.metrics;
+
+/**
+ * Writes the Prometheus text exposition format into a reused buffer. Names, help
+ * texts and label values are expected to be constants; values are longs, so a
+ * scrape appends to the buffer without allocating.
+ */
+public class MetricsWriter {
+    private final StringBuilder out;
+
+    public MetricsWriter(StringBuilder out) {
+        this.out = out;
+    }
+
+    /** Starts a metric family; its samples follow. */
+    public MetricsWriter family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public MetricsWriter sample(String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public MetricsWriter sample(String name, String label, String labelValue, long value) {
+        out.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ")
+                .append(value).append('\n');
+        return this;
+    }
+
+    public MetricsWriter counter(String name, String help, long value) {
+        return family(name, "counter", help).sample(name, value);
+    }
+
+    public MetricsWriter gauge(String name, String help, long value) {
+        return family(name, "gauge", help).sample(name, value);
+    }
+
+    /** Renders {@code histogram} in seconds, as {@code name_bucket}, {@code name_sum} and {@code name_count}. */
+    public MetricsWriter histogram(String name, String help, Histogram histogram) {
+        family(name, "histogram", help);
+        return histogramSeries(name, null, histogram);
+    }
+
+    /**
+     * One labelled series of a histogram family started with {@link #family}.
+     * {@code labels} is preformatted, e.g. {@code mode="trickle",network="wifi"}.
+     */
+    public MetricsWriter histogramSeries(String name, String labels, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.leLabels.length; i++) {
+            cumulative += histogram.bucketCounts.get(i);
+            out.append(name).append("_bucket{");
+            if (labels != null) {
+                out.append(labels).append(',');
+            }
+            out.append("le=\"").append(histogram.leLabels[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum");
+        appendLabels(labels);
+        appendMicrosAsSeconds(histogram.sumMicros.get());
+        out.append('\n');
+        out.append(name).append("_count");
+        appendLabels(labels);
+        out.append(histogram.count.get()).append('\n');
+        return this;
+    }
+
+    private void appendLabels(String labels) {
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+    }
+
+    private void appendMicrosAsSeconds(long micros) {
+        if (micros < 0) {
+            out.append('-');
+            micros = -micros;
+        }
+        out.append(micros / 1_000_000).append('.');
+        long fraction = micros % 1_000_000;
+        for (long digit = 100_000; digit > 0; digit /= 10) {
+            out.append((char) ('0' + (fraction / digit) % 10));
+        }
+    }
+}
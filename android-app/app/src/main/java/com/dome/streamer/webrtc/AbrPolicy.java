@@ -0,0 +1,61 @@
+package com.dome.streamer.webrtc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tuning for {@link BitrateController}: the quality ladder it walks and the
+ * thresholds that move it. Rung 0 is the best quality. Sample counts are in units of
+ * the client's stats poll, {@code WebRTCClient.Options#statsIntervalMs}.
+ */
+public class AbrPolicy {
+    public static class Rung {
+        public final int maxBitrateBps;
+        public final double scaleResolutionDownBy;
+        public final int maxFramerate;
+
+        public Rung(int maxBitrateBps, double scaleResolutionDownBy, int maxFramerate) {
+            this.maxBitrateBps = maxBitrateBps;
+            this.scaleResolutionDownBy = scaleResolutionDownBy;
+            this.maxFramerate = maxFramerate;
+        }
+
+        @Override
+        public String toString() {
+            return maxBitrateBps / 1000 + "kbps /" + scaleResolutionDownBy + " @" + maxFramerate + "fps";
+        }
+    }
+
+    public final List<Rung> ladder = new ArrayList<>();
+
+    /** A sample is congested above either of these. */
+    public double maxFractionLost = 0.05;
+    public double maxRoundTripTimeSec = 0.4;
+    /** Congested when availableOutgoingBitrate drops below this share of the rung's bitrate. */
+    public double minBandwidthShare = 0.9;
+    /**
+     * React to WebRTC's own verdict that bandwidth or the encoder is the bottleneck. A
+     * "bandwidth" verdict only counts without a bandwidth estimate, and only while the
+     * send rate is below {@link #atCapShare} of the rung's bitrate: at the cap, it is the
+     * rung that limits.
+     */
+    public boolean degradeOnQualityLimitation = true;
+    public double atCapShare = 0.85;
+
+    /** Consecutive congested samples before stepping down. */
+    public int degradeAfterSamples = 2;
+    /** Consecutive clean samples before stepping up; deliberately slower than stepping down. */
+    public int upgradeAfterSamples = 5;
+    /** Minimum time on a rung before stepping up again. */
+    public long upgradeHoldMs = 10000;
+
+    public static AbrPolicy defaults() {
+        AbrPolicy policy = new AbrPolicy();
+        policy.ladder.add(new Rung(1_200_000, 1.0, 24));
+        policy.ladder.add(new Rung(800_000, 1.0, 24));
+        policy.ladder.add(new Rung(500_000, 1.5, 20));
+        policy.ladder.add(new Rung(300_000, 2.0, 15));
+        policy.ladder.add(new Rung(150_000, 4.0, 10));
+        return policy;
+    }
+}
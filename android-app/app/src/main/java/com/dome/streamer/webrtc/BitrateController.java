@@ -0,0 +1,112 @@
+package com.dome.streamer.webrtc;
+
+/**
+ * Closed-loop quality control for one sender. Feed it a {@link StreamStats} per
+ * sampling interval; it answers with the ladder rung to run at. It steps down after
+ * a short run of congested samples and back up only after a longer run of clean
+ * ones, so a single noisy sample never moves it. Plain Java, so recorded stats
+ * traces can be replayed through it off-device.
+ */
+public class BitrateController {
+    private final AbrPolicy policy;
+
+    private int rung;
+    private int congestedSamples;
+    private int cleanSamples;
+    private long lastChangeMs;
+    private StreamStats previous;
+    private double sendBitrateBps;
+    private double encodeMsPerFrame;
+
+    public BitrateController(AbrPolicy policy) {
+        this.policy = policy;
+    }
+
+    /** Returns the rung to apply; compare with the previous answer to see whether it moved. */
+    public int onSample(StreamStats sample) {
+        if (previous != null && sample.timestampMs > previous.timestampMs) {
+            sendBitrateBps = (sample.bytesSent - previous.bytesSent) * 8000.0
+                    / (sample.timestampMs - previous.timestampMs);
+            long frames = sample.framesEncoded - previous.framesEncoded;
+            encodeMsPerFrame = frames > 0
+                    ? (sample.totalEncodeTimeSec - previous.totalEncodeTimeSec) * 1000 / frames
+                    : 0;
+        }
+        previous = sample;
+
+        if (isCongested(sample)) {
+            cleanSamples = 0;
+            if (++congestedSamples >= policy.degradeAfterSamples && rung < policy.ladder.size() - 1) {
+                rung++;
+                congestedSamples = 0;
+                lastChangeMs = sample.timestampMs;
+            }
+        } else if (isClean(sample)) {
+            congestedSamples = 0;
+            if (++cleanSamples >= policy.upgradeAfterSamples && rung > 0
+                    && sample.timestampMs - lastChangeMs >= policy.upgradeHoldMs) {
+                rung--;
+                cleanSamples = 0;
+                lastChangeMs = sample.timestampMs;
+            }
+        } else {
+            // In between: neither bad enough to drop nor good enough to climb.
+            congestedSamples = 0;
+            cleanSamples = 0;
+        }
+        return rung;
+    }
+
+    public int getRung() {
+        return rung;
+    }
+
+    public AbrPolicy.Rung getCurrentRung() {
+        return policy.ladder.get(rung);
+    }
+
+    /** Average encode time per frame between the last two samples; 0 when nothing was encoded. */
+    public double getEncodeMsPerFrame() {
+        return encodeMsPerFrame;
+    }
+
+    /** Measured from bytesSent deltas between the last two samples. */
+    public double getSendBitrateBps() {
+        return sendBitrateBps;
+    }
+
+    private boolean isCongested(StreamStats sample) {
+        if (sample.fractionLost > policy.maxFractionLost) {
+            return true;
+        }
+        if (sample.roundTripTimeSec > policy.maxRoundTripTimeSec) {
+            return true;
+        }
+        return isNetworkLimited(sample)
+                || (policy.degradeOnQualityLimitation && "cpu".equals(sample.qualityLimitationReason));
+    }
+
+    private boolean isClean(StreamStats sample) {
+        String reason = sample.qualityLimitationReason;
+        return sample.fractionLost <= policy.maxFractionLost / 2
+                && sample.roundTripTimeSec <= policy.maxRoundTripTimeSec * 0.75
+                && ("none".equals(reason) || "bandwidth".equals(reason))
+                && !isNetworkLimited(sample);
+    }
+
+    /**
+     * Whether the path, rather than the rung, holds the sender back. The rung's own
+     * maxBitrateBps makes WebRTC report a "bandwidth" limitation too, so that verdict
+     * only counts while the send rate is clearly below the cap; the bandwidth
+     * estimate, when there is one, decides instead.
+     */
+    private boolean isNetworkLimited(StreamStats sample) {
+        int target = getCurrentRung().maxBitrateBps;
+        if (sample.availableOutgoingBitrate >= 0) {
+            return sample.availableOutgoingBitrate < target * policy.minBandwidthShare;
+        }
+        return policy.degradeOnQualityLimitation
+                && "bandwidth".equals(sample.qualityLimitationReason)
+                && sendBitrateBps < target * policy.atCapShare;
+    }
+}
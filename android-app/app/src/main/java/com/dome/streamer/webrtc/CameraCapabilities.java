@@ -0,0 +1,206 @@
+package com.dome.streamer.webrtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What each camera can capture, probed once through {@link Camera2Enumerator} and
+ * cached in SharedPreferences so later cold starts skip enumeration. The cache is
+ * keyed by the build fingerprint and is re-probed after an OS update.
+ */
+public class CameraCapabilities {
+    private static final String TAG = "CameraCapabilities";
+    private static final String PREFS = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_DEVICES = "devices";
+
+    public static class Format {
+        public final int width;
+        public final int height;
+        /** Highest frame rate the camera can sustain at this size. */
+        public final int maxFps;
+
+        public Format(int width, int height, int maxFps) {
+            this.width = width;
+            this.height = height;
+            this.maxFps = maxFps;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + maxFps;
+        }
+    }
+
+    public static class Device {
+        public final String name;
+        public final boolean backFacing;
+        public final boolean frontFacing;
+        public final List<Format> formats;
+
+        Device(String name, boolean backFacing, boolean frontFacing, List<Format> formats) {
+            this.name = name;
+            this.backFacing = backFacing;
+            this.frontFacing = frontFacing;
+            this.formats = formats;
+        }
+    }
+
+    private final List<Device> devices;
+
+    private CameraCapabilities(List<Device> devices) {
+        this.devices = devices;
+    }
+
+    public static CameraCapabilities load(Context context, Camera2Enumerator enumerator) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            List<Device> cached = decode(prefs.getString(KEY_DEVICES, ""));
+            if (!cached.isEmpty()) {
+                Log.d(TAG, "Using cached capabilities for " + cached.size() + " cameras");
+                return new CameraCapabilities(cached);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        List<Device> probed = probe(enumerator);
+        Log.d(TAG, "Probed " + probed.size() + " cameras in " + (System.currentTimeMillis() - start) + "ms");
+        prefs.edit()
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .putString(KEY_DEVICES, encode(probed))
+                .apply();
+        return new CameraCapabilities(probed);
+    }
+
+    public List<Device> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+
+    /**
+     * Picks the camera for a profile: the back camera whose best format fits it most
+     * closely, or the best front camera when there is no back camera.
+     */
+    public Device selectDevice(CaptureProfile profile) {
+        Device best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (Device device : devices) {
+            Format format = selectFormat(device, profile);
+            if (format == null) {
+                continue;
+            }
+            // Any back camera beats any front camera.
+            long score = score(format, profile) + (device.backFacing ? 0 : Long.MAX_VALUE / 2);
+            if (score < bestScore) {
+                best = device;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    public Device getDevice(String name) {
+        for (Device device : devices) {
+            if (device.name.equals(name)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The format closest to the profile in pixel count and aspect ratio that can run at
+     * the profile's frame rate; formats too slow for it are only used as a last resort.
+     */
+    public static Format selectFormat(Device device, CaptureProfile profile) {
+        Format best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (Format format : device.formats) {
+            long score = score(format, profile);
+            if (score < bestScore) {
+                best = format;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static long score(Format format, CaptureProfile profile) {
+        long pixelDiff = Math.abs((long) format.width * format.height - (long) profile.width * profile.height);
+        double aspectDiff = Math.abs((double) format.width / format.height - (double) profile.width / profile.height);
+        long score = pixelDiff + (long) (aspectDiff * profile.width * profile.height);
+        if (format.maxFps < profile.fps) {
+            score += (long) profile.width * profile.height * 4;
+        }
+        return score;
+    }
+
+    private static List<Device> probe(Camera2Enumerator enumerator) {
+        List<Device> devices = new ArrayList<>();
+        for (String name : enumerator.getDeviceNames()) {
+            List<Format> formats = new ArrayList<>();
+            List<CameraEnumerationAndroid.CaptureFormat> supported = enumerator.getSupportedFormats(name);
+            if (supported != null) {
+                for (CameraEnumerationAndroid.CaptureFormat format : supported) {
+                    // Camera2 frame rate ranges are in thousandths of a frame per second.
+                    formats.add(new Format(format.width, format.height, format.framerate.max / 1000));
+                }
+            }
+            devices.add(new Device(name, enumerator.isBackFacing(name), enumerator.isFrontFacing(name), formats));
+        }
+        return devices;
+    }
+
+    // name|back|front|w x h x fps,w x h x fps;name|...
+    private static String encode(List<Device> devices) {
+        StringBuilder builder = new StringBuilder();
+        for (Device device : devices) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(device.name).append('|')
+                    .append(device.backFacing ? 1 : 0).append('|')
+                    .append(device.frontFacing ? 1 : 0).append('|');
+            for (int i = 0; i < device.formats.size(); i++) {
+                Format format = device.formats.get(i);
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(format.width).append('x').append(format.height).append('x').append(format.maxFps);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static List<Device> decode(String encoded) {
+        List<Device> devices = new ArrayList<>();
+        if (encoded.isEmpty()) {
+            return devices;
+        }
+        try {
+            for (String entry : encoded.split(";")) {
+                String[] parts = entry.split("\\|", -1);
+                List<Format> formats = new ArrayList<>();
+                if (!parts[3].isEmpty()) {
+                    for (String format : parts[3].split(",")) {
+                        String[] dims = format.split("x");
+                        formats.add(new Format(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), Integer.parseInt(dims[2])));
+                    }
+                }
+                devices.add(new Device(parts[0], "1".equals(parts[1]), "1".equals(parts[2]), formats));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable capability cache", e);
+            devices.clear();
+        }
+        return devices;
+    }
+}
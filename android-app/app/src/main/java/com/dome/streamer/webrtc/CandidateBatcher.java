@@ -0,0 +1,79 @@
+package com.dome.streamer.webrtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Holds local ICE candidates per target for a short window and hands them to the
+ * sink together. The first candidate for a target opens its window; everything
+ * gathered before the window closes, or before {@link #flush} on gathering-complete,
+ * goes out in one frame. A window of 0 sends every candidate as it comes.
+ *
+ * Not thread-safe: it belongs to one thread, and the timer must run the window's
+ * flush on that same thread.
+ */
+class CandidateBatcher<C> {
+
+    interface Sink<C> {
+        /** Sends {@code candidates} (never empty, in gathering order) to {@code targetId}. */
+        void send(String targetId, List<C> candidates);
+    }
+
+    interface Timer {
+        /** Runs {@code task} on the batcher's thread after {@code delayMs}. */
+        void schedule(Runnable task, long delayMs);
+    }
+
+    private final long windowMs;
+    private final Sink<C> sink;
+    private final Timer timer;
+    private final Map<String, List<C>> pending = new HashMap<>();
+
+    CandidateBatcher(long windowMs, Sink<C> sink, Timer timer) {
+        this.windowMs = windowMs;
+        this.sink = sink;
+        this.timer = timer;
+    }
+
+    void add(String targetId, C candidate) {
+        if (windowMs <= 0) {
+            sink.send(targetId, Collections.singletonList(candidate));
+            return;
+        }
+        List<C> batch = pending.get(targetId);
+        if (batch != null) {
+            batch.add(candidate);
+            return;
+        }
+        batch = new ArrayList<>();
+        batch.add(candidate);
+        pending.put(targetId, batch);
+        try {
+            timer.schedule(() -> flush(targetId), windowMs);
+        } catch (RejectedExecutionException e) {
+            flush(targetId);
+        }
+    }
+
+    /** Sends whatever is held for {@code targetId} now. */
+    void flush(String targetId) {
+        List<C> batch = pending.remove(targetId);
+        if (batch != null) {
+            sink.send(targetId, batch);
+        }
+    }
+
+    /** Drops held candidates for a peer that went away. */
+    void discard(String targetId) {
+        pending.remove(targetId);
+    }
+
+    /** Drops everything held. */
+    void clear() {
+        pending.clear();
+    }
+}
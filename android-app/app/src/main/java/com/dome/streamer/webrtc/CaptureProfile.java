@@ -0,0 +1,22 @@
+package com.dome.streamer.webrtc;
+
+/**
+ * Capture targets the app can ask for. The camera runs at whichever supported
+ * format fits best; see {@link CameraCapabilities#selectFormat}.
+ */
+public enum CaptureProfile {
+    FHD_1080P15(1920, 1080, 15),
+    HD_720P30(1280, 720, 30),
+    VGA_480P24(640, 480, 24),
+    LOW_POWER_360P15(640, 360, 15);
+
+    public final int width;
+    public final int height;
+    public final int fps;
+
+    CaptureProfile(int width, int height, int fps) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+    }
+}
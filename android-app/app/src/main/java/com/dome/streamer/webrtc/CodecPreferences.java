@@ -0,0 +1,177 @@
+package com.dome.streamer.webrtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import org.webrtc.RtpCapabilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders video codecs so hardware encoders are offered first. Which codecs have a
+ * hardware encoder is probed from {@link MediaCodecList} once and cached per build
+ * fingerprint. A codec whose encoder turns out to be too slow in practice is
+ * demoted behind the others, persistently, so later sessions fall back to the next
+ * codec, software if need be.
+ */
+public class CodecPreferences {
+    private static final String TAG = "CodecPreferences";
+    private static final String PREFS = "codec_preferences";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_HARDWARE = "hardware";
+    private static final String KEY_DEMOTED = "demoted";
+
+    /** Preference among codecs that all have hardware encoders: widest viewer support first. */
+    private static final List<String> CODEC_ORDER = Arrays.asList("H264", "VP8", "VP9", "H265", "AV1");
+    private static final Map<String, String> MIME_TO_CODEC = new HashMap<>();
+    static {
+        MIME_TO_CODEC.put("video/avc", "H264");
+        MIME_TO_CODEC.put("video/x-vnd.on2.vp8", "VP8");
+        MIME_TO_CODEC.put("video/x-vnd.on2.vp9", "VP9");
+        MIME_TO_CODEC.put("video/hevc", "H265");
+        MIME_TO_CODEC.put("video/av01", "AV1");
+    }
+
+    /**
+     * Encode time per frame above which a software encoder's sample counts as slow.
+     * Hardware encoders are not judged by it: their totalEncodeTime includes time queued
+     * in the MediaCodec pipeline, so a healthy one can report more than this.
+     */
+    public double slowEncodeMsPerFrame = 40;
+    /** Consecutive slow samples before the codec is demoted. */
+    public int demoteAfterSamples = 5;
+
+    private final SharedPreferences prefs;
+    private final Set<String> hardwareCodecs;
+    private final Set<String> demotedCodecs;
+    private final Map<String, Integer> slowSamples = new HashMap<>();
+
+    private CodecPreferences(SharedPreferences prefs, Set<String> hardwareCodecs, Set<String> demotedCodecs) {
+        this.prefs = prefs;
+        this.hardwareCodecs = hardwareCodecs;
+        this.demotedCodecs = demotedCodecs;
+    }
+
+    public static CodecPreferences load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        Set<String> demoted = new HashSet<>(prefs.getStringSet(KEY_DEMOTED, Collections.emptySet()));
+        if (Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            Set<String> cached = new HashSet<>(prefs.getStringSet(KEY_HARDWARE, Collections.emptySet()));
+            Log.d(TAG, "Cached hardware encoders: " + cached + ", demoted: " + demoted);
+            return new CodecPreferences(prefs, cached, demoted);
+        }
+
+        long start = System.currentTimeMillis();
+        Set<String> probed = probeHardwareEncoders();
+        Log.d(TAG, "Probed hardware encoders " + probed + " in " + (System.currentTimeMillis() - start) + "ms");
+        // New firmware may have fixed a slow encoder, so demotions start over too.
+        prefs.edit()
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .putStringSet(KEY_HARDWARE, probed)
+                .remove(KEY_DEMOTED)
+                .apply();
+        return new CodecPreferences(prefs, probed, new HashSet<>());
+    }
+
+    private static Set<String> probeHardwareEncoders() {
+        Set<String> codecs = new HashSet<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || !isHardware(info)) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                String codec = MIME_TO_CODEC.get(type.toLowerCase(Locale.ROOT));
+                if (codec != null) {
+                    codecs.add(codec);
+                }
+            }
+        }
+        return codecs;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated() && !info.isAlias();
+        }
+        String name = info.getName().toLowerCase(Locale.ROOT);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.startsWith("c2.google.");
+    }
+
+    public synchronized boolean isHardware(String codec) {
+        return hardwareCodecs.contains(codec);
+    }
+
+    /** Codecs with a hardware encoder, demoted or not, as upper-case rtpmap names. */
+    public synchronized Set<String> getHardwareCodecs() {
+        return new HashSet<>(hardwareCodecs);
+    }
+
+    /**
+     * Sorts the sender's codec capabilities: hardware codecs, then software ones, then
+     * demoted ones, each group in {@link #CODEC_ORDER}. Auxiliary payloads (rtx, red,
+     * ulpfec, ...) keep their relative order at the end.
+     */
+    public synchronized List<RtpCapabilities.CodecCapability> order(List<RtpCapabilities.CodecCapability> capabilities) {
+        List<RtpCapabilities.CodecCapability> sorted = new ArrayList<>(capabilities);
+        // List.sort is stable, so profiles of one codec keep WebRTC's own order.
+        sorted.sort((a, b) -> Integer.compare(rank(a.name), rank(b.name)));
+        return sorted;
+    }
+
+    private int rank(String name) {
+        String codec = name.toUpperCase(Locale.ROOT);
+        int position = CODEC_ORDER.indexOf(codec);
+        if (position < 0) {
+            return 3 * CODEC_ORDER.size();
+        }
+        if (demotedCodecs.contains(codec)) {
+            return 2 * CODEC_ORDER.size() + position;
+        }
+        if (!hardwareCodecs.contains(codec)) {
+            return CODEC_ORDER.size() + position;
+        }
+        return position;
+    }
+
+    /**
+     * Feeds one sample for the codec a session is sending. A hardware codec's sample is
+     * slow when WebRTC reports the stream as limited by the encoder ("cpu"); a software
+     * one's also when its encode time per frame exceeds {@link #slowEncodeMsPerFrame}.
+     * Returns true when this sample demoted the codec; only sessions negotiated
+     * afterwards are affected.
+     */
+    public synchronized boolean onEncodeSample(String codec, String qualityLimitationReason, double encodeMsPerFrame) {
+        if (codec == null || encodeMsPerFrame <= 0 || demotedCodecs.contains(codec)) {
+            return false;
+        }
+        boolean slow = "cpu".equals(qualityLimitationReason)
+                || (!hardwareCodecs.contains(codec) && encodeMsPerFrame >= slowEncodeMsPerFrame);
+        if (!slow) {
+            slowSamples.remove(codec);
+            return false;
+        }
+        int count = slowSamples.getOrDefault(codec, 0) + 1;
+        if (count < demoteAfterSamples) {
+            slowSamples.put(codec, count);
+            return false;
+        }
+        slowSamples.remove(codec);
+        demotedCodecs.add(codec);
+        prefs.edit().putStringSet(KEY_DEMOTED, new HashSet<>(demotedCodecs)).apply();
+        Log.w(TAG, codec + " encoder too slow (" + encodeMsPerFrame + "ms/frame, limited by "
+                + qualityLimitationReason + "), demoting it for new sessions");
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package com.dome.streamer.webrtc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The actor behind {@link WebRTCClient}: one thread that owns the sessions. Work
+ * posted here runs in submission order, so session state needs no locks; only the
+ * session count is published for other threads. Everything but {@link #post},
+ * {@link #executor}, {@link #getSessionCount} and {@link #shutdown} must be called on
+ * the engine thread.
+ *
+ * Plain Java, so the session lifecycle can be exercised on a JVM with fake sessions.
+ */
+class MediaEngine<S extends MediaEngine.Session> {
+    interface Session {
+        void close();
+    }
+
+    interface SessionFactory<S> {
+        /** Returns null when the session could not be built. */
+        S create(String id);
+    }
+
+    private final ExecutorService executor;
+    private final Map<String, S> sessions = new HashMap<>();
+    private final Map<String, S> view = Collections.unmodifiableMap(sessions);
+    private volatile int sessionCount;
+
+    MediaEngine(String threadName) {
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+    }
+
+    /** For async stages that must complete on the engine thread. */
+    Executor executor() {
+        return executor;
+    }
+
+    /** Runs {@code task} on the engine thread; false once the engine is shut down. */
+    boolean post(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** The open sessions by id, read-only; changes go through {@link #open} and {@link #close}. */
+    Map<String, S> sessions() {
+        return view;
+    }
+
+    /**
+     * Builds a session for {@code id} and makes it current, closing any it replaces.
+     * Returns null, leaving the sessions as they were, if the factory fails.
+     */
+    S open(String id, SessionFactory<S> factory) {
+        S session = factory.create(id);
+        if (session == null) {
+            return null;
+        }
+        S replaced = sessions.put(id, session);
+        sessionCount = sessions.size();
+        if (replaced != null) {
+            replaced.close();
+        }
+        return session;
+    }
+
+    /** Closes and forgets the session for {@code id}; returns it, or null if there was none. */
+    S close(String id) {
+        S session = sessions.remove(id);
+        if (session != null) {
+            sessionCount = sessions.size();
+            session.close();
+        }
+        return session;
+    }
+
+    /** Closes every session; returns how many there were. */
+    int closeAll() {
+        int closed = sessions.size();
+        for (S session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+        sessionCount = 0;
+        return closed;
+    }
+
+    /** Sessions open as of the last change on the engine thread; safe to read from anywhere. */
+    int getSessionCount() {
+        return sessionCount;
+    }
+
+    /** Runs {@code last} after everything already posted, then takes no more work. */
+    void shutdown(Runnable last) {
+        post(last);
+        executor.shutdown();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,18 @@
+package com.dome.streamer.webrtc;
+
+/**
+ * When a viewer's offer goes out relative to ICE gathering.
+ */
+public enum NegotiationMode {
+    /** Send the offer at once and trickle every candidate after it. */
+    TRICKLE,
+    /**
+     * Hold the offer until gathering completes or a short deadline passes, with the
+     * candidates found so far embedded in its SDP; later ones still trickle.
+     */
+    HALF_TRICKLE;
+
+    public String wireName() {
+        return name().toLowerCase(java.util.Locale.ROOT).replace('_', '-');
+    }
+}
@@ -0,0 +1,108 @@
+package com.dome.streamer.webrtc;
+
+import org.webrtc.PeerConnection;
+
+/**
+ * How sessions use the phone's networks. By default ICE gathers on Wi-Fi and
+ * cellular at once and keeps the pair it is not using pinged, so it can switch to it
+ * within a few hundred milliseconds. {@link PathMonitor} steers away from a selected
+ * path whose RTT or loss spikes. Cellular is the standby: video on it is capped and
+ * its bytes are budgeted.
+ */
+public class NetworkPolicy {
+    /** Gather on cellular as well as Wi-Fi; false leaves cellular to when nothing else is up. */
+    public boolean gatherAllNetworks = true;
+    /** The network ICE prefers between pairs that both work. */
+    public PeerConnection.AdapterType preferredNetwork = PeerConnection.AdapterType.WIFI;
+    /** {@link PeerConnection.AdapterType#bitMask}s of networks never gathered on. */
+    public int networkIgnoreMask;
+
+    /** Ping interval for pairs other than the selected one; WebRTC's 25 s default lets the standby go stale. */
+    public int backupPingIntervalMs = 1000;
+    /** The selected pair counts as not receiving after this long, which lets ICE switch; WebRTC waits 2.5 s. */
+    public int receivingTimeoutMs = 600;
+    /**
+     * Ping interval on a stable selected pair (WebRTC: 2.5 s). Its RTT and check loss
+     * are what {@link PathMonitor} judges, so they must be fresh.
+     */
+    public int selectedPingIntervalMs = 500;
+    /** Ping interval while connectivity is weak. */
+    public int weakPingIntervalMs = 200;
+    /** A pair unanswered this long, and for {@link #unwritableMinChecks} pings, is given up on. */
+    public int unwritableTimeoutMs = 1200;
+    public int unwritableMinChecks = 3;
+
+    /** How often each session's candidate pairs are checked; 0 leaves path choice to ICE alone. */
+    public long pathCheckIntervalMs = 500;
+    /** The selected path is impaired when its RTT is above this and {@link #rttSpikeFactor} times its baseline... */
+    public double maxRoundTripTimeSec = 0.35;
+    public double rttSpikeFactor = 3;
+    /** ...or when this share of its connectivity checks since the last check went unanswered. */
+    public double maxCheckLoss = 0.25;
+    /** Impaired checks in a row before moving to the standby; two at 500 ms keeps failover under a second. */
+    public int impairedChecks = 2;
+    /** Minimum time on the standby before going back to the preferred network. */
+    public long returnHoldMs = 5000;
+
+    /** Bytes over cellular, all sessions together, after which it is only used when nothing else works; 0 is no cap. */
+    public long cellularByteBudget = 50L * 1024 * 1024;
+    /** Video ceiling for a session whose selected pair is on cellular; 0 is no ceiling. */
+    public int cellularMaxBitrateBps = 300_000;
+
+    public static NetworkPolicy defaults() {
+        NetworkPolicy policy = new NetworkPolicy();
+        policy.networkIgnoreMask = PeerConnection.AdapterType.LOOPBACK.bitMask;
+        return policy;
+    }
+
+    void apply(PeerConnection.RTCConfiguration config) {
+        config.candidateNetworkPolicy = gatherAllNetworks
+                ? PeerConnection.CandidateNetworkPolicy.ALL
+                : PeerConnection.CandidateNetworkPolicy.LOW_COST;
+        config.networkPreference = preferredNetwork;
+        config.iceBackupCandidatePairPingInterval = backupPingIntervalMs;
+        config.iceConnectionReceivingTimeout = receivingTimeoutMs;
+        config.stableWritableConnectionPingIntervalMs = selectedPingIntervalMs;
+        config.iceCheckIntervalWeakConnectivityMs = weakPingIntervalMs;
+        config.iceUnwritableTimeMs = unwritableTimeoutMs;
+        config.iceUnwritableMinChecks = unwritableMinChecks;
+    }
+
+    /** The name getStats gives this network in a local candidate's networkType. */
+    static String statsName(PeerConnection.AdapterType type) {
+        switch (type) {
+            case WIFI:
+                return "wifi";
+            case ETHERNET:
+                return "ethernet";
+            case VPN:
+                return "vpn";
+            case CELLULAR:
+            case CELLULAR_2G:
+            case CELLULAR_3G:
+            case CELLULAR_4G:
+            case CELLULAR_5G:
+                return "cellular";
+            default:
+                return "unknown";
+        }
+    }
+
+    static PeerConnection.AdapterType fromStatsName(String name) {
+        if (name == null) {
+            return PeerConnection.AdapterType.UNKNOWN;
+        }
+        switch (name) {
+            case "wifi":
+                return PeerConnection.AdapterType.WIFI;
+            case "ethernet":
+                return PeerConnection.AdapterType.ETHERNET;
+            case "vpn":
+                return PeerConnection.AdapterType.VPN;
+            case "cellular":
+                return PeerConnection.AdapterType.CELLULAR;
+            default:
+                return PeerConnection.AdapterType.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.dome.streamer.webrtc;
+
+import com.dome.streamer.metrics.Histogram;
+import com.dome.streamer.metrics.MetricsWriter;
+import com.dome.streamer.protocol.SignalingCodec;
+import com.dome.streamer.protocol.SignalingMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.WebSocket;
+import okio.ByteString;
+
+/**
+ * Outbound signaling, sent in priority order. OkHttp queues whatever it is given
+ * without bound and in arrival order, so a burst of candidates or stats would sit
+ * ahead of an offer. Messages wait here instead. They are handed over only while
+ * OkHttp holds less than {@link #socketBufferBytes}, so the next message out is
+ * always the most important one waiting.
+ *
+ * Past {@link #maxQueuedBytes}, the oldest telemetry and then candidates are
+ * dropped. Negotiation and control messages are never dropped. A new telemetry
+ * report replaces one still waiting. Candidates for a target that already has a
+ * batch waiting join that batch.
+ *
+ * Once the server has accepted binary frames ({@link #useBinary}), messages are
+ * encoded as CBOR; pre-encoded text such as telemetry still goes as text.
+ */
+class OutboundQueue {
+
+    enum Priority {
+        NEGOTIATION, CONTROL, CANDIDATES, TELEMETRY;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final long DRAIN_RETRY_MS = 20;
+
+    /** How much OkHttp may hold before we wait for it to drain. */
+    int socketBufferBytes = 16 * 1024;
+    int maxQueuedBytes = 256 * 1024;
+
+    private static class Entry {
+        final Priority priority;
+        SignalingMessage message;
+        // Exactly one of these is set
+        String text;
+        ByteString bytes;
+        final long enqueuedNs;
+
+        Entry(Priority priority, SignalingMessage message) {
+            this.priority = priority;
+            this.message = message;
+            this.enqueuedNs = System.nanoTime();
+        }
+
+        /** Characters for a text frame, bytes for a binary one. */
+        int size() {
+            return text != null ? text.length() : bytes.size();
+        }
+
+        boolean sendTo(WebSocket socket) {
+            return text != null ? socket.send(text) : socket.send(bytes);
+        }
+    }
+
+    private final SignalingCodec codec;
+    private final ScheduledExecutorService scheduler;
+    private final ArrayDeque<Entry>[] lanes;
+    private WebSocket socket;
+    private boolean binary;
+    private long queuedBytes;
+    private boolean drainScheduled;
+
+    private long messagesSent;
+    private long bytesSent;
+    private long coalesced;
+    private final long[] dropped = new long[PRIORITIES.length];
+    private final Histogram[] sendDelay = new Histogram[PRIORITIES.length];
+    private final String[] sendDelayLabels = new String[PRIORITIES.length];
+
+    @SuppressWarnings("unchecked")
+    OutboundQueue(SignalingCodec codec, ScheduledExecutorService scheduler) {
+        this.codec = codec;
+        this.scheduler = scheduler;
+        lanes = new ArrayDeque[PRIORITIES.length];
+        for (Priority priority : PRIORITIES) {
+            lanes[priority.ordinal()] = new ArrayDeque<>();
+            sendDelay[priority.ordinal()] = new Histogram(1, 5, 20, 50, 100, 250, 1000);
+            sendDelayLabels[priority.ordinal()] = "class=\"" + priority.label + "\"";
+        }
+    }
+
+    static Priority priorityOf(SignalingMessage message) {
+        if (message instanceof SignalingMessage.Description) {
+            return Priority.NEGOTIATION;
+        }
+        if (message instanceof SignalingMessage.IceCandidate || message instanceof SignalingMessage.IceCandidates) {
+            return Priority.CANDIDATES;
+        }
+        return Priority.CONTROL;
+    }
+
+    /** The socket to write to; null while disconnected, which discards everything waiting. */
+    synchronized void attach(WebSocket socket) {
+        this.socket = socket;
+        this.binary = false;
+        if (socket == null) {
+            for (Priority priority : PRIORITIES) {
+                dropped[priority.ordinal()] += lanes[priority.ordinal()].size();
+                lanes[priority.ordinal()].clear();
+            }
+            queuedBytes = 0;
+        }
+    }
+
+    /** Sends CBOR binary frames on the attached socket from now on; set once the server agreed. */
+    synchronized void useBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    synchronized boolean isBinary() {
+        return binary;
+    }
+
+    synchronized void enqueue(SignalingMessage message) {
+        Priority priority = priorityOf(message);
+        if (socket == null) {
+            dropped[priority.ordinal()]++;
+            return;
+        }
+        if (priority == Priority.CANDIDATES && merge(lanes[priority.ordinal()], message)) {
+            drain();
+            return;
+        }
+        Entry entry = new Entry(priority, message);
+        encode(entry);
+        add(entry);
+    }
+
+    /** Queues pre-encoded text, which is never merged; only telemetry comes this way. */
+    synchronized void enqueue(Priority priority, String text) {
+        if (socket == null) {
+            dropped[priority.ordinal()]++;
+            return;
+        }
+        Entry entry = new Entry(priority, null);
+        entry.text = text;
+        add(entry);
+    }
+
+    private void add(Entry entry) {
+        ArrayDeque<Entry> lane = lanes[entry.priority.ordinal()];
+        if (entry.priority == Priority.TELEMETRY) {
+            for (Entry stale : lane) {
+                queuedBytes -= stale.size();
+                coalesced++;
+            }
+            lane.clear();
+        }
+        lane.add(entry);
+        queuedBytes += entry.size();
+        shed();
+        drain();
+    }
+
+    private void encode(Entry entry) {
+        if (binary) {
+            entry.text = null;
+            entry.bytes = ByteString.of(codec.encodeBinary(entry.message));
+        } else {
+            entry.text = codec.encode(entry.message);
+            entry.bytes = null;
+        }
+    }
+
+    /** True when nothing is waiting here or in OkHttp, so low-priority traffic delays nobody. */
+    synchronized boolean isIdle() {
+        if (socket == null || socket.queueSize() > 0) {
+            return false;
+        }
+        for (ArrayDeque<Entry> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds the candidates in {@code message} to a batch already waiting for the same target. */
+    private boolean merge(ArrayDeque<Entry> lane, SignalingMessage message) {
+        if (message == null || message.targetId == null) {
+            return false;
+        }
+        Entry waiting = null;
+        for (Entry entry : lane) {
+            if (message.targetId.equals(entry.message.targetId)) {
+                waiting = entry;
+            }
+        }
+        if (waiting == null) {
+            return false;
+        }
+        List<SignalingMessage.Candidate> candidates = new ArrayList<>(candidatesOf(waiting.message));
+        candidates.addAll(candidatesOf(message));
+        queuedBytes -= waiting.size();
+        waiting.message = new SignalingMessage.IceCandidates(candidates, message.targetId);
+        encode(waiting);
+        queuedBytes += waiting.size();
+        coalesced++;
+        shed();
+        return true;
+    }
+
+    private static List<SignalingMessage.Candidate> candidatesOf(SignalingMessage message) {
+        if (message instanceof SignalingMessage.IceCandidates) {
+            return ((SignalingMessage.IceCandidates) message).candidates;
+        }
+        return Collections.singletonList(((SignalingMessage.IceCandidate) message).candidate);
+    }
+
+    /** Drops the oldest low-priority messages until the queue fits its budget again. */
+    private void shed() {
+        for (int i = PRIORITIES.length - 1; i >= Priority.CANDIDATES.ordinal() && queuedBytes > maxQueuedBytes; i--) {
+            Iterator<Entry> oldestFirst = lanes[i].iterator();
+            while (oldestFirst.hasNext() && queuedBytes > maxQueuedBytes) {
+                queuedBytes -= oldestFirst.next().size();
+                oldestFirst.remove();
+                dropped[i]++;
+            }
+        }
+    }
+
+    /** Hands messages to OkHttp, most important first, while its buffer has room. */
+    synchronized void drain() {
+        drainScheduled = false;
+        if (socket == null) {
+            return;
+        }
+        for (ArrayDeque<Entry> lane : lanes) {
+            while (!lane.isEmpty()) {
+                if (socket.queueSize() >= socketBufferBytes) {
+                    scheduleDrain(); // OkHttp has no writable callback, so look again shortly
+                    return;
+                }
+                Entry entry = lane.peek();
+                if (!entry.sendTo(socket)) {
+                    return; // closing; the reconnect discards what is left
+                }
+                lane.poll();
+                queuedBytes -= entry.size();
+                messagesSent++;
+                bytesSent += entry.size();
+                sendDelay[entry.priority.ordinal()].observeNanos(System.nanoTime() - entry.enqueuedNs);
+            }
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        try {
+            scheduler.schedule(this::drain, DRAIN_RETRY_MS, TimeUnit.MILLISECONDS);
+            drainScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // shut down; nothing more goes out
+        }
+    }
+
+    synchronized void writeMetrics(MetricsWriter out) {
+        out.counter("dome_signaling_messages_sent_total", "Signaling messages handed to the socket", messagesSent);
+        out.counter("dome_signaling_bytes_sent_total",
+                "Signaling payload sent: characters of text frames, bytes of binary ones", bytesSent);
+        out.family("dome_signaling_queue_depth", "gauge", "Signaling messages waiting to be sent, by class");
+        for (Priority priority : PRIORITIES) {
+            out.sample("dome_signaling_queue_depth", "class", priority.label, lanes[priority.ordinal()].size());
+        }
+        out.gauge("dome_signaling_queue_bytes", "Signaling payload waiting to be sent", queuedBytes);
+        out.family("dome_signaling_dropped_total", "counter",
+                "Signaling messages dropped over budget or while disconnected, by class");
+        for (Priority priority : PRIORITIES) {
+            out.sample("dome_signaling_dropped_total", "class", priority.label, dropped[priority.ordinal()]);
+        }
+        out.counter("dome_signaling_coalesced_total", "Signaling messages merged into one already waiting", coalesced);
+        out.family("dome_signaling_send_delay_seconds", "histogram", "Queued to handed to the socket, by class");
+        for (Priority priority : PRIORITIES) {
+            out.histogramSeries("dome_signaling_send_delay_seconds", sendDelayLabels[priority.ordinal()],
+                    sendDelay[priority.ordinal()]);
+        }
+    }
+}
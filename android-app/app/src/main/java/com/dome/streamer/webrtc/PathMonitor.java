@@ -0,0 +1,116 @@
+package com.dome.streamer.webrtc;
+
+import java.util.Map;
+
+/**
+ * Chooses, for one session, the network ICE should prefer. Feed it a
+ * {@link PathStats} per check; it answers with the network to prefer, by stats name.
+ * After a short run of impaired checks on the preferred network it moves to the
+ * healthiest standby. It goes back once the preferred network has a healthy pair
+ * again and the hold has passed. It sees only {@link PathStats}, never a
+ * PeerConnection, so sequences of path checks can be replayed through it on a JVM.
+ */
+public class PathMonitor {
+    /** Connectivity checks counted before their loss is judged, so one late response is not a spike. */
+    private static final int MIN_CHECKS = 4;
+
+    private final NetworkPolicy policy;
+    private final String preferred;
+
+    private String preferring;
+    private long switchedAtMs;
+    private int impairedChecks;
+    private boolean lossy;
+    private String pairId;
+    private double baselineRttSec = -1;
+    private long requestsSent;
+    private long responsesReceived;
+
+    public PathMonitor(NetworkPolicy policy) {
+        this.policy = policy;
+        this.preferred = NetworkPolicy.statsName(policy.preferredNetwork);
+        this.preferring = preferred;
+    }
+
+    /**
+     * Returns the network to prefer; compare with the previous answer to see whether
+     * it moved. {@code cellularAllowed} false (the budget is spent) never moves to
+     * cellular and leaves it at once.
+     */
+    public String onSample(PathStats sample, boolean cellularAllowed) {
+        if (!preferring.equals(preferred)) {
+            Double preferredRtt = sample.bestRoundTripTimeSec.get(preferred);
+            boolean recovered = preferredRtt != null && preferredRtt <= policy.maxRoundTripTimeSec
+                    && sample.timestampMs - switchedAtMs >= policy.returnHoldMs;
+            if (recovered || (!cellularAllowed && "cellular".equals(preferring))) {
+                preferring = preferred;
+                switchedAtMs = sample.timestampMs;
+            }
+        }
+        if (sample.selectedPairId == null) {
+            return preferring;
+        }
+        if (!sample.selectedPairId.equals(pairId)) {
+            // A new path: its RTT and checks start from scratch
+            pairId = sample.selectedPairId;
+            baselineRttSec = -1;
+            requestsSent = sample.selectedRequestsSent;
+            responsesReceived = sample.selectedResponsesReceived;
+            impairedChecks = 0;
+            lossy = false;
+            return preferring;
+        }
+
+        long requests = sample.selectedRequestsSent - requestsSent;
+        if (requests >= MIN_CHECKS) {
+            long responses = sample.selectedResponsesReceived - responsesReceived;
+            lossy = (requests - responses) > requests * policy.maxCheckLoss;
+            requestsSent = sample.selectedRequestsSent;
+            responsesReceived = sample.selectedResponsesReceived;
+        }
+        double rtt = sample.selectedRoundTripTimeSec;
+        boolean spiking = rtt > policy.maxRoundTripTimeSec && baselineRttSec > 0
+                && rtt > baselineRttSec * policy.rttSpikeFactor;
+        if (spiking || lossy) {
+            impairedChecks++;
+        } else {
+            impairedChecks = 0;
+            if (rtt >= 0) {
+                baselineRttSec = baselineRttSec < 0 ? rtt : baselineRttSec * 0.9 + rtt * 0.1;
+            }
+        }
+
+        if (impairedChecks >= policy.impairedChecks && preferring.equals(preferred)
+                && preferred.equals(sample.selectedNetwork)) {
+            String standby = standby(sample, cellularAllowed);
+            if (standby != null) {
+                preferring = standby;
+                switchedAtMs = sample.timestampMs;
+                impairedChecks = 0;
+            }
+        }
+        return preferring;
+    }
+
+    public String getPreferring() {
+        return preferring;
+    }
+
+    /** The other network with the lowest RTT among working pairs, or null if there is none. */
+    private String standby(PathStats sample, boolean cellularAllowed) {
+        String best = null;
+        double bestRtt = Double.MAX_VALUE;
+        for (Map.Entry<String, Double> entry : sample.bestRoundTripTimeSec.entrySet()) {
+            String network = entry.getKey();
+            if (network.equals(preferred) || "unknown".equals(network)
+                    || (!cellularAllowed && "cellular".equals(network))) {
+                continue;
+            }
+            if (entry.getValue() < bestRtt) {
+                best = network;
+                bestRtt = entry.getValue();
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,81 @@
+package com.dome.streamer.webrtc;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One getStats sample of a session's candidate pairs: the selected pair and the
+ * network it runs on, the best working pair on each network, and the bytes sent over
+ * cellular. Networks are named as in a local candidate's networkType ("wifi",
+ * "cellular", ...).
+ */
+public class PathStats {
+    public long timestampMs;
+    /** Network of the selected pair, or null before one is selected. */
+    public String selectedNetwork;
+    public String selectedPairId;
+    /** Seconds; -1 when unknown. */
+    public double selectedRoundTripTimeSec = -1;
+    /** Connectivity checks on the selected pair, for loss between samples. */
+    public long selectedRequestsSent;
+    public long selectedResponsesReceived;
+    /** Lowest RTT (seconds) among the pairs that work, by network. */
+    public final Map<String, Double> bestRoundTripTimeSec = new HashMap<>();
+    /** Summed over every pair on cellular, selected or not. */
+    public long cellularBytesSent;
+
+    public static PathStats fromReport(RTCStatsReport report) {
+        PathStats stats = new PathStats();
+        stats.timestampMs = (long) (report.getTimestampUs() / 1000);
+
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        for (RTCStats entry : statsMap.values()) {
+            if ("transport".equals(entry.getType())) {
+                Object selected = entry.getMembers().get("selectedCandidatePairId");
+                if (selected != null) {
+                    stats.selectedPairId = selected.toString();
+                }
+            }
+        }
+        for (RTCStats entry : statsMap.values()) {
+            if (!"candidate-pair".equals(entry.getType())) {
+                continue;
+            }
+            Map<String, Object> members = entry.getMembers();
+            RTCStats local = statsMap.get(String.valueOf(members.get("localCandidateId")));
+            Object networkType = local != null ? local.getMembers().get("networkType") : null;
+            String network = networkType != null ? networkType.toString() : "unknown";
+            if ("cellular".equals(network)) {
+                stats.cellularBytesSent += asLong(members.get("bytesSent"));
+            }
+            boolean selected = entry.getId().equals(stats.selectedPairId)
+                    || (stats.selectedPairId == null && Boolean.TRUE.equals(members.get("nominated")));
+            double rtt = asDouble(members.get("currentRoundTripTime"), -1);
+            if (selected) {
+                stats.selectedPairId = entry.getId();
+                stats.selectedNetwork = network;
+                stats.selectedRoundTripTimeSec = rtt;
+                stats.selectedRequestsSent = asLong(members.get("requestsSent"));
+                stats.selectedResponsesReceived = asLong(members.get("responsesReceived"));
+            }
+            if ("succeeded".equals(members.get("state")) && rtt >= 0) {
+                Double best = stats.bestRoundTripTimeSec.get(network);
+                if (best == null || rtt < best) {
+                    stats.bestRoundTripTimeSec.put(network, rtt);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double asDouble(Object value, double fallback) {
+        return value instanceof Number ? ((Number) value).doubleValue() : fallback;
+    }
+}
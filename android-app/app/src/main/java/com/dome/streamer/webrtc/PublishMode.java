@@ -0,0 +1,15 @@
+package com.dome.streamer.webrtc;
+
+/**
+ * How the camera reaches its audience.
+ */
+public enum PublishMode {
+    /** One PeerConnection per viewer, straight from the phone. */
+    DIRECT,
+    /** A single upstream to a relay peer, which serves the viewers. */
+    RELAY;
+
+    public String wireName() {
+        return name().toLowerCase(java.util.Locale.ROOT);
+    }
+}
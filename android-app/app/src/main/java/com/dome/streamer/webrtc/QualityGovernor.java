@@ -0,0 +1,211 @@
+package com.dome.streamer.webrtc;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps long-running streams alive on hot or draining devices. Thermal status and
+ * battery state map to a {@link Tier}; the worse of the two wins. Dropping to a lower
+ * tier happens at once, climbing back happens one tier at a time and only after the
+ * device has stayed healthy for {@link #recoveryHoldMs}.
+ *
+ * Events come from {@link #start(Context)} on a device, or are injected through
+ * {@link #onThermalStatus(int)} and {@link #onBatteryChanged(int, boolean)}.
+ */
+public class QualityGovernor {
+    public enum Tier {
+        NORMAL(null, Integer.MAX_VALUE, Integer.MAX_VALUE),
+        REDUCED(CaptureProfile.VGA_480P24, 800_000, 24),
+        LOW(CaptureProfile.LOW_POWER_360P15, 400_000, 15),
+        MINIMAL(CaptureProfile.LOW_POWER_360P15, 150_000, 10);
+
+        /** Most expensive capture profile allowed, or null for no limit. */
+        public final CaptureProfile maxProfile;
+        public final int maxBitrateBps;
+        public final int maxFramerate;
+
+        Tier(CaptureProfile maxProfile, int maxBitrateBps, int maxFramerate) {
+            this.maxProfile = maxProfile;
+            this.maxBitrateBps = maxBitrateBps;
+            this.maxFramerate = maxFramerate;
+        }
+
+        /** The cheaper of the requested profile and this tier's ceiling. */
+        public CaptureProfile cap(CaptureProfile requested) {
+            if (maxProfile == null || cost(requested) <= cost(maxProfile)) {
+                return requested;
+            }
+            return maxProfile;
+        }
+
+        private static long cost(CaptureProfile profile) {
+            return (long) profile.width * profile.height * profile.fps;
+        }
+    }
+
+    public interface Listener {
+        void onTierChanged(Tier tier);
+    }
+
+    public long recoveryHoldMs = 60_000;
+    public int lowBatteryPercent = 30;
+    public int criticalBatteryPercent = 15;
+
+    private final Listener listener;
+    private final LongSupplier clock;
+
+    private Tier tier = Tier.NORMAL;
+    private int thermalStatus;
+    private int batteryPercent = 100;
+    private boolean charging = true;
+    private long healthySinceMs = -1;
+
+    private Context context;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    private BroadcastReceiver batteryReceiver;
+
+    public QualityGovernor(Listener listener) {
+        this(listener, System::currentTimeMillis);
+    }
+
+    public QualityGovernor(Listener listener, LongSupplier clock) {
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    public synchronized Tier getTier() {
+        return tier;
+    }
+
+    /** One of the PowerManager.THERMAL_STATUS_* constants. */
+    public void onThermalStatus(int status) {
+        synchronized (this) {
+            thermalStatus = status;
+        }
+        evaluate();
+    }
+
+    public void onBatteryChanged(int percent, boolean isCharging) {
+        synchronized (this) {
+            batteryPercent = percent;
+            charging = isCharging;
+        }
+        evaluate();
+    }
+
+    /** Re-evaluates without a new event, so recovery happens once the hold time has passed. */
+    public void tick() {
+        evaluate();
+    }
+
+    private void evaluate() {
+        Tier changed = null;
+        synchronized (this) {
+            Tier target = targetTier();
+            long now = clock.getAsLong();
+            if (target.ordinal() > tier.ordinal()) {
+                tier = target;
+                healthySinceMs = -1;
+                changed = tier;
+            } else if (target.ordinal() < tier.ordinal()) {
+                if (healthySinceMs < 0) {
+                    healthySinceMs = now;
+                } else if (now - healthySinceMs >= recoveryHoldMs) {
+                    tier = Tier.values()[tier.ordinal() - 1];
+                    healthySinceMs = tier == target ? -1 : now;
+                    changed = tier;
+                }
+            } else {
+                healthySinceMs = -1;
+            }
+        }
+        if (changed != null) {
+            listener.onTierChanged(changed);
+        }
+    }
+
+    private Tier targetTier() {
+        Tier thermal;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            thermal = Tier.MINIMAL;
+        } else if (thermalStatus == PowerManager.THERMAL_STATUS_SEVERE) {
+            thermal = Tier.LOW;
+        } else if (thermalStatus == PowerManager.THERMAL_STATUS_MODERATE) {
+            thermal = Tier.REDUCED;
+        } else {
+            thermal = Tier.NORMAL;
+        }
+
+        Tier battery = Tier.NORMAL;
+        if (!charging) {
+            if (batteryPercent <= criticalBatteryPercent) {
+                battery = Tier.LOW;
+            } else if (batteryPercent <= lowBatteryPercent) {
+                battery = Tier.REDUCED;
+            }
+        }
+        return thermal.ordinal() >= battery.ordinal() ? thermal : battery;
+    }
+
+    public void start(Context context) {
+        this.context = context.getApplicationContext();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+            if (powerManager != null) {
+                thermalListener = this::onThermalStatus;
+                powerManager.addThermalStatusListener(thermalListener);
+                onThermalStatus(powerManager.getCurrentThermalStatus());
+            }
+        }
+
+        batteryReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onBatteryIntent(intent);
+            }
+        };
+        // ACTION_BATTERY_CHANGED is sticky, so registering also delivers the current state.
+        Intent current = this.context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (current != null) {
+            onBatteryIntent(current);
+        }
+    }
+
+    public void stop() {
+        if (context == null) {
+            return;
+        }
+        if (thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (powerManager != null) {
+                powerManager.removeThermalStatusListener(thermalListener);
+            }
+            thermalListener = null;
+        }
+        if (batteryReceiver != null) {
+            context.unregisterReceiver(batteryReceiver);
+            batteryReceiver = null;
+        }
+        context = null;
+    }
+
+    private void onBatteryIntent(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, BatteryManager.BATTERY_STATUS_UNKNOWN);
+        if (level < 0 || scale <= 0) {
+            return;
+        }
+        boolean isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+        onBatteryChanged(level * 100 / scale, isCharging);
+    }
+}
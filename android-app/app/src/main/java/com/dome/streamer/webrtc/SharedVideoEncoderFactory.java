@@ -0,0 +1,376 @@
+package com.dome.streamer.webrtc;
+
+import android.util.Log;
+
+import org.webrtc.DefaultVideoEncoderFactory;
+import org.webrtc.EglBase;
+import org.webrtc.EncodedImage;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoFrame;
+import org.webrtc.WrappedNativeVideoEncoder;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Encoder factory that lets PeerConnections share one hardware encoder per codec and
+ * resolution. The first lease to submit a frame encodes it; every lease on the same
+ * encoder receives the resulting bitstream, so N viewers cost one encoder instead of N.
+ *
+ * Leases bind at initEncode, keyed by resolution, so simulcast layers and viewers on
+ * different layers get separate encoders. Each shared encoder is created for its key
+ * and released with its last lease; a lease never lends out an encoder of its own,
+ * which could still be encoding for other viewers at another resolution.
+ *
+ * A shared encoder runs at the lowest bitrate any of its leases asks for: the one
+ * bitstream has to fit every viewer, so the weakest connection sets the quality for
+ * everyone on that encoder. Viewers on another simulcast layer or resolution are not
+ * affected.
+ *
+ * Only Java-side (MediaCodec) encoders can be shared. Codecs without a hardware
+ * encoder fall back to a regular, unshared encoder from {@link DefaultVideoEncoderFactory}.
+ */
+public class SharedVideoEncoderFactory implements VideoEncoderFactory {
+    private static final String TAG = "SharedVideoEncoder";
+    private static final int LOG_INTERVAL_FRAMES = 300;
+
+    private final HardwareVideoEncoderFactory hardwareFactory;
+    private final DefaultVideoEncoderFactory fallbackFactory;
+    // Guarded by itself, as are the retired counts of encoders it no longer holds
+    private final Map<String, SharedEncoder> sharedEncoders = new HashMap<>();
+    private long retiredEncodedFrames;
+    private long retiredDeliveredFrames;
+    // One never-initialized encoder per codec answers every lease's queries
+    private final Map<String, VideoEncoder> descriptors = new HashMap<>();
+
+    public SharedVideoEncoderFactory(EglBase.Context eglContext, boolean enableIntelVp8Encoder,
+                                     boolean enableH264HighProfile) {
+        this.hardwareFactory = new HardwareVideoEncoderFactory(eglContext, enableIntelVp8Encoder, enableH264HighProfile);
+        this.fallbackFactory = new DefaultVideoEncoderFactory(eglContext, enableIntelVp8Encoder, enableH264HighProfile);
+    }
+
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        VideoEncoder descriptor = descriptor(info);
+        if (descriptor == null) {
+            Log.d(TAG, "No shareable encoder for " + info.name + ", using an unshared one");
+            return fallbackFactory.createEncoder(info);
+        }
+        return new Lease(info, descriptor);
+    }
+
+    /** Null if the codec has no Java-side hardware encoder. */
+    private VideoEncoder descriptor(VideoCodecInfo info) {
+        String key = codecKey(info);
+        synchronized (descriptors) {
+            if (descriptors.containsKey(key)) {
+                return descriptors.get(key);
+            }
+            VideoEncoder encoder = hardwareFactory.createEncoder(info);
+            if (encoder instanceof WrappedNativeVideoEncoder) {
+                encoder = null;
+            }
+            descriptors.put(key, encoder);
+            return encoder;
+        }
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        return fallbackFactory.getSupportedCodecs();
+    }
+
+    /** Frames actually run through hardware encoders. */
+    public long getEncodedFrameCount() {
+        synchronized (sharedEncoders) {
+            long total = retiredEncodedFrames;
+            for (SharedEncoder shared : sharedEncoders.values()) {
+                total += shared.encodedFrames;
+            }
+            return total;
+        }
+    }
+
+    /** Encoded frames handed to sessions; divided by {@link #getEncodedFrameCount()} this is the fan-out. */
+    public long getDeliveredFrameCount() {
+        synchronized (sharedEncoders) {
+            long total = retiredDeliveredFrames;
+            for (SharedEncoder shared : sharedEncoders.values()) {
+                total += shared.deliveredFrames;
+            }
+            return total;
+        }
+    }
+
+    /** Returns null if no hardware encoder could be created for the lease's codec. */
+    private SharedEncoder acquire(Lease lease, VideoEncoder.Settings settings) {
+        String key = codecKey(lease.info) + "@" + settings.width + "x" + settings.height;
+        synchronized (sharedEncoders) {
+            SharedEncoder shared = sharedEncoders.get(key);
+            if (shared == null || !shared.attach(lease)) {
+                // A HardwareVideoEncoder allocates its MediaCodec in initEncode, not here
+                VideoEncoder encoder = hardwareFactory.createEncoder(lease.info);
+                if (encoder == null) {
+                    return null;
+                }
+                shared = new SharedEncoder(key, encoder);
+                shared.attach(lease);
+                sharedEncoders.put(key, shared);
+            }
+            return shared;
+        }
+    }
+
+    /** Detaches the lease; the last one out releases the encoder and drops it from the map. */
+    private VideoCodecStatus release(Lease lease, SharedEncoder shared) {
+        synchronized (sharedEncoders) {
+            if (!shared.detach(lease)) {
+                return VideoCodecStatus.OK;
+            }
+            if (sharedEncoders.get(shared.key) == shared) {
+                sharedEncoders.remove(shared.key);
+            }
+            retiredEncodedFrames += shared.encodedFrames;
+            retiredDeliveredFrames += shared.deliveredFrames;
+        }
+        // Outside the map lock, so other viewers can acquire encoders while MediaCodec shuts down
+        return shared.releaseEncoder();
+    }
+
+    private static String codecKey(VideoCodecInfo info) {
+        return info.name + info.params;
+    }
+
+    private static class SharedEncoder implements VideoEncoder.Callback {
+        final String key;
+        final VideoEncoder encoder;
+        final List<Lease> leases = new CopyOnWriteArrayList<>();
+
+        boolean initialized;
+        boolean released;
+        boolean keyFrameRequested;
+        long lastEncodedTimestampNs = -1;
+        volatile long encodedFrames;
+        volatile long deliveredFrames;
+
+        SharedEncoder(String key, VideoEncoder encoder) {
+            this.key = key;
+            this.encoder = encoder;
+        }
+
+        /** Fails once the last lease has released the encoder; the factory then builds a new one. */
+        synchronized boolean attach(Lease lease) {
+            if (released) {
+                return false;
+            }
+            leases.add(lease);
+            Log.d(TAG, encoder.getImplementationName() + " shared by " + leases.size() + " senders");
+            return true;
+        }
+
+        synchronized VideoCodecStatus initEncode(VideoEncoder.Settings settings) {
+            if (initialized) {
+                // Later senders join the stream as it is; a key frame gets them started.
+                keyFrameRequested = true;
+                return VideoCodecStatus.OK;
+            }
+            VideoCodecStatus status = encoder.initEncode(settings, this);
+            initialized = status == VideoCodecStatus.OK;
+            return status;
+        }
+
+        synchronized VideoCodecStatus encode(VideoFrame frame, VideoEncoder.EncodeInfo info) {
+            if (!initialized) {
+                return VideoCodecStatus.UNINITIALIZED;
+            }
+            boolean wantsKeyFrame = keyFrameRequested || requestsKeyFrame(info);
+            if (frame.getTimestampNs() == lastEncodedTimestampNs) {
+                // Another sender already submitted this frame; remember a key frame ask for the next one.
+                keyFrameRequested = wantsKeyFrame;
+                return VideoCodecStatus.OK;
+            }
+            lastEncodedTimestampNs = frame.getTimestampNs();
+            keyFrameRequested = false;
+
+            VideoEncoder.EncodeInfo effectiveInfo = wantsKeyFrame
+                    ? new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameKey})
+                    : info;
+            VideoCodecStatus status = encoder.encode(frame, effectiveInfo);
+            if (status == VideoCodecStatus.OK) {
+                encodedFrames++;
+                if (encodedFrames % LOG_INTERVAL_FRAMES == 0) {
+                    Log.d(TAG, encoder.getImplementationName() + ": encoded " + encodedFrames
+                            + " frames, delivered " + deliveredFrames + " to " + leases.size() + " senders");
+                }
+            }
+            return status;
+        }
+
+        synchronized VideoCodecStatus setRates(Lease lease, VideoEncoder.RateControlParameters parameters) {
+            lease.rates = parameters;
+            // The shared bitstream has to fit the most constrained viewer.
+            VideoEncoder.RateControlParameters lowest = null;
+            for (Lease each : leases) {
+                if (each.rates != null
+                        && (lowest == null || each.rates.bitrate.getSum() < lowest.bitrate.getSum())) {
+                    lowest = each.rates;
+                }
+            }
+            return lowest != null ? encoder.setRates(lowest) : VideoCodecStatus.OK;
+        }
+
+        /** True if that was the last lease; the encoder stops taking frames and must then be released. */
+        synchronized boolean detach(Lease lease) {
+            leases.remove(lease);
+            lease.dropPendingFrame();
+            if (!leases.isEmpty()) {
+                Log.d(TAG, encoder.getImplementationName() + " shared by " + leases.size() + " senders");
+                return false;
+            }
+            released = true;
+            initialized = false;
+            return true;
+        }
+
+        synchronized VideoCodecStatus releaseEncoder() {
+            return encoder.release();
+        }
+
+        @Override
+        public void onEncodedFrame(EncodedImage frame, VideoEncoder.CodecSpecificInfo info) {
+            for (Lease lease : leases) {
+                if (lease.deliver(frame, info)) {
+                    deliveredFrames++;
+                }
+            }
+        }
+
+        private boolean requestsKeyFrame(VideoEncoder.EncodeInfo info) {
+            if (info == null || info.frameTypes == null) {
+                return false;
+            }
+            for (EncodedImage.FrameType type : info.frameTypes) {
+                if (type == EncodedImage.FrameType.VideoFrameKey) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The encoder one RTP sender sees. It forwards to the shared encoder and only
+     * passes on encoded frames its own sender has already submitted, because the native
+     * wrapper drops output it has no matching encode call for.
+     */
+    private class Lease implements VideoEncoder {
+        final VideoCodecInfo info;
+        // The codec's shared descriptor: answers the queries WebRTC makes before initEncode
+        final VideoEncoder descriptor;
+        private SharedEncoder shared;
+        private Callback callback;
+        private long lastSubmittedTimestampNs = -1;
+        private EncodedImage pendingFrame;
+        private CodecSpecificInfo pendingInfo;
+        RateControlParameters rates;
+
+        Lease(VideoCodecInfo info, VideoEncoder descriptor) {
+            this.info = info;
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+            if (shared != null) {
+                // Reconfigured, possibly to another resolution: move to the matching encoder.
+                SharedVideoEncoderFactory.this.release(this, shared);
+            }
+            synchronized (this) {
+                this.callback = callback;
+                this.lastSubmittedTimestampNs = -1;
+            }
+            shared = acquire(this, settings);
+            return shared != null ? shared.initEncode(settings) : VideoCodecStatus.FALLBACK_SOFTWARE;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            if (shared == null) {
+                return VideoCodecStatus.OK;
+            }
+            VideoCodecStatus status = SharedVideoEncoderFactory.this.release(this, shared);
+            shared = null;
+            return status;
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            if (shared == null) {
+                return VideoCodecStatus.UNINITIALIZED;
+            }
+            synchronized (this) {
+                lastSubmittedTimestampNs = frame.getTimestampNs();
+                if (pendingFrame != null && pendingFrame.captureTimeNs == lastSubmittedTimestampNs) {
+                    callback.onEncodedFrame(pendingFrame, pendingInfo);
+                    dropPendingFrame();
+                }
+            }
+            return shared.encode(frame, info);
+        }
+
+        @Override
+        public VideoCodecStatus setRates(RateControlParameters parameters) {
+            return shared != null ? shared.setRates(this, parameters) : VideoCodecStatus.UNINITIALIZED;
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return descriptor.getScalingSettings();
+        }
+
+        @Override
+        public String getImplementationName() {
+            return "Shared(" + descriptor.getImplementationName() + ")";
+        }
+
+        @Override
+        public boolean isHardwareEncoder() {
+            return descriptor.isHardwareEncoder();
+        }
+
+        @Override
+        public EncoderInfo getEncoderInfo() {
+            return descriptor.getEncoderInfo();
+        }
+
+        synchronized boolean deliver(EncodedImage frame, CodecSpecificInfo info) {
+            if (callback == null) {
+                return false;
+            }
+            if (frame.captureTimeNs <= lastSubmittedTimestampNs) {
+                callback.onEncodedFrame(frame, info);
+                return true;
+            }
+            // Our sender has not reached this frame yet; hold on to it until it does.
+            dropPendingFrame();
+            frame.retain();
+            pendingFrame = frame;
+            pendingInfo = info;
+            return true;
+        }
+
+        synchronized void dropPendingFrame() {
+            if (pendingFrame != null) {
+                pendingFrame.release();
+                pendingFrame = null;
+                pendingInfo = null;
+            }
+        }
+    }
+}
@@ -2,36 +2,110 @@ package com.dome.streamer.webrtc;
 
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import com.dome.streamer.metrics.Histogram;
+import com.dome.streamer.metrics.MetricsSource;
+import com.dome.streamer.metrics.MetricsWriter;
+import com.dome.streamer.protocol.SignalingCodec;
+import com.dome.streamer.protocol.SignalingMessage;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.ByteString;
 
-public class SignalingClient {
+/**
+ * The streamer's connection to the signaling server. Once registered, a dropped
+ * connection is retried with jittered exponential backoff and the stream resumed
+ * under the same id; PeerConnections don't depend on signaling, so media to
+ * existing viewers keeps flowing through the outage.
+ *
+ * A keepalive ping goes out every keepalive interval and the server echoes it,
+ * which times the signaling round trip. A connection that has received nothing for
+ * the keepalive timeout is presumed dead (a half-open NAT binding, typically) and
+ * torn down, which starts a reconnect.
+ *
+ * With {@link #setBinaryFrames} the handshake also offers CBOR binary frames; the
+ * server picks the subprotocol, and a server that doesn't know it stays on JSON.
+ */
+public class SignalingClient implements MetricsSource {
     private static final String TAG = "SignalingClient";
     
     private final String serverUrl;
+    private volatile String connectUrl;
     private final Listener listener;
-    private WebSocket webSocket;
+    private volatile WebSocket webSocket;
     private final OkHttpClient client;
-    private final Gson gson = new Gson();
+    private final SignalingCodec codec = new SignalingCodec();
     
     private String clientId;
     private String streamId;
+    private PublishMode publishMode = PublishMode.DIRECT;
+    private int openCount;
+    private volatile boolean closing;
+    // Reconnects and keepalive pings
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Signaling"));
+    private long reconnectBaseMs = 500;
+    private long reconnectMaxMs = 30_000;
+    private long keepaliveIntervalMs = 10_000;
+    private long keepaliveTimeoutMs = 25_000;
+    private boolean offerBinaryFrames;
+    private ScheduledFuture<?> keepalive;
+    private final OutboundQueue outbound = new OutboundQueue(codec, scheduler);
+    private volatile long lastReceivedNs;
+    private long smoothedRttMicros;
+    // Guarded by this
+    private boolean registeredOnce;
+    private String resumeToken;
+    private int reconnectAttempt;
+    private long disconnectedAtNs;
+    private TelemetryPublisher telemetry;
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong candidatesSent = new AtomicLong();
+    private final AtomicLong candidateFramesSent = new AtomicLong();
+    private final AtomicLong candidatesReceived = new AtomicLong();
+    private final AtomicLong reconnectAttempts = new AtomicLong();
+    private final AtomicLong streamsResumed = new AtomicLong();
+    private final AtomicLong streamsReregistered = new AtomicLong();
+    private final Histogram reconnectLatency = new Histogram(500, 1000, 2500, 5000, 10000, 30000, 60000);
+    private final Histogram rtt = new Histogram(10, 25, 50, 100, 250, 500, 1000, 2500);
+    private final AtomicLong keepaliveTimeouts = new AtomicLong();
 
     public interface Listener {
         void onConnected(String clientId);
         void onStreamRegistered(String streamId, String embedUrl);
         void onViewerJoined(String viewerId);
-        void onAnswer(String answer, String senderId);
-        void onIceCandidate(String candidate, String senderId);
+        void onViewerLeft(String viewerId);
+        void onRelayAssigned(String relayId);
+        void onRelayLost(String relayId);
+        void onLayerRequest(String viewerId, String rid);
+        void onAnswer(String sdp, String senderId);
+        /** Remote candidates, one or a batch, in the order the peer gathered them. */
+        void onIceCandidates(List<SignalingMessage.Candidate> candidates, String senderId);
         void onError(String error);
+        /** The connection dropped; the next attempt is in {@code delayMs}. */
+        void onReconnecting(int attempt, long delayMs);
+        /**
+         * Registered again after a reconnect. {@code viewerIds} are the viewers the server
+         * has for the stream now; empty when the stream could not be resumed and was
+         * registered afresh, so no earlier viewer is known to the server any more.
+         */
+        void onResumed(List<String> viewerIds);
     }
 
     public SignalingClient(String serverUrl, Listener listener) {
@@ -46,32 +120,131 @@ public class SignalingClient {
         this.streamId = id;
     }
 
+    /**
+     * A token from an earlier run's {@link #getResumeToken()}, presented with the first
+     * registration so a restarted app takes its stream back while the server holds it.
+     */
+    public synchronized void setResumeToken(String token) {
+        this.resumeToken = token;
+    }
+
+    /** The current stream's resume token, set by the time onStreamRegistered is called. */
+    public synchronized String getResumeToken() {
+        return resumeToken;
+    }
+
+    public void setPublishMode(PublishMode mode) {
+        this.publishMode = mode;
+    }
+
+    /**
+     * Reconnect backoff: attempt n waits between half and all of
+     * {@code min(maxMs, baseMs * 2^(n-1))}, so a fleet that lost the server together
+     * does not come back in lockstep.
+     */
+    public void setReconnectBackoff(long baseMs, long maxMs) {
+        this.reconnectBaseMs = baseMs;
+        this.reconnectMaxMs = maxMs;
+    }
+
+    /**
+     * Pings every {@code intervalMs}; a connection silent for {@code timeoutMs} is
+     * dropped and reconnected, so that is the bound on noticing a dead one. 0 turns
+     * the keepalive off. Set before connecting.
+     */
+    public void setKeepalive(long intervalMs, long timeoutMs) {
+        this.keepaliveIntervalMs = intervalMs;
+        this.keepaliveTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Offers CBOR binary frames in the WebSocket handshake; they are used only if the
+     * server accepts them. Multi-kilobyte SDP then goes without JSON escaping and is
+     * decoded without a text parse. Set before connecting.
+     */
+    public void setBinaryFrames(boolean offer) {
+        this.offerBinaryFrames = offer;
+    }
+
+    /** Whether the current connection sends and receives CBOR frames. */
+    public boolean isBinaryFrames() {
+        return outbound.isBinary();
+    }
+
     public void connect() {
         connect(this.serverUrl);
     }
 
-    public void connect(String url) {
-        Request request = new Request.Builder()
-                .url(url)
-                .build();
+    // Synchronized so a failure callback can't run before webSocket holds the new socket
+    public synchronized void connect(String url) {
+        connectUrl = url;
+        lastReceivedNs = System.nanoTime();
+        if (keepalive == null && keepaliveIntervalMs > 0) {
+            try {
+                keepalive = scheduler.scheduleAtFixedRate(this::keepalive,
+                        keepaliveIntervalMs, keepaliveIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Keepalive not started, client is shut down");
+            }
+        }
+        Request.Builder request = new Request.Builder()
+                .url(url);
+        if (offerBinaryFrames) {
+            // JSON first: a server that doesn't choose takes the first offered protocol
+            request.header("Sec-WebSocket-Protocol", SignalingCodec.JSON_PROTOCOL + ", " + SignalingCodec.CBOR_PROTOCOL);
+        }
 
         Log.d(TAG, "Attempting to connect to " + url);
-        webSocket = client.newWebSocket(request, new WebSocketListener() {
+        WebSocket socket = client.newWebSocket(request.build(), new WebSocketListener() {
             @Override
             public void onOpen(WebSocket webSocket, Response response) {
-                Log.d(TAG, "WebSocket connected successfully");
+                boolean binary = SignalingCodec.CBOR_PROTOCOL.equals(response.header("Sec-WebSocket-Protocol"));
+                Log.d(TAG, "WebSocket connected successfully" + (binary ? " with binary frames" : ""));
+                synchronized (SignalingClient.this) {
+                    openCount++;
+                    if (webSocket == SignalingClient.this.webSocket) {
+                        outbound.useBinary(binary);
+                    }
+                }
             }
 
             @Override
             public void onMessage(WebSocket webSocket, String text) {
-                Log.d(TAG, "Received message: " + text);
-                handleMessage(text);
+                lastReceivedNs = System.nanoTime();
+                messagesReceived.incrementAndGet();
+                bytesReceived.addAndGet(text.length());
+                SignalingMessage message;
+                try {
+                    message = codec.decode(text);
+                } catch (IOException | RuntimeException e) {
+                    parseFailed(e);
+                    return;
+                }
+                // Type and size only: frames carry SDP, candidates and resume tokens
+                Log.d(TAG, "Received " + message.type + " (" + text.length() + " chars)");
+                handleMessage(message);
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, ByteString bytes) {
+                lastReceivedNs = System.nanoTime();
+                messagesReceived.incrementAndGet();
+                bytesReceived.addAndGet(bytes.size());
+                SignalingMessage message;
+                try {
+                    message = codec.decode(bytes.toByteArray());
+                } catch (IOException | RuntimeException e) {
+                    parseFailed(e);
+                    return;
+                }
+                Log.d(TAG, "Received binary " + message.type + " (" + bytes.size() + " bytes)");
+                handleMessage(message);
             }
 
             @Override
             public void onFailure(WebSocket webSocket, Throwable t, Response response) {
                 Log.e(TAG, "WebSocket failure", t);
-                listener.onError("Connection failed: " + t.getMessage());
+                connectionLost(webSocket, "Connection failed: " + t.getMessage());
             }
 
             @Override
@@ -82,139 +255,289 @@ public class SignalingClient {
             @Override
             public void onClosed(WebSocket webSocket, int code, String reason) {
                 Log.d(TAG, "WebSocket closed code: " + code + " reason: " + reason);
+                connectionLost(webSocket, "Connection closed: " + reason);
             }
         });
+        webSocket = socket;
+        outbound.attach(socket);
     }
 
-    private void handleMessage(String message) {
+    private void connectionLost(WebSocket socket, String reason) {
+        int attempt;
+        long delayMs;
+        synchronized (this) {
+            if (closing || socket != webSocket) {
+                return; // closed on purpose, or a socket already replaced
+            }
+            webSocket = null;
+            outbound.attach(null);
+            if (!registeredOnce) {
+                attempt = 0;
+                delayMs = 0;
+            } else {
+                if (disconnectedAtNs == 0) {
+                    disconnectedAtNs = System.nanoTime();
+                }
+                attempt = ++reconnectAttempt;
+                long ceiling = Math.min(reconnectMaxMs, reconnectBaseMs << Math.min(attempt - 1, 16));
+                delayMs = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+            }
+        }
+        if (attempt == 0) {
+            // Never got as far as registering: likely a wrong URL, so tell the user instead
+            listener.onError(reason);
+            return;
+        }
+        Log.d(TAG, "Reconnecting in " + delayMs + " ms, attempt " + attempt);
+        reconnectAttempts.incrementAndGet();
         try {
-            JsonObject json = gson.fromJson(message, JsonObject.class);
-            String type = json.has("type") ? json.get("type").getAsString() : null;
+            scheduler.schedule(() -> {
+                if (!closing) {
+                    connect(connectUrl);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return; // disconnected meanwhile
+        }
+        listener.onReconnecting(attempt, delayMs);
+    }
 
-            if (type == null) return;
+    private void keepalive() {
+        WebSocket socket = webSocket;
+        if (socket == null) {
+            return; // a reconnect is pending
+        }
+        long now = System.nanoTime();
+        if (now - lastReceivedNs > TimeUnit.MILLISECONDS.toNanos(keepaliveTimeoutMs)) {
+            Log.w(TAG, "Nothing received for " + keepaliveTimeoutMs + " ms, dropping the connection");
+            keepaliveTimeouts.incrementAndGet();
+            socket.cancel(); // fails the socket, which reconnects
+            return;
+        }
+        send(SignalingMessage.Ping.ping(now / 1000));
+    }
 
-            switch (type) {
-                case "connected":
-                    clientId = json.has("clientId") ? json.get("clientId").getAsString() : null;
-                    if (clientId != null) {
-                        listener.onConnected(clientId);
-                        registerAsStreamer();
-                    }
-                    break;
+    private void onPong(long sentAtMicros) {
+        long sample = System.nanoTime() / 1000 - sentAtMicros;
+        if (sentAtMicros <= 0 || sample < 0) {
+            return;
+        }
+        rtt.observeMicros(sample);
+        synchronized (this) {
+            // As TCP's SRTT: an exponentially weighted mean with gain 1/8
+            smoothedRttMicros = smoothedRttMicros == 0 ? sample : smoothedRttMicros + (sample - smoothedRttMicros) / 8;
+        }
+    }
 
-                case "registered":
-                    streamId = json.has("streamId") ? json.get("streamId").getAsString() : null;
-                    String embedUrl = json.has("embedUrl") ? json.get("embedUrl").getAsString() : null;
-                    if (streamId != null && embedUrl != null) {
-                        listener.onStreamRegistered(streamId, embedUrl);
-                    }
-                    break;
+    /** Smoothed signaling round trip in milliseconds, 0 before the first pong. */
+    public synchronized long getSmoothedRttMs() {
+        return smoothedRttMicros / 1000;
+    }
 
-                case "viewer-joined":
-                    String viewerId = json.has("viewerId") ? json.get("viewerId").getAsString() : null;
-                    if (viewerId != null) {
-                        listener.onViewerJoined(viewerId);
-                    }
-                    break;
-
-                case "answer":
-                    String answer = null;
-                    try {
-                        if (json.has("answer")) {
-                            if (json.get("answer").isJsonObject()) {
-                                answer = json.get("answer").getAsJsonObject().toString();
-                            } else {
-                                answer = json.get("answer").getAsString();
-                            }
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error parsing answer", e);
-                    }
-                    String senderId = json.has("senderId") ? json.get("senderId").getAsString() : null;
-                    if (answer != null && senderId != null) {
-                        listener.onAnswer(answer, senderId);
-                    }
-                    break;
-
-                case "ice-candidate":
-                    String candidate = json.has("candidate") ? json.get("candidate").toString() : null; // Keep as string or object depending on usage
-                    // Actually, getting as String from JsonElement might give quoted string if it's a string, or json repr if object
-                    // Looking at Kotlin code: json.get("candidate")?.toString()
-                    // If candidate is a JSON object in the message, toString() returns the JSON string.
-                    String candidateSenderId = json.has("senderId") ? json.get("senderId").getAsString() : null;
-                    if (candidate != null && candidateSenderId != null) {
-                        listener.onIceCandidate(candidate, candidateSenderId);
-                    }
-                    break;
+    private void parseFailed(Exception e) {
+        Log.e(TAG, "Failed to parse message", e);
+        listener.onError("Failed to parse message: " + e.getMessage());
+    }
 
-                case "error":
-                    String errorMsg = json.has("message") ? json.get("message").getAsString() : "Unknown error";
-                    listener.onError(errorMsg);
-                    break;
+    private void handleMessage(SignalingMessage message) {
+        if (message instanceof SignalingMessage.Connected) {
+            clientId = ((SignalingMessage.Connected) message).clientId;
+            if (clientId != null) {
+                listener.onConnected(clientId);
+                registerAsStreamer();
+            }
+        } else if (message instanceof SignalingMessage.Registered) {
+            SignalingMessage.Registered registered = (SignalingMessage.Registered) message;
+            streamId = registered.streamId;
+            boolean reconnected;
+            long downSinceNs;
+            synchronized (this) {
+                reconnected = registeredOnce;
+                registeredOnce = true;
+                resumeToken = registered.resumeToken;
+                reconnectAttempt = 0;
+                downSinceNs = disconnectedAtNs;
+                disconnectedAtNs = 0;
+            }
+            if (streamId != null && registered.embedUrl != null) {
+                listener.onStreamRegistered(streamId, registered.embedUrl);
+            }
+            if (reconnected) {
+                if (downSinceNs != 0) {
+                    reconnectLatency.observeNanos(System.nanoTime() - downSinceNs);
+                }
+                Log.d(TAG, registered.resumed ? "Stream resumed" : "Stream registered afresh after reconnect");
+                (registered.resumed ? streamsResumed : streamsReregistered).incrementAndGet();
+            }
+            // A restarted app that presented a saved token gets its viewers back too
+            if (reconnected || registered.resumed) {
+                listener.onResumed(registered.resumed ? registered.viewers : Collections.<String>emptyList());
+            }
+        } else if (message instanceof SignalingMessage.ViewerEvent) {
+            SignalingMessage.ViewerEvent event = (SignalingMessage.ViewerEvent) message;
+            if (event.viewerId == null) {
+                return;
+            }
+            if (event.isJoin()) {
+                listener.onViewerJoined(event.viewerId);
+            } else {
+                listener.onViewerLeft(event.viewerId);
+            }
+        } else if (message instanceof SignalingMessage.RelayEvent) {
+            SignalingMessage.RelayEvent event = (SignalingMessage.RelayEvent) message;
+            if (event.relayId == null) {
+                return;
+            }
+            if (event.isAssigned()) {
+                listener.onRelayAssigned(event.relayId);
+            } else {
+                listener.onRelayLost(event.relayId);
+            }
+        } else if (message instanceof SignalingMessage.LayerRequest) {
+            SignalingMessage.LayerRequest request = (SignalingMessage.LayerRequest) message;
+            if (request.viewerId != null) {
+                listener.onLayerRequest(request.viewerId, request.layer);
+            }
+        } else if (message instanceof SignalingMessage.Description) {
+            SignalingMessage.Description description = (SignalingMessage.Description) message;
+            if ("answer".equals(description.type) && message.senderId != null) {
+                listener.onAnswer(description.description.sdp, message.senderId);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to parse message", e);
-            listener.onError("Failed to parse message: " + e.getMessage());
+        } else if (message instanceof SignalingMessage.IceCandidate) {
+            if (message.senderId != null) {
+                candidatesReceived.incrementAndGet();
+                listener.onIceCandidates(
+                        Collections.singletonList(((SignalingMessage.IceCandidate) message).candidate), message.senderId);
+            }
+        } else if (message instanceof SignalingMessage.IceCandidates) {
+            List<SignalingMessage.Candidate> candidates = ((SignalingMessage.IceCandidates) message).candidates;
+            if (message.senderId != null && !candidates.isEmpty()) {
+                candidatesReceived.addAndGet(candidates.size());
+                listener.onIceCandidates(candidates, message.senderId);
+            }
+        } else if (message instanceof SignalingMessage.Ping) {
+            SignalingMessage.Ping ping = (SignalingMessage.Ping) message;
+            if (ping.isPong()) {
+                onPong(ping.sentAt);
+            }
+        } else if (message instanceof SignalingMessage.ServerError) {
+            listener.onError(((SignalingMessage.ServerError) message).message);
         }
     }
 
     private void registerAsStreamer() {
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "register-streamer");
-        if (streamId != null) {
-            message.addProperty("streamId", streamId);
+        String token;
+        synchronized (this) {
+            token = resumeToken;
         }
-        send(message.toString());
+        send(new SignalingMessage.RegisterStreamer(streamId, publishMode.wireName(), token));
     }
 
-    public void sendOffer(String offer, String targetId) {
-        // offer is already a JSON string
-        JsonObject offerJson = gson.fromJson(offer, JsonObject.class);
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "offer");
-        message.add("offer", offerJson);
-        message.addProperty("targetId", targetId);
-        send(message.toString());
+    public void sendOffer(String sdp, String targetId) {
+        send(SignalingMessage.Description.offer(sdp, targetId));
     }
 
-    public void sendAnswer(String answer, String targetId) {
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "answer");
-        message.addProperty("answer", answer);
-        message.addProperty("targetId", targetId);
-        send(message.toString());
+    public void sendAnswer(String sdp, String targetId) {
+        send(SignalingMessage.Description.answer(sdp, targetId));
     }
 
-    public void sendIceCandidate(String candidate, String targetId) {
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "ice-candidate");
-        // candidate might be a JSON object string, we want to add it as a property or nested object?
-        // In Kotlin: addProperty("candidate", candidate) where candidate was a string.
-        // But in WebRTCClient.kt it constructs a JSON string: val candidateJson = """ ... """
-        // So passing that string as property value is correct if we want it to be a string in the JSON payload
-        // OR if it's a JSON structure we might want to add(..., jsonElement).
-        // Let's stick to adding as property if uncertain, or parse and add.
-        // The server relays it. If receiver expects JSON object, we should probably send it as one or string.
-        // Kotlin: addProperty("candidate", candidate) -> adds as String.
-        message.addProperty("candidate", candidate); 
-        message.addProperty("targetId", targetId);
-        send(message.toString());
+    /** Sends local candidates, one or a batch, in one frame. */
+    public void sendIceCandidates(List<SignalingMessage.Candidate> candidates, String targetId) {
+        // A lone candidate keeps the single-candidate form older peers understand
+        if (candidates.size() == 1) {
+            send(new SignalingMessage.IceCandidate(candidates.get(0), targetId));
+        } else {
+            send(new SignalingMessage.IceCandidates(candidates, targetId));
+        }
+        candidatesSent.addAndGet(candidates.size());
+        candidateFramesSent.incrementAndGet();
     }
 
-    private void send(String message) {
-        if (webSocket != null) {
-            webSocket.send(message);
+    private void send(SignalingMessage message) {
+        outbound.enqueue(message);
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter out) {
+        outbound.writeMetrics(out);
+        out.counter("dome_signaling_messages_received_total", "Signaling messages received", messagesReceived.get());
+        out.counter("dome_signaling_bytes_received_total",
+                "Signaling payload received: characters of text frames, bytes of binary ones", bytesReceived.get());
+        out.gauge("dome_signaling_binary_frames", "1 while the connection uses CBOR binary frames",
+                isBinaryFrames() ? 1 : 0);
+        out.counter("dome_signaling_candidates_sent_total", "Local ICE candidates sent", candidatesSent.get());
+        out.counter("dome_signaling_candidate_frames_sent_total", "Frames carrying local ICE candidates",
+                candidateFramesSent.get());
+        out.counter("dome_signaling_candidates_received_total", "Remote ICE candidates received", candidatesReceived.get());
+        out.counter("dome_signaling_reconnect_attempts_total", "Reconnect attempts scheduled after a dropped connection",
+                reconnectAttempts.get());
+        out.histogram("dome_signaling_reconnect_seconds", "Connection lost to registered again", reconnectLatency);
+        out.family("dome_signaling_reregistrations_total", "counter", "Registrations after a reconnect, by outcome");
+        out.sample("dome_signaling_reregistrations_total", "outcome", "resumed", streamsResumed.get());
+        out.sample("dome_signaling_reregistrations_total", "outcome", "fresh", streamsReregistered.get());
+        out.histogram("dome_signaling_rtt_seconds", "Keepalive ping to pong", rtt);
+        out.gauge("dome_signaling_rtt_smoothed_ms", "Smoothed keepalive round trip", getSmoothedRttMs());
+        out.counter("dome_signaling_keepalive_timeouts_total", "Connections dropped for silence past the keepalive timeout",
+                keepaliveTimeouts.get());
+        out.counter("dome_signaling_reconnects_total", "Signaling connections opened after the first", getReconnectCount());
+        TelemetryPublisher publisher = telemetry;
+        if (publisher != null) {
+            out.counter("dome_telemetry_reports_total", "Telemetry reports sent", publisher.getReportsSent());
+            out.counter("dome_telemetry_samples_thinned_total", "Telemetry samples dropped to fit the budget",
+                    publisher.getSamplesThinned());
         }
     }
 
-    public void disconnect() {
-        if (streamId != null) {
-            JsonObject message = new JsonObject();
-            message.addProperty("type", "stop-stream");
-            send(message.toString());
+    /** Connections opened after the first one. */
+    public synchronized int getReconnectCount() {
+        return Math.max(0, openCount - 1);
+    }
+
+    /**
+     * Starts periodic {@code stream-stats} reports. Health comes from {@code source};
+     * the reconnect count is filled in here.
+     */
+    public TelemetryPublisher startTelemetry(TelemetryPublisher.Source source) {
+        stopTelemetry();
+        telemetry = new TelemetryPublisher(health -> {
+            source.sample(health);
+            health.reconnects = getReconnectCount();
+        }, this::trySendTelemetry);
+        telemetry.start();
+        return telemetry;
+    }
+
+    public void stopTelemetry() {
+        if (telemetry != null) {
+            telemetry.stop();
+            telemetry = null;
+        }
+    }
+
+    /**
+     * Telemetry only goes out on an idle socket, so it never queues ahead of an offer,
+     * answer or candidate.
+     */
+    private boolean trySendTelemetry(String report) {
+        if (webSocket == null || streamId == null || !outbound.isIdle()) {
+            return false;
         }
-        if (webSocket != null) {
-            webSocket.close(1000, "Closing connection");
+        outbound.enqueue(OutboundQueue.Priority.TELEMETRY, report);
+        return true;
+    }
+
+    public void disconnect() {
+        closing = true;
+        scheduler.shutdownNow();
+        stopTelemetry();
+        outbound.attach(null);
+        WebSocket socket = webSocket;
+        if (socket != null) {
+            if (streamId != null) {
+                // Straight to the socket: the queue's retries stopped with the scheduler
+                socket.send(codec.encode(new SignalingMessage.Bare("stop-stream")));
+            }
+            socket.close(1000, "Closing connection");
             webSocket = null;
         }
     }
@@ -0,0 +1,34 @@
+package com.dome.streamer.webrtc;
+
+import org.webrtc.RtpParameters;
+
+/**
+ * Video layers the camera can publish. A relay session carries all of them as
+ * simulcast encodings; a direct session carries the single layer its viewer picked.
+ */
+public enum SimulcastLayer {
+    FULL("f", 1.0),
+    HALF("h", 2.0),
+    QUARTER("q", 4.0);
+
+    public final String rid;
+    public final double scaleResolutionDownBy;
+
+    SimulcastLayer(String rid, double scaleResolutionDownBy) {
+        this.rid = rid;
+        this.scaleResolutionDownBy = scaleResolutionDownBy;
+    }
+
+    RtpParameters.Encoding toEncoding() {
+        return new RtpParameters.Encoding(rid, true, scaleResolutionDownBy);
+    }
+
+    public static SimulcastLayer fromRid(String rid) {
+        for (SimulcastLayer layer : values()) {
+            if (layer.rid.equals(rid)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,46 @@
+package com.dome.streamer.webrtc;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Milestones of media engine startup, in milliseconds since the client was created.
+ * Phases that run in parallel are recorded as they finish, so the order shows
+ * which branch was on the critical path.
+ */
+public class StartupTimings {
+    private final long originMs = SystemClock.elapsedRealtime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public synchronized void mark(String phase) {
+        phases.put(phase, SystemClock.elapsedRealtime() - originMs);
+    }
+
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    /** Time from process start to a phase, i.e. what a cold start actually costs; -1 if not reached. */
+    public synchronized long sinceProcessStartMs(String phase) {
+        Long elapsed = phases.get(phase);
+        if (elapsed == null) {
+            return -1;
+        }
+        return originMs + elapsed - Process.getStartElapsedRealtime();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(phase.getKey()).append('=').append(phase.getValue()).append("ms");
+        }
+        return builder.toString();
+    }
+}
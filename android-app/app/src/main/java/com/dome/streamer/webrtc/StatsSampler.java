@@ -0,0 +1,217 @@
+package com.dome.streamer.webrtc;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a short history of sender stats for every viewer session. Each viewer gets
+ * fixed-size ring buffers of primitives, allocated once when its first sample
+ * arrives, so recording a sample allocates nothing. Rates (bitrate, encode time) are
+ * derived from the counter deltas between consecutive samples.
+ *
+ * Samples are recorded from the media thread; queries may come from any thread.
+ * Missing values (no RTCP yet, say) are stored as NaN and skipped by the queries.
+ */
+public class StatsSampler {
+    public enum Metric {
+        FPS,
+        BITRATE_BPS,
+        RTT_MS,
+        JITTER_MS,
+        FRACTION_LOST,
+        ENCODE_MS_PER_FRAME
+    }
+
+    public enum Limitation {
+        NONE, BANDWIDTH, CPU, OTHER;
+
+        static Limitation fromReason(String reason) {
+            if (reason == null || "none".equals(reason)) {
+                return NONE;
+            }
+            if ("bandwidth".equals(reason)) {
+                return BANDWIDTH;
+            }
+            return "cpu".equals(reason) ? CPU : OTHER;
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+    private static final Limitation[] LIMITATIONS = Limitation.values();
+
+    private final int capacity;
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+
+    /** {@code capacity} samples are kept per viewer; older ones are overwritten. */
+    public StatsSampler(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    public void record(String viewerId, StreamStats stats) {
+        History history = histories.get(viewerId);
+        if (history == null) {
+            history = new History(capacity);
+            histories.put(viewerId, history);
+        }
+        history.record(stats);
+    }
+
+    public void remove(String viewerId) {
+        histories.remove(viewerId);
+    }
+
+    public void clear() {
+        histories.clear();
+    }
+
+    public Set<String> getViewerIds() {
+        return histories.keySet();
+    }
+
+    public int getSampleCount(String viewerId) {
+        History history = histories.get(viewerId);
+        return history != null ? history.getSize() : 0;
+    }
+
+    /** Nearest-rank percentile ({@code percentile} in 0..100) over the stored samples, or NaN. */
+    public double getPercentile(String viewerId, Metric metric, double percentile) {
+        History history = histories.get(viewerId);
+        return history != null ? history.percentile(metric, percentile) : Double.NaN;
+    }
+
+    public double getMean(String viewerId, Metric metric) {
+        History history = histories.get(viewerId);
+        return history != null ? history.mean(metric) : Double.NaN;
+    }
+
+    public double getLatest(String viewerId, Metric metric) {
+        History history = histories.get(viewerId);
+        return history != null ? history.latest(metric) : Double.NaN;
+    }
+
+    /** Share (0..1) of the stored samples whose quality limitation was {@code limitation}, or NaN. */
+    public double getLimitationShare(String viewerId, Limitation limitation) {
+        History history = histories.get(viewerId);
+        return history != null ? history.limitationShare(limitation) : Double.NaN;
+    }
+
+    private static class History {
+        final long[] timestampsMs;
+        final double[][] values;
+        final byte[] limitations;
+        final double[] scratch;
+        int head;
+        int size;
+
+        // Counters from the previous sample, to turn totals into rates
+        boolean hasPrevious;
+        long previousTimestampMs;
+        long previousBytesSent;
+        long previousFramesEncoded;
+        double previousEncodeTimeSec;
+
+        History(int capacity) {
+            timestampsMs = new long[capacity];
+            values = new double[METRICS.length][capacity];
+            limitations = new byte[capacity];
+            scratch = new double[capacity];
+        }
+
+        synchronized void record(StreamStats stats) {
+            double bitrateBps = Double.NaN;
+            double encodeMsPerFrame = Double.NaN;
+            if (hasPrevious && stats.timestampMs > previousTimestampMs) {
+                bitrateBps = (stats.bytesSent - previousBytesSent) * 8000.0 / (stats.timestampMs - previousTimestampMs);
+                long frames = stats.framesEncoded - previousFramesEncoded;
+                if (frames > 0) {
+                    encodeMsPerFrame = (stats.totalEncodeTimeSec - previousEncodeTimeSec) * 1000 / frames;
+                }
+            }
+            hasPrevious = true;
+            previousTimestampMs = stats.timestampMs;
+            previousBytesSent = stats.bytesSent;
+            previousFramesEncoded = stats.framesEncoded;
+            previousEncodeTimeSec = stats.totalEncodeTimeSec;
+
+            int slot = head;
+            timestampsMs[slot] = stats.timestampMs;
+            values[Metric.FPS.ordinal()][slot] = stats.framesPerSecond;
+            values[Metric.BITRATE_BPS.ordinal()][slot] = bitrateBps;
+            values[Metric.RTT_MS.ordinal()][slot] = stats.roundTripTimeSec >= 0 ? stats.roundTripTimeSec * 1000 : Double.NaN;
+            values[Metric.JITTER_MS.ordinal()][slot] = stats.jitterSec >= 0 ? stats.jitterSec * 1000 : Double.NaN;
+            values[Metric.FRACTION_LOST.ordinal()][slot] = stats.fractionLost >= 0 ? stats.fractionLost : Double.NaN;
+            values[Metric.ENCODE_MS_PER_FRAME.ordinal()][slot] = encodeMsPerFrame;
+            limitations[slot] = (byte) Limitation.fromReason(stats.qualityLimitationReason).ordinal();
+
+            head = (head + 1) % timestampsMs.length;
+            if (size < timestampsMs.length) {
+                size++;
+            }
+        }
+
+        synchronized int getSize() {
+            return size;
+        }
+
+        synchronized double percentile(Metric metric, double percentile) {
+            int count = copyPresent(values[metric.ordinal()]);
+            if (count == 0) {
+                return Double.NaN;
+            }
+            Arrays.sort(scratch, 0, count);
+            double clamped = Math.max(0, Math.min(100, percentile));
+            int rank = (int) Math.ceil(clamped / 100 * count);
+            return scratch[Math.max(rank, 1) - 1];
+        }
+
+        synchronized double mean(Metric metric) {
+            double[] series = values[metric.ordinal()];
+            double sum = 0;
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (!Double.isNaN(series[i])) {
+                    sum += series[i];
+                    count++;
+                }
+            }
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        synchronized double latest(Metric metric) {
+            if (size == 0) {
+                return Double.NaN;
+            }
+            int last = (head - 1 + timestampsMs.length) % timestampsMs.length;
+            return values[metric.ordinal()][last];
+        }
+
+        synchronized double limitationShare(Limitation limitation) {
+            if (size == 0) {
+                return Double.NaN;
+            }
+            int matching = 0;
+            for (int i = 0; i < size; i++) {
+                if (LIMITATIONS[limitations[i]] == limitation) {
+                    matching++;
+                }
+            }
+            return (double) matching / size;
+        }
+
+        /** Copies the non-NaN values into {@link #scratch}; order does not matter to the callers. */
+        private int copyPresent(double[] series) {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (!Double.isNaN(series[i])) {
+                    scratch[count++] = series[i];
+                }
+            }
+            return count;
+        }
+    }
+}
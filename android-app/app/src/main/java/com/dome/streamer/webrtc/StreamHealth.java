@@ -0,0 +1,20 @@
+package com.dome.streamer.webrtc;
+
+/**
+ * One device-level health reading for fleet telemetry. Filled in place by
+ * {@link TelemetryPublisher.Source}, so taking a reading allocates nothing.
+ */
+public class StreamHealth {
+    public long timestampMs;
+    /** Total video send bitrate across all sessions. */
+    public long bitrateBps;
+    /** Highest send frame rate of any session. */
+    public double framesPerSecond;
+    public int viewers;
+    /** This process's CPU use since the previous reading, 0..100 across all cores. */
+    public double cpuPercent;
+    /** Ordinal of the current {@link QualityGovernor.Tier}. */
+    public int tier;
+    /** Signaling reconnects since the client was created. */
+    public int reconnects;
+}
@@ -0,0 +1,88 @@
+package com.dome.streamer.webrtc;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Map;
+
+/**
+ * One getStats sample for a video sender, reduced to the numbers the bitrate
+ * controller and the stats sampler care about. Simulcast layers are folded
+ * together: byte and frame counters are summed, rates take the top layer.
+ */
+public class StreamStats {
+    public long timestampMs;
+    public long bytesSent;
+    public long framesEncoded;
+    public double framesPerSecond;
+    public double totalEncodeTimeSec;
+    /** Seconds, from remote-inbound-rtp or the nominated candidate pair; -1 when unknown. */
+    public double roundTripTimeSec = -1;
+    /** 0..1 as reported by the receiver in RTCP; -1 when unknown. */
+    public double fractionLost = -1;
+    public double jitterSec = -1;
+    public double availableOutgoingBitrate = -1;
+    /** "none", "bandwidth", "cpu" or "other". */
+    public String qualityLimitationReason = "none";
+    /** WebRTC codec name ("H264", "VP8", ...) of the top layer, or null before negotiation. */
+    public String codecName;
+
+    public static StreamStats fromReport(RTCStatsReport report) {
+        StreamStats stats = new StreamStats();
+        stats.timestampMs = (long) (report.getTimestampUs() / 1000);
+
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        for (RTCStats entry : statsMap.values()) {
+            Map<String, Object> members = entry.getMembers();
+            switch (entry.getType()) {
+                case "outbound-rtp":
+                    if (!"video".equals(members.get("kind"))) {
+                        break;
+                    }
+                    stats.bytesSent += asLong(members.get("bytesSent"));
+                    stats.framesEncoded += asLong(members.get("framesEncoded"));
+                    stats.totalEncodeTimeSec += asDouble(members.get("totalEncodeTime"), 0);
+                    stats.framesPerSecond = Math.max(stats.framesPerSecond, asDouble(members.get("framesPerSecond"), 0));
+                    Object reason = members.get("qualityLimitationReason");
+                    if (reason != null && !"none".equals(reason)) {
+                        stats.qualityLimitationReason = reason.toString();
+                    }
+                    RTCStats codec = statsMap.get(String.valueOf(members.get("codecId")));
+                    Object mimeType = codec != null ? codec.getMembers().get("mimeType") : null;
+                    if (mimeType != null) {
+                        // "video/H264" -> "H264"
+                        String mime = mimeType.toString();
+                        stats.codecName = mime.substring(mime.indexOf('/') + 1).toUpperCase(java.util.Locale.ROOT);
+                    }
+                    break;
+
+                case "remote-inbound-rtp":
+                    if (!"video".equals(members.get("kind"))) {
+                        break;
+                    }
+                    stats.roundTripTimeSec = Math.max(stats.roundTripTimeSec, asDouble(members.get("roundTripTime"), -1));
+                    stats.fractionLost = Math.max(stats.fractionLost, asDouble(members.get("fractionLost"), -1));
+                    stats.jitterSec = Math.max(stats.jitterSec, asDouble(members.get("jitter"), -1));
+                    break;
+
+                case "candidate-pair":
+                    if (Boolean.TRUE.equals(members.get("nominated"))) {
+                        stats.availableOutgoingBitrate = asDouble(members.get("availableOutgoingBitrate"), -1);
+                        if (stats.roundTripTimeSec < 0) {
+                            stats.roundTripTimeSec = asDouble(members.get("currentRoundTripTime"), -1);
+                        }
+                    }
+                    break;
+            }
+        }
+        return stats;
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double asDouble(Object value, double fallback) {
+        return value instanceof Number ? ((Number) value).doubleValue() : fallback;
+    }
+}
@@ -0,0 +1,130 @@
+package com.dome.streamer.webrtc;
+
+import android.util.Log;
+
+import com.dome.streamer.protocol.TelemetryEncoder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples device health on its own thread and sends it in batched, delta-encoded
+ * {@code stream-stats} reports. Reports are held to {@link #budgetBytesPerMinute}
+ * with a token bucket; a batch that does not fit is thinned to fewer samples rather
+ * than sent late in full. The sink may refuse a report (the socket is busy with
+ * negotiation, say); the batch is then kept and retried with the next one.
+ */
+public class TelemetryPublisher {
+    private static final String TAG = "TelemetryPublisher";
+
+    public interface Source {
+        /** Fills {@code health}; called on the telemetry thread. */
+        void sample(StreamHealth health);
+    }
+
+    public interface Sink {
+        /** Sends a report, or returns false without sending when now is not a good time. */
+        boolean trySend(String report);
+    }
+
+    public long sampleIntervalMs = 5000;
+    /** Samples per report; reports go out every sampleIntervalMs * samplesPerReport. */
+    public int samplesPerReport = 6;
+    public int budgetBytesPerMinute = 2048;
+
+    private final Source source;
+    private final Sink sink;
+    private final StreamHealth health = new StreamHealth();
+    private TelemetryEncoder encoder;
+    private ScheduledExecutorService scheduler;
+
+    private double budgetBytes;
+    private long lastRefillMs;
+    private long reportsSent;
+    private long bytesSent;
+    private long samplesThinned;
+
+    public TelemetryPublisher(Source source, Sink sink) {
+        this.source = source;
+        this.sink = sink;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        // Room for a few missed reports before older samples get thinned out
+        encoder = new TelemetryEncoder(samplesPerReport * 4);
+        budgetBytes = budgetBytesPerMinute;
+        lastRefillMs = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Telemetry"));
+        scheduler.scheduleAtFixedRate(this::tick, sampleIntervalMs, sampleIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    public synchronized long getReportsSent() {
+        return reportsSent;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** Samples dropped to stay within the budget or because reports could not be sent. */
+    public synchronized long getSamplesThinned() {
+        return samplesThinned;
+    }
+
+    private synchronized void tick() {
+        try {
+            source.sample(health);
+            if (encoder.isFull()) {
+                thin();
+            }
+            encoder.add(health.timestampMs, health.bitrateBps / 1000, Math.round(health.framesPerSecond),
+                    health.viewers, Math.round(health.cpuPercent), health.tier, health.reconnects);
+            if (encoder.size() >= samplesPerReport) {
+                flush();
+            }
+        } catch (RuntimeException e) {
+            // A failing source must not kill the schedule.
+            Log.w(TAG, "Telemetry sample failed", e);
+        }
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        budgetBytes = Math.min(budgetBytesPerMinute,
+                budgetBytes + (now - lastRefillMs) * budgetBytesPerMinute / 60_000.0);
+        lastRefillMs = now;
+
+        CharSequence report = encoder.encode();
+        while (report.length() > budgetBytes && encoder.size() > 1) {
+            thin();
+            report = encoder.encode();
+        }
+        if (report.length() > budgetBytes) {
+            return; // even one sample is over budget; wait for the bucket to refill
+        }
+        int length = report.length();
+        if (sink.trySend(report.toString())) {
+            budgetBytes -= length;
+            reportsSent++;
+            bytesSent += length;
+            encoder.clear();
+        }
+    }
+
+    private void thin() {
+        int before = encoder.size();
+        encoder.thin();
+        samplesThinned += before - encoder.size();
+    }
+}
@@ -0,0 +1,80 @@
+package com.dome.streamer.webrtc;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.RtpSender;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * One viewer's PeerConnection. Every session shares the client's local tracks,
+ * so adding a viewer costs a connection, not another camera pipeline.
+ */
+class ViewerSession implements MediaEngine.Session {
+    final String viewerId;
+    final boolean simulcast;
+    final NegotiationMode negotiationMode;
+    final long createdAtNs;
+    PeerConnection peerConnection;
+    RtpSender videoSender;
+    /** The layer a direct viewer asked for; simulcast sessions take theirs from each encoding's rid. */
+    SimulcastLayer layer = SimulcastLayer.FULL;
+    BitrateController bitrateController;
+    /** When the offer was started, for negotiation latency; 0 once the answer is in. */
+    long offerStartedNs;
+    /** When an ICE restart's offer was started, timed apart from first offers; 0 once its answer is in. */
+    long restartStartedNs;
+    /** bytesSent at the last stats sample, to count bytes sent across samples. */
+    long lastBytesSent;
+    /** Half-trickle: local candidates are left to the offer's SDP until it has gone out. */
+    boolean holdCandidates;
+    /** Half-trickle: the offer callback while gathering runs, null once the offer is out. */
+    WebRTCClient.Callback<String> gatheringCallback;
+    ScheduledFuture<?> gatheringDeadline;
+    long gatheringStartedNs;
+    /** Remote candidates can only be added once the answer is applied; until then they wait here. */
+    boolean remoteDescriptionSet;
+    /** Created on first use, so sessions that never buffer don't pay for it. */
+    ArrayDeque<IceCandidate> pendingRemoteCandidates;
+    /** Set when ICE first connects, which is when time-to-connected is observed. */
+    boolean connected;
+    /** When connectivity was lost (network gone or ICE disconnected); 0 while connected. */
+    long disconnectedAtNs;
+    /** ICE restarts since the session was last connected. */
+    int iceRestarts;
+    /** The pending ICE restart, or the check that retries one that didn't reconnect. */
+    ScheduledFuture<?> restartCheck;
+    /** The configuration the connection was created with; network preference changes go through it. */
+    PeerConnection.RTCConfiguration rtcConfig;
+    /** Null without a network policy. */
+    PathMonitor pathMonitor;
+    /** Whether the selected pair was on cellular at the last path check. */
+    boolean onCellular;
+    long lastCellularBytesSent;
+
+    ViewerSession(String viewerId, boolean simulcast, NegotiationMode negotiationMode) {
+        this.viewerId = viewerId;
+        this.simulcast = simulcast;
+        this.negotiationMode = negotiationMode;
+        this.createdAtNs = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        if (restartCheck != null) {
+            restartCheck.cancel(false);
+            restartCheck = null;
+        }
+        if (gatheringDeadline != null) {
+            gatheringDeadline.cancel(false);
+            gatheringDeadline = null;
+        }
+        if (peerConnection != null) {
+            peerConnection.close();
+            // close() only stops the transports; dispose() frees the native connection and its senders.
+            peerConnection.dispose();
+            peerConnection = null;
+        }
+    }
+}
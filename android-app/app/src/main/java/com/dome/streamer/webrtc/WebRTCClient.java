@@ -2,14 +2,23 @@ package com.dome.streamer.webrtc;
 
 import android.app.Application;
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.dome.streamer.metrics.Histogram;
+import com.dome.streamer.metrics.MetricsSource;
+import com.dome.streamer.metrics.MetricsWriter;
+import com.dome.streamer.protocol.SdpMunger;
+
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraVideoCapturer;
+import org.webrtc.CandidatePairChangeEvent;
 import org.webrtc.DataChannel;
 import org.webrtc.DefaultVideoDecoderFactory;
 import org.webrtc.DefaultVideoEncoderFactory;
@@ -17,56 +26,353 @@ import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
+import org.webrtc.RtpSender;
+import org.webrtc.RtpTransceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.SurfaceViewRenderer;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class WebRTCClient {
+/**
+ * Publishes the camera to any number of viewer sessions.
+ *
+ * Threading: all session and negotiation state is owned by the single "MediaEngine"
+ * thread. Public methods may be called from any thread (UI, OkHttp's reader); they
+ * only post work to it, and WebRTC's SDP, ICE and stats callbacks hop back onto it before
+ * touching a session, so none of that state needs a lock. Frames are captured on the
+ * "CaptureThread" HandlerThread of the SurfaceTextureHelper, and the local preview
+ * renders on the SurfaceViewRenderer's own render thread. Callbacks and observer
+ * methods are invoked on the MediaEngine thread.
+ */
+public class WebRTCClient implements MetricsSource {
     private static final String TAG = "WebRTCClient";
+    public static final int MAX_VIEWERS = 32;
+    private static final long GOVERNOR_TICK_MS = 10_000;
+    private static final PeerConnection.IceConnectionState[] ICE_STATES = PeerConnection.IceConnectionState.values();
+    private static final String[] ICE_STATE_LABELS = new String[ICE_STATES.length];
+    static {
+        for (PeerConnection.IceConnectionState state : ICE_STATES) {
+            ICE_STATE_LABELS[state.ordinal()] = state.name().toLowerCase(Locale.ROOT);
+        }
+    }
+    private static final NegotiationMode[] NEGOTIATION_MODES = NegotiationMode.values();
+    private static final String[] NETWORK_LABELS = {"wifi", "cellular", "ethernet", "other"};
+    private static final int NETWORK_OTHER = 3;
+    private static final String[] RESTART_REASONS = {"network", "disconnected", "failed", "retry"};
+    private static final int RESTART_NETWORK = 0;
+    private static final int RESTART_DISCONNECTED = 1;
+    private static final int RESTART_FAILED = 2;
+    private static final int RESTART_RETRY = 3;
 
     private final Application application;
     private final PeerConnectionObserver observer;
+    private final Options options;
 
     public final EglBase eglBase;
-    private final PeerConnectionFactory peerConnectionFactory;
-    private PeerConnection peerConnection;
+    private volatile PeerConnectionFactory peerConnectionFactory;
+    private final ScheduledExecutorService statsScheduler = Executors.newSingleThreadScheduledExecutor();
+    // The actor: startup, capture setup and every session change run here, in order.
+    private final MediaEngine<ViewerSession> engine = new MediaEngine<>("MediaEngine");
+    private final ExecutorService cameraExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "CameraProbe"));
+    private final StartupTimings startupTimings = new StartupTimings();
+    private final CompletableFuture<Void> engineReady;
+    private final StatsSampler statsSampler;
+
+    // Owned by the engine thread
+    private final Map<String, ViewerSession> sessions = engine.sessions();
+    private final Map<String, SimulcastLayer> viewerLayers = new HashMap<>();
+    private final Map<String, PendingOffer> pendingOffers = new LinkedHashMap<>();
+    private final CandidateBatcher<IceCandidate> candidateBatcher;
+    private String relayId;
+    private boolean mediaStarted;
+    private String mediaError;
+
+    private SurfaceTextureHelper surfaceTextureHelper;
+    private QualityGovernor governor;
+    private CodecPreferences codecPreferences;
+    // options.sdpMunger widened to the codecs codecPreferences offers first; engine thread
+    private SdpMunger sdpMunger;
+    private volatile QualityGovernor.Tier qualityTier = QualityGovernor.Tier.NORMAL;
     private VideoTrack localVideoTrack;
     private AudioTrack localAudioTrack;
     private CameraVideoCapturer videoCapturer;
+    private CameraCapabilities cameraCapabilities;
+    private CameraCapabilities.Device captureDevice;
+    private SharedVideoEncoderFactory sharedEncoderFactory;
+    // The CPU baseline between health samples; only sampleHealth's caller touches it
+    private long lastCpuTimeMs = -1;
+    private long lastCpuWallMs;
+
+    // Metrics, written from any thread
+    private final AtomicLong sessionsOpened = new AtomicLong();
+    private final AtomicLong sessionsClosed = new AtomicLong();
+    private final AtomicLong videoBytesSent = new AtomicLong();
+    private final AtomicLong abrRungChanges = new AtomicLong();
+    private final AtomicLongArray iceTransitions = new AtomicLongArray(ICE_STATES.length);
+    private final Histogram negotiationLatency = new Histogram(50, 100, 250, 500, 1000, 2500, 5000, 10000);
+    private final Histogram restartNegotiationLatency = new Histogram(50, 100, 250, 500, 1000, 2500, 5000, 10000);
+    private final Histogram gatheringWait = new Histogram(50, 100, 250, 500, 1000, 2000);
+    private final AtomicLong gatheringDeadlinesHit = new AtomicLong();
+    private final AtomicLong remoteCandidatesBuffered = new AtomicLong();
+    private final AtomicLong sessionsBufferingCandidates = new AtomicLong();
+    private final AtomicLong remoteCandidatesOverflowed = new AtomicLong();
+    private final AtomicLong remoteCandidatesWithoutSession = new AtomicLong();
+    private final AtomicLong offerSdpCreatedChars = new AtomicLong();
+    private final AtomicLong offerSdpSetChars = new AtomicLong();
+    private final AtomicLong mungedOffersRejected = new AtomicLong();
+    private final AtomicLongArray iceRestarts = new AtomicLongArray(RESTART_REASONS.length);
+    private final AtomicLong iceRestartsAbandoned = new AtomicLong();
+    private final AtomicLong networkChanges = new AtomicLong();
+    private final Histogram handoverGap = new Histogram(250, 500, 1000, 2000, 3000, 5000, 10000, 30000);
+    private final AtomicLong selectedPairChanges = new AtomicLong();
+    private final Histogram pairSwitchGap = new Histogram(50, 100, 250, 500, 1000, 2500, 5000);
+    private final AtomicLong pathSteers = new AtomicLong();
+    private final AtomicLong cellularBytesSent = new AtomicLong();
+    // Recounted on the media thread when a session moves on or off cellular, or closes
+    private volatile int sessionsOnCellular;
+    // The default network as last reported; media thread only
+    private Network defaultNetwork;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    // [negotiation mode][network], with their preformatted label sets
+    private final Histogram[][] timeToConnected = new Histogram[NEGOTIATION_MODES.length][NETWORK_LABELS.length];
+    private final String[][] timeToConnectedLabels = new String[NEGOTIATION_MODES.length][NETWORK_LABELS.length];
 
     public interface OnIceCandidateListener {
-        void onIceCandidate(String candidateJson);
+        /** Local candidates, one or a batch, in gathering order. */
+        void onIceCandidates(String viewerId, List<IceCandidate> candidates);
     }
 
-    public OnIceCandidateListener onIceCandidate;
+    public OnIceCandidateListener onIceCandidates;
+
+    public interface OnIceGatheringCompleteListener {
+        void onIceGatheringComplete(String viewerId);
+    }
+
+    /**
+     * Told when a session has gathered all its candidates; any it was batching have gone
+     * out by then. Sessions gather continually, so this may not fire until a restart.
+     */
+    public OnIceGatheringCompleteListener onIceGatheringComplete;
 
     public interface Callback<T> {
         void onSuccess(T result);
         void onError(String error);
     }
 
+    /** Supplies the callback for an offer the client starts on its own. */
+    public interface OfferFactory {
+        Callback<String> callbackFor(String viewerId);
+    }
+
+    /**
+     * Where ICE-restart offers go. Restarts keep a session's PeerConnection, tracks and
+     * encoder, so a viewer rides out a network handover instead of rejoining. Null
+     * leaves sessions that lose connectivity to fail.
+     */
+    public volatile OfferFactory restartOffers;
+
     public static class PeerConnectionObserver {
         public void onStreamReady() {}
         public void onStreamError(String error) {}
+        public void onQualityTierChanged(QualityGovernor.Tier tier) {}
+        public void onFirstFrame(StartupTimings timings) {}
+    }
+
+    public static class Options {
+        /**
+         * Encode the camera once and fan the bitstream out to every viewer session. The
+         * shared encoder runs at the lowest bitrate any of its sessions asks for, so the
+         * weakest viewer sets the quality for everyone; see {@link SharedVideoEncoderFactory}.
+         */
+        public boolean encodeOnce = false;
+        /** Whether viewers connect to the phone directly or through a relay peer. */
+        public PublishMode publishMode = PublishMode.DIRECT;
+        /** Adaptive bitrate tuning for every session; null leaves bitrate entirely to WebRTC. */
+        public AbrPolicy abrPolicy = AbrPolicy.defaults();
+        /** How often every session's getStats is polled; ABR and the stats history share the poll. */
+        public long statsIntervalMs = 2000;
+        /** Samples of stats history kept per viewer; 0 disables the history. */
+        public int statsHistorySamples = 150;
+        /** Capture target; the camera runs at the closest format it supports. */
+        public CaptureProfile captureProfile = CaptureProfile.VGA_480P24;
+        /** Step quality down when the device runs hot or the battery runs low. */
+        public boolean qualityGovernor = true;
+        /** Offer codecs with hardware encoders first, demoting any that encode too slowly. */
+        public boolean preferHardwareCodecs = true;
+        /** How offers go out when createOffer is not given a mode. */
+        public NegotiationMode negotiationMode = NegotiationMode.TRICKLE;
+        /** Half-trickle: the longest an offer waits for gathering before going out with what it has. */
+        public long gatheringDeadlineMs = 1000;
+        /** How long local candidates are held so they can share one frame; 0 sends each on its own. */
+        public long candidateBatchWindowMs = 50;
+        /** Remote candidates held per session until its answer is applied; later ones are dropped. */
+        public int maxPendingRemoteCandidates = 64;
+        /**
+         * Trims each offer before it is set and sent; null leaves offers as WebRTC creates them.
+         * With {@link #preferHardwareCodecs}, codecs that have a hardware encoder are kept too.
+         */
+        public SdpMunger sdpMunger = SdpMunger.defaults();
+        /**
+         * ICE restart for a connected session that has been disconnected this long; failed
+         * sessions and a change of default network restart at once. 0 disables restarts.
+         */
+        public long iceRestartAfterMs = 2000;
+        /** A restart not connected again within this long is retried, e.g. if signaling was down too. */
+        public long iceRestartTimeoutMs = 10000;
+        /** Restarts in a row before a session is left to fail. */
+        public int maxIceRestarts = 3;
+        /** Which networks sessions gather on and how they fail over; null leaves it all to WebRTC. */
+        public NetworkPolicy networkPolicy = NetworkPolicy.defaults();
+    }
+
+    private static class PendingOffer {
+        final NegotiationMode mode;
+        final Callback<String> callback;
+
+        PendingOffer(NegotiationMode mode, Callback<String> callback) {
+            this.mode = mode;
+            this.callback = callback;
+        }
     }
 
     public WebRTCClient(Application application, PeerConnectionObserver observer) {
+        this(application, observer, new Options());
+    }
+
+    public WebRTCClient(Application application, PeerConnectionObserver observer, Options options) {
         this.application = application;
         this.observer = observer;
+        this.options = options;
         this.eglBase = EglBase.create();
-        
-        initPeerConnectionFactory(application);
-        this.peerConnectionFactory = createPeerConnectionFactory();
+        startupTimings.mark("egl");
+        candidateBatcher = new CandidateBatcher<>(options.candidateBatchWindowMs, this::sendCandidates,
+                (task, delayMs) -> statsScheduler.schedule(() -> post(task), delayMs, TimeUnit.MILLISECONDS));
+
+        engineReady = CompletableFuture.runAsync(() -> {
+            initPeerConnectionFactory(application);
+            startupTimings.mark("initialize");
+            peerConnectionFactory = createPeerConnectionFactory();
+            startupTimings.mark("factory");
+            if (options.preferHardwareCodecs) {
+                codecPreferences = CodecPreferences.load(application);
+                startupTimings.mark("codecs");
+            }
+            sdpMunger = offerMunger(options.sdpMunger, codecPreferences);
+        }, engine.executor());
+
+        for (int mode = 0; mode < NEGOTIATION_MODES.length; mode++) {
+            for (int network = 0; network < NETWORK_LABELS.length; network++) {
+                timeToConnected[mode][network] = new Histogram(250, 500, 1000, 2000, 3000, 5000, 10000);
+                timeToConnectedLabels[mode][network] = "mode=\"" + NEGOTIATION_MODES[mode].wireName()
+                        + "\",network=\"" + NETWORK_LABELS[network] + "\"";
+            }
+        }
+
+        statsSampler = options.statsHistorySamples > 0 ? new StatsSampler(options.statsHistorySamples) : null;
+        if (options.abrPolicy != null || statsSampler != null) {
+            long interval = options.statsIntervalMs;
+            statsScheduler.scheduleAtFixedRate(() -> post(this::sampleSessions), interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (options.qualityGovernor) {
+            governor = new QualityGovernor(this::onQualityTierChanged);
+            governor.start(application);
+            statsScheduler.scheduleAtFixedRate(governor::tick, GOVERNOR_TICK_MS, GOVERNOR_TICK_MS, TimeUnit.MILLISECONDS);
+        }
+        if (options.iceRestartAfterMs > 0) {
+            watchNetwork();
+        }
+        if (options.networkPolicy != null && options.networkPolicy.pathCheckIntervalMs > 0) {
+            long interval = options.networkPolicy.pathCheckIntervalMs;
+            statsScheduler.scheduleAtFixedRate(() -> post(this::checkPaths), interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Follows the default network, so sessions restart ICE as soon as the phone switches. */
+    private void watchNetwork() {
+        ConnectivityManager connectivity = (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity == null) {
+            return;
+        }
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                post(() -> onDefaultNetwork(network));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                post(() -> onNetworkLost(network));
+            }
+        };
+        connectivity.registerDefaultNetworkCallback(networkCallback);
+    }
+
+    private void onDefaultNetwork(Network network) {
+        Network previous = defaultNetwork;
+        defaultNetwork = network;
+        if (previous == null || previous.equals(network)) {
+            return; // the first report, or the same network back; ICE copes with that on its own
+        }
+        Log.d(TAG, "Default network changed to " + NETWORK_LABELS[activeNetwork()] + ", restarting ICE");
+        networkChanges.incrementAndGet();
+        boolean multiNetwork = options.networkPolicy != null && options.networkPolicy.gatherAllNetworks;
+        for (ViewerSession session : new ArrayList<>(sessions.values())) {
+            if (!session.connected) {
+                continue;
+            }
+            // Gathering on every network, a session still connected has already moved to its
+            // standby pair, and continual gathering picks up the new network without a restart
+            if (multiNetwork && session.negotiationMode != NegotiationMode.HALF_TRICKLE
+                    && isIceConnected(session.peerConnection.iceConnectionState())) {
+                continue;
+            }
+            restartIce(session, RESTART_NETWORK);
+        }
+    }
+
+    /** Media stops the moment the network goes, well before ICE notices; the handover gap starts here. */
+    private void onNetworkLost(Network network) {
+        if (!network.equals(defaultNetwork)) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (ViewerSession session : sessions.values()) {
+            if (session.connected && session.disconnectedAtNs == 0) {
+                session.disconnectedAtNs = now;
+            }
+        }
     }
 
     private void initPeerConnectionFactory(Context context) {
@@ -80,83 +386,226 @@ public class WebRTCClient {
         PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
         options.disableEncryption = false;
         options.disableNetworkMonitor = false;
+        if (this.options.networkPolicy != null) {
+            options.networkIgnoreMask = this.options.networkPolicy.networkIgnoreMask;
+        }
+
+        VideoEncoderFactory encoderFactory;
+        if (this.options.encodeOnce) {
+            sharedEncoderFactory = new SharedVideoEncoderFactory(eglBase.getEglBaseContext(), true, true);
+            encoderFactory = sharedEncoderFactory;
+        } else {
+            encoderFactory = new DefaultVideoEncoderFactory(eglBase.getEglBaseContext(), true, true);
+        }
 
         return PeerConnectionFactory.builder()
                 .setVideoDecoderFactory(new DefaultVideoDecoderFactory(eglBase.getEglBaseContext()))
-                .setVideoEncoderFactory(new DefaultVideoEncoderFactory(eglBase.getEglBaseContext(), true, true))
+                .setVideoEncoderFactory(encoderFactory)
                 .setOptions(options)
                 .createPeerConnectionFactory();
     }
 
+    /**
+     * The configured munger, widened to keep every codec with a hardware encoder:
+     * otherwise a VP9, H265 or AV1 encoder that {@link CodecPreferences} puts first
+     * would be stripped from the offer and the session fall back to software H264/VP8.
+     */
+    private static SdpMunger offerMunger(SdpMunger configured, CodecPreferences preferences) {
+        if (configured == null || configured.videoCodecs == null || preferences == null) {
+            return configured;
+        }
+        Set<String> codecs = new HashSet<>(configured.videoCodecs);
+        codecs.addAll(preferences.getHardwareCodecs());
+        if (codecs.equals(configured.videoCodecs)) {
+            return configured;
+        }
+        Log.d(TAG, "Offering video codecs " + codecs);
+        SdpMunger munger = configured.copy();
+        munger.videoCodecs = codecs;
+        return munger;
+    }
+
+    /**
+     * Starts the camera without blocking the caller. Camera probing runs alongside the
+     * factory setup begun in the constructor; capture starts once both are done.
+     * Completion is reported through {@link PeerConnectionObserver#onStreamReady()} or
+     * {@link PeerConnectionObserver#onStreamError(String)}, and offers requested in the
+     * meantime wait for it.
+     */
     public void startLocalVideoCapture(SurfaceViewRenderer localView) {
-        try {
-            Log.d(TAG, "Starting video capture...");
-            SurfaceTextureHelper surfaceTextureHelper = SurfaceTextureHelper.create(
-                    Thread.currentThread().getName(),
-                    eglBase.getEglBaseContext()
-            );
+        CompletableFuture<CameraVideoCapturer> cameraReady = CompletableFuture.supplyAsync(() -> {
+            CameraVideoCapturer capturer = createCameraCapturer();
+            startupTimings.mark("cameraProbe");
+            return capturer;
+        }, cameraExecutor);
 
-            Log.d(TAG, "Creating camera capturer...");
-            videoCapturer = createCameraCapturer();
-            Log.d(TAG, "Camera capturer created: " + videoCapturer);
+        engineReady.thenCombineAsync(cameraReady, (ignored, capturer) -> {
+            startCapture(capturer, localView);
+            return null;
+        }, engine.executor()).whenCompleteAsync((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                Log.e(TAG, "Failed to start video capture", cause);
+                mediaError = "Media engine failed to start: " + cause.getMessage();
+                observer.onStreamError("Camera error: " + cause.getMessage());
+            } else {
+                mediaStarted = true;
+                observer.onStreamReady();
+            }
+            flushPendingOffers();
+        }, engine.executor());
+    }
 
-            VideoSource videoSource = peerConnectionFactory.createVideoSource(videoCapturer.isScreencast());
-            Log.d(TAG, "Video source created");
+    /** Runs {@code task} on the MediaEngine thread; dropped once the client is closed. */
+    private void post(Runnable task) {
+        if (!engine.post(task)) {
+            Log.w(TAG, "Client closed, dropping media task");
+        }
+    }
 
-            videoCapturer.initialize(surfaceTextureHelper, application, videoSource.getCapturerObserver());
-            Log.d(TAG, "Camera initialized");
+    private void startCapture(CameraVideoCapturer capturer, SurfaceViewRenderer localView) {
+        Log.d(TAG, "Starting video capture...");
+        surfaceTextureHelper = SurfaceTextureHelper.create("CaptureThread", eglBase.getEglBaseContext());
+        videoCapturer = capturer;
+        Log.d(TAG, "Camera capturer created: " + videoCapturer);
 
-            videoCapturer.startCapture(640, 480, 24);
-            Log.d(TAG, "Camera capture started at 640x480@24fps");
+        VideoSource videoSource = peerConnectionFactory.createVideoSource(videoCapturer.isScreencast());
+        Log.d(TAG, "Video source created");
 
-            localVideoTrack = peerConnectionFactory.createVideoTrack("local_video_track", videoSource);
-            localVideoTrack.addSink(localView);
-            Log.d(TAG, "Video track created and sink added");
+        videoCapturer.initialize(surfaceTextureHelper, application, videoSource.getCapturerObserver());
+        Log.d(TAG, "Camera initialized");
 
-            // Create audio track
-            AudioSource audioSource = peerConnectionFactory.createAudioSource(new MediaConstraints());
-            localAudioTrack = peerConnectionFactory.createAudioTrack("local_audio_track", audioSource);
-            Log.d(TAG, "Audio track created");
+        CaptureProfile profile = qualityTier.cap(options.captureProfile);
+        CameraCapabilities.Format format = CameraCapabilities.selectFormat(captureDevice, profile);
+        int width = format != null ? format.width : profile.width;
+        int height = format != null ? format.height : profile.height;
+        int fps = format != null ? Math.min(profile.fps, format.maxFps) : profile.fps;
+        videoCapturer.startCapture(width, height, fps);
+        Log.d(TAG, "Camera capture started at " + width + "x" + height + "@" + fps + "fps for " + profile);
 
-            observer.onStreamReady();
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to start video capture", e);
-            observer.onStreamError("Camera error: " + e.getMessage());
-        }
+        startupTimings.mark("captureStarted");
+
+        localVideoTrack = peerConnectionFactory.createVideoTrack("local_video_track", videoSource);
+        localVideoTrack.addSink(localView);
+        localVideoTrack.addSink(firstFrameSink());
+        Log.d(TAG, "Video track created and sink added");
+
+        // Create audio track
+        AudioSource audioSource = peerConnectionFactory.createAudioSource(new MediaConstraints());
+        localAudioTrack = peerConnectionFactory.createAudioTrack("local_audio_track", audioSource);
+        Log.d(TAG, "Audio track created");
+        startupTimings.mark("tracks");
+    }
+
+    private VideoSink firstFrameSink() {
+        AtomicBoolean seen = new AtomicBoolean();
+        return new VideoSink() {
+            @Override
+            public void onFrame(VideoFrame frame) {
+                if (seen.getAndSet(true)) {
+                    return;
+                }
+                startupTimings.mark("firstFrame");
+                Log.d(TAG, "First frame " + startupTimings.sinceProcessStartMs("firstFrame")
+                        + "ms after process start: " + startupTimings);
+                VideoSink self = this;
+                post(() -> {
+                    observer.onFirstFrame(startupTimings);
+                    if (localVideoTrack != null) {
+                        localVideoTrack.removeSink(self);
+                    }
+                });
+            }
+        };
+    }
+
+    public StartupTimings getStartupTimings() {
+        return startupTimings;
     }
 
     private CameraVideoCapturer createCameraCapturer() {
         Camera2Enumerator enumerator = new Camera2Enumerator(application);
-        String[] deviceNames = enumerator.getDeviceNames();
-        
-        Log.d(TAG, "Found " + deviceNames.length + " cameras");
-
-        // Try BACK camera first
-        for (String deviceName : deviceNames) {
-            if (enumerator.isBackFacing(deviceName)) {
-                CameraVideoCapturer capturer = enumerator.createCapturer(deviceName, null);
-                if (capturer != null) {
-                    Log.d(TAG, "Using back camera: " + deviceName);
-                    return capturer;
-                }
+        cameraCapabilities = CameraCapabilities.load(application, enumerator);
+        Log.d(TAG, "Found " + cameraCapabilities.getDevices().size() + " cameras");
+
+        // Best fit for the profile first, then any back camera, then any front camera
+        List<CameraCapabilities.Device> candidates = new ArrayList<>();
+        CameraCapabilities.Device preferred = cameraCapabilities.selectDevice(options.captureProfile);
+        if (preferred != null) {
+            candidates.add(preferred);
+        }
+        for (CameraCapabilities.Device device : cameraCapabilities.getDevices()) {
+            if (device.backFacing && device != preferred) {
+                candidates.add(device);
+            }
+        }
+        for (CameraCapabilities.Device device : cameraCapabilities.getDevices()) {
+            if (device.frontFacing && device != preferred) {
+                candidates.add(device);
             }
         }
 
-        // Try FRONT camera
-        for (String deviceName : deviceNames) {
-            if (enumerator.isFrontFacing(deviceName)) {
-                CameraVideoCapturer capturer = enumerator.createCapturer(deviceName, null);
-                if (capturer != null) {
-                    Log.d(TAG, "Using front camera: " + deviceName);
-                    return capturer;
-                }
+        for (CameraCapabilities.Device device : candidates) {
+            CameraVideoCapturer capturer = enumerator.createCapturer(device.name, null);
+            if (capturer != null) {
+                Log.d(TAG, "Using " + (device.backFacing ? "back" : "front") + " camera: " + device.name);
+                captureDevice = device;
+                return capturer;
             }
         }
 
         throw new RuntimeException("No camera found on device");
     }
 
-    public PeerConnection createPeerConnection() {
+    /**
+     * Switches the running camera to the format that best fits {@code profile}. The
+     * capturer changes format in place, so sessions keep their negotiated tracks.
+     * Before capture starts this only records the profile.
+     */
+    public void setCaptureProfile(CaptureProfile profile) {
+        post(() -> {
+            options.captureProfile = profile;
+            applyCaptureProfile(qualityTier.cap(profile));
+        });
+    }
+
+    private void applyCaptureProfile(CaptureProfile profile) {
+        if (videoCapturer == null || captureDevice == null) {
+            return;
+        }
+        CameraCapabilities.Format format = CameraCapabilities.selectFormat(captureDevice, profile);
+        if (format == null) {
+            Log.w(TAG, "No capture format for " + profile + " on camera " + captureDevice.name);
+            return;
+        }
+        int fps = Math.min(profile.fps, format.maxFps);
+        videoCapturer.changeCaptureFormat(format.width, format.height, fps);
+        Log.d(TAG, "Capture switched to " + format.width + "x" + format.height + "@" + fps + " for " + profile);
+    }
+
+    public CaptureProfile getCaptureProfile() {
+        return options.captureProfile;
+    }
+
+    public QualityGovernor.Tier getQualityTier() {
+        return qualityTier;
+    }
+
+    private void onQualityTierChanged(QualityGovernor.Tier tier) {
+        Log.d(TAG, "Quality tier " + tier);
+        // Thermal and battery events arrive on the main thread or the scheduler.
+        post(() -> {
+            qualityTier = tier;
+            applyCaptureProfile(tier.cap(options.captureProfile));
+            for (ViewerSession session : sessions.values()) {
+                applyEncodingParameters(session);
+            }
+            observer.onQualityTierChanged(tier);
+        });
+    }
+
+    private PeerConnection createPeerConnection(ViewerSession session) {
+        String viewerId = session.viewerId;
         List<PeerConnection.IceServer> iceServers = new ArrayList<>();
         iceServers.add(PeerConnection.IceServer.builder("stun:stun.l.google.com:19302").createIceServer());
         iceServers.add(PeerConnection.IceServer.builder("turn:20.244.82.40:3478")
@@ -168,24 +617,32 @@ public class WebRTCClient {
         rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
         rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
         rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.ENABLED;
-        rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        // Half-trickle needs gathering to finish; a continually gathering session never reports COMPLETE
+        rtcConfig.continualGatheringPolicy = session.negotiationMode == NegotiationMode.HALF_TRICKLE
+                ? PeerConnection.ContinualGatheringPolicy.GATHER_ONCE
+                : PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
         rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
         rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
+        if (options.networkPolicy != null) {
+            options.networkPolicy.apply(rtcConfig);
+            session.pathMonitor = new PathMonitor(options.networkPolicy);
+        }
+        // Kept, as setConfiguration takes the whole configuration back
+        session.rtcConfig = rtcConfig;
 
-        peerConnection = peerConnectionFactory.createPeerConnection(rtcConfig, new PeerConnection.Observer() {
+        PeerConnection peerConnection = peerConnectionFactory.createPeerConnection(rtcConfig, new PeerConnection.Observer() {
             @Override
             public void onIceCandidate(IceCandidate candidate) {
-                if (candidate != null && onIceCandidate != null) {
-                    try {
-                        JSONObject json = new JSONObject();
-                        json.put("candidate", candidate.sdp);
-                        json.put("sdpMid", candidate.sdpMid);
-                        json.put("sdpMLineIndex", candidate.sdpMLineIndex);
-                        onIceCandidate.onIceCandidate(json.toString());
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
+                if (candidate == null) {
+                    return;
                 }
+                // Called on WebRTC's signaling thread; callbacks run on the actor. Until a half-trickle
+                // offer is out, candidates go in its SDP, which is also decided there.
+                post(() -> {
+                    if (isCurrent(session) && !session.holdCandidates) {
+                        candidateBatcher.add(viewerId, candidate);
+                    }
+                });
             }
 
             @Override
@@ -194,14 +651,40 @@ public class WebRTCClient {
             @Override
             public void onIceConnectionReceivingChange(boolean b) {}
 
+            @Override
+            public void onSelectedCandidatePairChanged(CandidatePairChangeEvent event) {
+                Log.d(TAG, "Selected pair for " + viewerId + " changed (" + event.reason + "), "
+                        + event.estimatedDisconnectedTimeMs + " ms without data");
+                selectedPairChanges.incrementAndGet();
+                pairSwitchGap.observeNanos(TimeUnit.MILLISECONDS.toNanos(event.estimatedDisconnectedTimeMs));
+            }
+
             @Override
             public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
-                Log.d(TAG, "ICE connection state changed to: " + iceConnectionState);
+                Log.d(TAG, "ICE connection state for " + viewerId + " changed to: " + iceConnectionState);
+                iceTransitions.incrementAndGet(iceConnectionState.ordinal());
+                post(() -> onIceConnectionStateNow(session, iceConnectionState));
             }
 
             @Override
             public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
-                Log.d(TAG, "ICE gathering state changed to: " + iceGatheringState);
+                Log.d(TAG, "ICE gathering state for " + viewerId + " changed to: " + iceGatheringState);
+                if (iceGatheringState != PeerConnection.IceGatheringState.COMPLETE) {
+                    return;
+                }
+                post(() -> {
+                    if (session.negotiationMode == NegotiationMode.HALF_TRICKLE) {
+                        sendGatheredOffer(session, false);
+                    }
+                    if (!isCurrent(session)) {
+                        return;
+                    }
+                    candidateBatcher.flush(viewerId);
+                    OnIceGatheringCompleteListener listener = onIceGatheringComplete;
+                    if (listener != null) {
+                        listener.onIceGatheringComplete(viewerId);
+                    }
+                });
             }
 
             @Override
@@ -223,8 +706,33 @@ public class WebRTCClient {
             public void onAddTrack(RtpReceiver rtpReceiver, MediaStream[] mediaStreams) {}
         });
 
+        if (peerConnection == null) {
+            return null;
+        }
         if (localVideoTrack != null) {
-            peerConnection.addTrack(localVideoTrack, Collections.singletonList("local_stream"));
+            List<RtpParameters.Encoding> encodings = new ArrayList<>();
+            if (session.simulcast) {
+                for (SimulcastLayer layer : SimulcastLayer.values()) {
+                    encodings.add(layer.toEncoding());
+                }
+            } else {
+                session.layer = viewerLayers.getOrDefault(viewerId, SimulcastLayer.FULL);
+                encodings.add(new RtpParameters.Encoding(null, true, session.layer.scaleResolutionDownBy));
+            }
+            RtpTransceiver transceiver = peerConnection.addTransceiver(localVideoTrack,
+                    new RtpTransceiver.RtpTransceiverInit(
+                            RtpTransceiver.RtpTransceiverDirection.SEND_ONLY,
+                            Collections.singletonList("local_stream"),
+                            encodings));
+            session.videoSender = transceiver.getSender();
+            if (codecPreferences != null) {
+                transceiver.setCodecPreferences(codecPreferences.order(
+                        peerConnectionFactory.getRtpSenderCapabilities(MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO).codecs));
+            }
+            if (options.abrPolicy != null) {
+                session.bitrateController = new BitrateController(options.abrPolicy);
+            }
+            applyEncodingParameters(session);
         }
         if (localAudioTrack != null) {
             peerConnection.addTrack(localAudioTrack, Collections.singletonList("local_stream"));
@@ -233,51 +741,90 @@ public class WebRTCClient {
         return peerConnection;
     }
 
-    public void createOffer(Callback<String> callback) {
-        if (peerConnection != null) {
-            peerConnection.close();
+    public void createOffer(String viewerId, Callback<String> callback) {
+        createOffer(viewerId, options.negotiationMode, callback);
+    }
+
+    /** Offers to {@code viewerId}; the callback gets the SDP to send once it is ready to go out. */
+    public void createOffer(String viewerId, NegotiationMode mode, Callback<String> callback) {
+        post(() -> requestOffer(viewerId, mode, callback));
+    }
+
+    private void requestOffer(String viewerId, NegotiationMode mode, Callback<String> callback) {
+        if (mediaError != null) {
+            callback.onError(mediaError);
+        } else if (!mediaStarted) {
+            // Viewers can arrive while the engine is still starting; their offers wait for it.
+            // A viewer that leaves in the meantime is dropped from here, never connected.
+            pendingOffers.put(viewerId, new PendingOffer(mode, callback));
+        } else {
+            createOfferNow(viewerId, mode, callback);
         }
-        peerConnection = createPeerConnection(); // Returns null? No, implementation above returns object.
+    }
 
-        if (peerConnection == null) {
+    private void flushPendingOffers() {
+        List<Map.Entry<String, PendingOffer>> pending = new ArrayList<>(pendingOffers.entrySet());
+        pendingOffers.clear();
+        for (Map.Entry<String, PendingOffer> entry : pending) {
+            requestOffer(entry.getKey(), entry.getValue().mode, entry.getValue().callback);
+        }
+    }
+
+    private void createOfferNow(String viewerId, NegotiationMode mode, Callback<String> callback) {
+        // A viewer that rejoins gets a fresh connection; everyone else is left alone.
+        closeSessionNow(viewerId);
+        if (sessions.size() >= MAX_VIEWERS) {
+            callback.onError("Viewer limit reached (" + MAX_VIEWERS + ")");
+            return;
+        }
+
+        // Candidates still held for a session this one replaces belong to the old connection
+        candidateBatcher.discard(viewerId);
+        ViewerSession session = engine.open(viewerId, id -> {
+            // Only the relay can forward individual layers, so only its session is simulcast.
+            ViewerSession created = new ViewerSession(id, id.equals(relayId), mode);
+            created.holdCandidates = mode == NegotiationMode.HALF_TRICKLE;
+            created.peerConnection = createPeerConnection(created);
+            return created.peerConnection != null ? created : null;
+        });
+        if (session == null) {
             callback.onError("Failed to create peer connection");
             return;
         }
 
+        session.offerStartedNs = System.nanoTime();
+        sessionsOpened.incrementAndGet();
+        if (session.simulcast) {
+            updateRelayLayers();
+        }
+        Log.d(TAG, "Viewer session opened for " + viewerId + ", active sessions: " + sessions.size());
+
+        negotiate(session, callback);
+    }
+
+    /** Creates an offer on the session's connection, sets it and hands it to {@code callback}. */
+    private void negotiate(ViewerSession session, Callback<String> callback) {
         MediaConstraints constraints = new MediaConstraints();
         constraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "false"));
         constraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
 
-        peerConnection.createOffer(new SdpObserver() {
+        // SDP callbacks come in on WebRTC's signaling thread; each step hops back onto
+        // the actor and gives up quietly if the session was replaced or closed meanwhile.
+        session.peerConnection.createOffer(new SdpObserver() {
             @Override
             public void onCreateSuccess(SessionDescription sdp) {
-                Log.d(TAG, "Offer created successfully");
-                peerConnection.setLocalDescription(new SdpObserver() {
-                    @Override
-                    public void onCreateSuccess(SessionDescription sessionDescription) {}
-
-                    @Override
-                    public void onSetSuccess() {
-                        Log.d(TAG, "Local description set successfully");
-                        try {
-                            JSONObject json = new JSONObject();
-                            json.put("type", sdp.type.canonicalForm());
-                            json.put("sdp", sdp.description);
-                            callback.onSuccess(json.toString());
-                        } catch (JSONException e) {
-                            callback.onError(e.getMessage());
-                        }
+                post(() -> {
+                    if (!isCurrent(session)) {
+                        return;
                     }
-
-                    @Override
-                    public void onCreateFailure(String s) {}
-
-                    @Override
-                    public void onSetFailure(String s) {
-                        Log.e(TAG, "Failed to set local description: " + s);
-                        callback.onError(s);
+                    Log.d(TAG, "Offer created successfully");
+                    offerSdpCreatedChars.addAndGet(sdp.description.length());
+                    SessionDescription offer = sdp;
+                    if (sdpMunger != null) {
+                        offer = new SessionDescription(sdp.type, sdpMunger.munge(sdp.description));
                     }
-                }, sdp);
+                    setLocalOffer(session, offer, offer != sdp ? sdp : null, callback);
+                });
             }
 
             @Override
@@ -286,7 +833,7 @@ public class WebRTCClient {
             @Override
             public void onCreateFailure(String s) {
                 Log.e(TAG, "Failed to create offer: " + s);
-                callback.onError(s);
+                post(() -> callback.onError(s));
             }
 
             @Override
@@ -294,24 +841,30 @@ public class WebRTCClient {
         }, constraints);
     }
 
-    public void setRemoteAnswer(String answerJson, Callback<Void> callback) {
-        String answerSdp = answerJson;
-        try {
-            JSONObject json = new JSONObject(answerJson);
-            answerSdp = json.getString("sdp");
-        } catch (JSONException e) {
-            // fallback to raw string
-        }
-
-        SessionDescription sdp = new SessionDescription(SessionDescription.Type.ANSWER, answerSdp);
-        peerConnection.setRemoteDescription(new SdpObserver() {
+    /**
+     * Sets {@code offer} as the local description and hands it on. If libwebrtc rejects
+     * a munged offer, {@code original} (the offer as created) is set instead.
+     */
+    private void setLocalOffer(ViewerSession session, SessionDescription offer, SessionDescription original,
+                               Callback<String> callback) {
+        session.peerConnection.setLocalDescription(new SdpObserver() {
             @Override
             public void onCreateSuccess(SessionDescription sessionDescription) {}
 
             @Override
             public void onSetSuccess() {
-                Log.d(TAG, "setRemoteAnswer SUCCESS");
-                callback.onSuccess(null);
+                post(() -> {
+                    if (!isCurrent(session)) {
+                        return;
+                    }
+                    Log.d(TAG, "Local description set successfully");
+                    offerSdpSetChars.addAndGet(offer.description.length());
+                    if (session.negotiationMode == NegotiationMode.HALF_TRICKLE) {
+                        awaitGathering(session, callback);
+                    } else {
+                        callback.onSuccess(offer.description);
+                    }
+                });
             }
 
             @Override
@@ -319,29 +872,751 @@ public class WebRTCClient {
 
             @Override
             public void onSetFailure(String s) {
-                Log.e(TAG, "setRemoteAnswer FAILED: " + s);
-                callback.onError(s);
+                if (original != null) {
+                    Log.w(TAG, "Munged offer rejected (" + s + "), setting it as created");
+                    mungedOffersRejected.incrementAndGet();
+                    post(() -> {
+                        if (isCurrent(session)) {
+                            setLocalOffer(session, original, null, callback);
+                        }
+                    });
+                    return;
+                }
+                Log.e(TAG, "Failed to set local description: " + s);
+                post(() -> callback.onError(s));
+            }
+        }, offer);
+    }
+
+    private void onIceConnectionStateNow(ViewerSession session, PeerConnection.IceConnectionState state) {
+        if (!isCurrent(session)) {
+            return;
+        }
+        if (!session.connected) {
+            if (isIceConnected(state)) {
+                session.connected = true;
+                timeToConnected[session.negotiationMode.ordinal()][activeNetwork()]
+                        .observeNanos(System.nanoTime() - session.createdAtNs);
             }
-        }, sdp);
+            return; // restarts are only for sessions that had connected
+        }
+        switch (state) {
+            case CONNECTED:
+            case COMPLETED:
+                reconnected(session);
+                break;
+            case DISCONNECTED:
+                if (session.disconnectedAtNs == 0) {
+                    session.disconnectedAtNs = System.nanoTime();
+                }
+                // Often a blip ICE recovers from by itself; restart only if it doesn't
+                scheduleRestart(session, RESTART_DISCONNECTED, options.iceRestartAfterMs);
+                break;
+            case FAILED:
+                if (session.disconnectedAtNs == 0) {
+                    session.disconnectedAtNs = System.nanoTime();
+                }
+                restartIce(session, RESTART_FAILED);
+                break;
+            default:
+                break;
+        }
     }
 
-    public void addRemoteIceCandidate(String candidateJson) {
+    private void reconnected(ViewerSession session) {
+        cancelRestart(session);
+        if (session.disconnectedAtNs != 0) {
+            handoverGap.observeNanos(System.nanoTime() - session.disconnectedAtNs);
+            Log.d(TAG, "Session " + session.viewerId + " connected again after "
+                    + (System.nanoTime() - session.disconnectedAtNs) / 1_000_000 + " ms");
+            session.disconnectedAtNs = 0;
+        }
+        session.iceRestarts = 0;
+    }
+
+    /**
+     * Offers new ICE credentials on the session's existing connection. Tracks, senders
+     * and the encoder are untouched; only the transport is renegotiated.
+     */
+    private void restartIce(ViewerSession session, int reason) {
+        OfferFactory offers = restartOffers;
+        if (offers == null || options.iceRestartAfterMs <= 0 || session.peerConnection == null) {
+            return;
+        }
+        cancelRestart(session);
+        if (session.iceRestarts >= options.maxIceRestarts) {
+            Log.w(TAG, "Giving up on " + session.viewerId + " after " + session.iceRestarts + " ICE restarts");
+            iceRestartsAbandoned.incrementAndGet();
+            return;
+        }
+        session.iceRestarts++;
+        iceRestarts.incrementAndGet(reason);
+        Log.d(TAG, "ICE restart for " + session.viewerId + " (" + RESTART_REASONS[reason] + ")");
+        session.peerConnection.restartIce();
+        // Candidates for the new credentials wait for the answer, as on the first offer
+        session.remoteDescriptionSet = false;
+        session.holdCandidates = session.negotiationMode == NegotiationMode.HALF_TRICKLE;
+        session.restartStartedNs = System.nanoTime();
+        negotiate(session, offers.callbackFor(session.viewerId));
+        scheduleRestart(session, RESTART_RETRY, options.iceRestartTimeoutMs);
+    }
+
+    private void scheduleRestart(ViewerSession session, int reason, long delayMs) {
+        cancelRestart(session);
         try {
-            JSONObject json = new JSONObject(candidateJson);
-            String sdp = json.getString("candidate");
-            String sdpMid = json.getString("sdpMid");
-            int sdpMLineIndex = json.getInt("sdpMLineIndex");
+            session.restartCheck = statsScheduler.schedule(() -> post(() -> {
+                if (!isCurrent(session) || session.disconnectedAtNs == 0) {
+                    return;
+                }
+                if (isIceConnected(session.peerConnection.iceConnectionState())) {
+                    reconnected(session); // never left connected, so there was no transition to see
+                } else {
+                    restartIce(session, reason);
+                }
+            }), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private static void cancelRestart(ViewerSession session) {
+        if (session.restartCheck != null) {
+            session.restartCheck.cancel(false);
+            session.restartCheck = null;
+        }
+    }
+
+    private void awaitGathering(ViewerSession session, Callback<String> callback) {
+        session.gatheringCallback = callback;
+        session.gatheringStartedNs = System.nanoTime();
+        if (session.peerConnection.iceGatheringState() == PeerConnection.IceGatheringState.COMPLETE) {
+            sendGatheredOffer(session, false);
+            return;
+        }
+        try {
+            session.gatheringDeadline = statsScheduler.schedule(() -> post(() -> sendGatheredOffer(session, true)),
+                    options.gatheringDeadlineMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            sendGatheredOffer(session, true);
+        }
+    }
+
+    /**
+     * Sends a half-trickle offer: the current local description, carrying every
+     * candidate gathered so far. Candidates found after this trickle as usual.
+     */
+    private void sendGatheredOffer(ViewerSession session, boolean deadline) {
+        Callback<String> callback = session.gatheringCallback;
+        if (!isCurrent(session) || callback == null) {
+            return;
+        }
+        session.gatheringCallback = null;
+        session.holdCandidates = false;
+        if (session.gatheringDeadline != null) {
+            session.gatheringDeadline.cancel(false);
+            session.gatheringDeadline = null;
+        }
+        gatheringWait.observeNanos(System.nanoTime() - session.gatheringStartedNs);
+        if (deadline) {
+            gatheringDeadlinesHit.incrementAndGet();
+        }
+        SessionDescription local = session.peerConnection.getLocalDescription();
+        if (local == null) {
+            callback.onError("No local description");
+            return;
+        }
+        Log.d(TAG, "Offer for " + session.viewerId + " sent with gathered candidates"
+                + (deadline ? " at the deadline" : ""));
+        callback.onSuccess(local.description);
+    }
+
+    /**
+     * Publishes to a relay peer. There is only ever one relay session; a new assignment
+     * replaces the previous one.
+     */
+    public void createRelayOffer(String relayId, Callback<String> callback) {
+        post(() -> {
+            String previousRelayId = this.relayId;
+            if (previousRelayId != null && !previousRelayId.equals(relayId)) {
+                pendingOffers.remove(previousRelayId);
+                closeSessionNow(previousRelayId);
+            }
+            this.relayId = relayId;
+            requestOffer(relayId, options.negotiationMode, callback);
+        });
+    }
+
+    public void closeRelaySession() {
+        post(() -> {
+            String previousRelayId = relayId;
+            relayId = null;
+            if (previousRelayId != null) {
+                pendingOffers.remove(previousRelayId);
+                closeSessionNow(previousRelayId);
+            }
+        });
+    }
+
+    /**
+     * Records the layer a viewer can take, or clears it when {@code layer} is null.
+     * A direct viewer's session is rescaled to that layer. For viewers behind the
+     * relay, the relay session encodes only the layers somebody is watching.
+     */
+    public void setViewerLayer(String viewerId, SimulcastLayer layer) {
+        post(() -> setViewerLayerNow(viewerId, layer));
+    }
+
+    private void setViewerLayerNow(String viewerId, SimulcastLayer layer) {
+        if (layer != null) {
+            viewerLayers.put(viewerId, layer);
+        } else {
+            viewerLayers.remove(viewerId);
+        }
+
+        ViewerSession session = sessions.get(viewerId);
+        if (session != null && !session.simulcast) {
+            session.layer = layer != null ? layer : SimulcastLayer.FULL;
+            applyEncodingParameters(session);
+            Log.d(TAG, "Viewer " + viewerId + " now receives layer " + session.layer);
+        }
+        updateRelayLayers();
+    }
+
+    /**
+     * Writes a session's layer scaling and its current ABR rung into the sender's
+     * encodings. The rung's bitrate is for full resolution and is scaled down with
+     * the pixel count of smaller layers.
+     */
+    private void applyEncodingParameters(ViewerSession session) {
+        RtpSender sender = session.videoSender;
+        if (sender == null) {
+            return;
+        }
+        AbrPolicy.Rung rung = session.bitrateController != null ? session.bitrateController.getCurrentRung() : null;
+        QualityGovernor.Tier tier = qualityTier;
+        RtpParameters parameters = sender.getParameters();
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            SimulcastLayer layer = session.simulcast ? SimulcastLayer.fromRid(encoding.rid) : session.layer;
+            double baseScale = layer != null ? layer.scaleResolutionDownBy : 1.0;
+            double pixelShare = baseScale * baseScale;
+            double scale = baseScale;
+            Integer maxBitrateBps = null;
+            Integer maxFramerate = null;
+            if (rung != null) {
+                scale *= rung.scaleResolutionDownBy;
+                maxBitrateBps = (int) (rung.maxBitrateBps / pixelShare);
+                maxFramerate = rung.maxFramerate;
+            }
+            if (tier != QualityGovernor.Tier.NORMAL) {
+                // The device-health ceiling applies whatever the network would allow.
+                int tierBitrateBps = (int) (tier.maxBitrateBps / pixelShare);
+                maxBitrateBps = maxBitrateBps != null ? Math.min(maxBitrateBps, tierBitrateBps) : tierBitrateBps;
+                maxFramerate = maxFramerate != null ? Math.min(maxFramerate, tier.maxFramerate) : tier.maxFramerate;
+            }
+            if (session.onCellular && options.networkPolicy.cellularMaxBitrateBps > 0) {
+                // Cellular is the standby: enough to keep the picture up, not to spend the data plan
+                int cellularBitrateBps = (int) (options.networkPolicy.cellularMaxBitrateBps / pixelShare);
+                maxBitrateBps = maxBitrateBps != null ? Math.min(maxBitrateBps, cellularBitrateBps) : cellularBitrateBps;
+            }
+            encoding.scaleResolutionDownBy = scale;
+            encoding.maxBitrateBps = maxBitrateBps;
+            encoding.maxFramerate = maxFramerate;
+        }
+        sender.setParameters(parameters);
+    }
+
+    private void sampleSessions() {
+        for (ViewerSession session : sessions.values()) {
+            PeerConnection peerConnection = session.peerConnection;
+            RtpSender sender = session.videoSender;
+            if (peerConnection == null || sender == null) {
+                continue;
+            }
+            peerConnection.getStats(sender, report -> {
+                StreamStats stats = StreamStats.fromReport(report);
+                post(() -> onStatsSample(session, stats));
+            });
+        }
+    }
+
+    private void checkPaths() {
+        for (ViewerSession session : sessions.values()) {
+            PeerConnection peerConnection = session.peerConnection;
+            if (peerConnection == null || !session.connected) {
+                continue;
+            }
+            peerConnection.getStats(report -> {
+                PathStats stats = PathStats.fromReport(report);
+                post(() -> onPathSample(session, stats));
+            });
+        }
+    }
+
+    private void onPathSample(ViewerSession session, PathStats stats) {
+        if (!isCurrent(session)) {
+            return;
+        }
+        NetworkPolicy policy = options.networkPolicy;
+        if (stats.cellularBytesSent > session.lastCellularBytesSent) {
+            cellularBytesSent.addAndGet(stats.cellularBytesSent - session.lastCellularBytesSent);
+        }
+        // Pairs are pruned, so the sum can also go down; count from wherever it is now
+        session.lastCellularBytesSent = stats.cellularBytesSent;
+
+        boolean onCellular = "cellular".equals(stats.selectedNetwork);
+        if (onCellular != session.onCellular) {
+            session.onCellular = onCellular;
+            countSessionsOnCellular();
+            Log.d(TAG, "Session " + session.viewerId + " now sends over " + stats.selectedNetwork);
+            applyEncodingParameters(session);
+        }
 
-            IceCandidate iceCandidate = new IceCandidate(sdpMid, sdpMLineIndex, sdp);
-            if (peerConnection != null) {
-                peerConnection.addIceCandidate(iceCandidate);
+        boolean cellularAllowed = policy.cellularByteBudget <= 0 || cellularBytesSent.get() < policy.cellularByteBudget;
+        String before = session.pathMonitor.getPreferring();
+        String after = session.pathMonitor.onSample(stats, cellularAllowed);
+        if (!after.equals(before)) {
+            pathSteers.incrementAndGet();
+            Log.d(TAG, "Steering " + session.viewerId + " from " + before + " to " + after + ", rtt="
+                    + stats.selectedRoundTripTimeSec + (cellularAllowed ? "" : " (cellular budget spent)"));
+            // ICE ranks pairs that both work by network preference, so this moves the
+            // selected pair without a restart
+            session.rtcConfig.networkPreference = NetworkPolicy.fromStatsName(after);
+            if (!session.peerConnection.setConfiguration(session.rtcConfig)) {
+                Log.w(TAG, "setConfiguration refused the network preference for " + session.viewerId);
             }
-        } catch (JSONException e) {
-            observer.onStreamError("Failed to add ICE candidate: " + e.getMessage());
         }
     }
 
+    private void countSessionsOnCellular() {
+        int count = 0;
+        for (ViewerSession session : sessions.values()) {
+            if (session.onCellular) {
+                count++;
+            }
+        }
+        sessionsOnCellular = count;
+    }
+
+    private static boolean isIceConnected(PeerConnection.IceConnectionState state) {
+        return state == PeerConnection.IceConnectionState.CONNECTED
+                || state == PeerConnection.IceConnectionState.COMPLETED;
+    }
+
+    private void sendCandidates(String viewerId, List<IceCandidate> candidates) {
+        OnIceCandidateListener listener = onIceCandidates;
+        if (listener != null) {
+            listener.onIceCandidates(viewerId, candidates);
+        }
+    }
+
+    private boolean isCurrent(ViewerSession session) {
+        return sessions.get(session.viewerId) == session;
+    }
+
+    private void onStatsSample(ViewerSession session, StreamStats stats) {
+        if (!isCurrent(session)) {
+            return; // closed while the stats were in flight
+        }
+        if (stats.bytesSent > session.lastBytesSent) {
+            videoBytesSent.addAndGet(stats.bytesSent - session.lastBytesSent);
+            session.lastBytesSent = stats.bytesSent;
+        }
+        if (statsSampler != null) {
+            statsSampler.record(session.viewerId, stats);
+        }
+        if (session.bitrateController == null) {
+            return;
+        }
+        int before = session.bitrateController.getRung();
+        int after = session.bitrateController.onSample(stats);
+        if (codecPreferences != null) {
+            codecPreferences.onEncodeSample(stats.codecName, stats.qualityLimitationReason,
+                    session.bitrateController.getEncodeMsPerFrame());
+        }
+        if (after != before) {
+            abrRungChanges.incrementAndGet();
+            Log.d(TAG, "ABR " + session.viewerId + ": rung " + before + " -> " + after + " ("
+                    + session.bitrateController.getCurrentRung() + "), loss=" + stats.fractionLost
+                    + " rtt=" + stats.roundTripTimeSec + " bwe=" + (long) stats.availableOutgoingBitrate
+                    + " limit=" + stats.qualityLimitationReason);
+            applyEncodingParameters(session);
+        }
+    }
+
+    private void updateRelayLayers() {
+        ViewerSession relaySession = relayId != null ? sessions.get(relayId) : null;
+        if (relaySession == null || !relaySession.simulcast || relaySession.videoSender == null) {
+            return;
+        }
+
+        EnumSet<SimulcastLayer> wanted = EnumSet.noneOf(SimulcastLayer.class);
+        for (Map.Entry<String, SimulcastLayer> entry : viewerLayers.entrySet()) {
+            if (!sessions.containsKey(entry.getKey())) {
+                wanted.add(entry.getValue());
+            }
+        }
+        if (wanted.isEmpty()) {
+            // Nobody has said what they can take yet; keep every layer up.
+            wanted = EnumSet.allOf(SimulcastLayer.class);
+        }
+
+        RtpSender sender = relaySession.videoSender;
+        RtpParameters parameters = sender.getParameters();
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            SimulcastLayer layer = SimulcastLayer.fromRid(encoding.rid);
+            encoding.active = layer == null || wanted.contains(layer);
+        }
+        sender.setParameters(parameters);
+        Log.d(TAG, "Relay layers active: " + wanted);
+    }
+
+    public PublishMode getPublishMode() {
+        return options.publishMode;
+    }
+
+    public void setRemoteAnswer(String viewerId, String answerSdp, Callback<Void> callback) {
+        SessionDescription sdp = new SessionDescription(SessionDescription.Type.ANSWER, answerSdp);
+        post(() -> {
+            ViewerSession session = sessions.get(viewerId);
+            if (session == null || session.peerConnection == null) {
+                callback.onError("No session for viewer " + viewerId);
+                return;
+            }
+            session.peerConnection.setRemoteDescription(new SdpObserver() {
+                @Override
+                public void onCreateSuccess(SessionDescription sessionDescription) {}
+
+                @Override
+                public void onSetSuccess() {
+                    Log.d(TAG, "setRemoteAnswer SUCCESS for " + viewerId);
+                    post(() -> {
+                        if (isCurrent(session)) {
+                            // The answer is to the latest offer: a restart's if one is out
+                            if (session.restartStartedNs != 0) {
+                                restartNegotiationLatency.observeNanos(System.nanoTime() - session.restartStartedNs);
+                            } else if (session.offerStartedNs != 0) {
+                                negotiationLatency.observeNanos(System.nanoTime() - session.offerStartedNs);
+                            }
+                            session.offerStartedNs = 0;
+                            session.restartStartedNs = 0;
+                            session.remoteDescriptionSet = true;
+                            drainRemoteCandidates(session);
+                        }
+                        callback.onSuccess(null);
+                    });
+                }
+
+                @Override
+                public void onCreateFailure(String s) {}
+
+                @Override
+                public void onSetFailure(String s) {
+                    Log.e(TAG, "setRemoteAnswer FAILED for " + viewerId + ": " + s);
+                    post(() -> callback.onError(s));
+                }
+            }, sdp);
+        });
+    }
+
+    public void addRemoteIceCandidate(String viewerId, String sdpMid, int sdpMLineIndex, String candidate) {
+        IceCandidate iceCandidate = new IceCandidate(sdpMid, sdpMLineIndex, candidate);
+        post(() -> {
+            ViewerSession session = sessions.get(viewerId);
+            if (session == null || session.peerConnection == null) {
+                remoteCandidatesWithoutSession.incrementAndGet();
+                return;
+            }
+            addRemoteCandidateNow(session, iceCandidate);
+        });
+    }
+
+    /** Adds a peer's candidates in order, in one hop to the media thread. */
+    public void addRemoteIceCandidates(String viewerId, List<IceCandidate> candidates) {
+        post(() -> {
+            ViewerSession session = sessions.get(viewerId);
+            if (session == null || session.peerConnection == null) {
+                remoteCandidatesWithoutSession.addAndGet(candidates.size());
+                return;
+            }
+            for (IceCandidate candidate : candidates) {
+                addRemoteCandidateNow(session, candidate);
+            }
+        });
+    }
+
+    /**
+     * Candidates can race the answer through the relay. Ones that arrive before it
+     * is applied are queued on the session, up to maxPendingRemoteCandidates, and
+     * added in arrival order once it is.
+     */
+    private void addRemoteCandidateNow(ViewerSession session, IceCandidate candidate) {
+        if (session.remoteDescriptionSet) {
+            session.peerConnection.addIceCandidate(candidate);
+            return;
+        }
+        if (session.pendingRemoteCandidates == null) {
+            session.pendingRemoteCandidates = new ArrayDeque<>();
+            sessionsBufferingCandidates.incrementAndGet();
+        }
+        if (session.pendingRemoteCandidates.size() >= options.maxPendingRemoteCandidates) {
+            remoteCandidatesOverflowed.incrementAndGet();
+            return;
+        }
+        session.pendingRemoteCandidates.add(candidate);
+        remoteCandidatesBuffered.incrementAndGet();
+    }
+
+    private void drainRemoteCandidates(ViewerSession session) {
+        ArrayDeque<IceCandidate> pending = session.pendingRemoteCandidates;
+        if (pending == null) {
+            return;
+        }
+        session.pendingRemoteCandidates = null;
+        Log.d(TAG, "Adding " + pending.size() + " early candidates for " + session.viewerId);
+        for (IceCandidate candidate : pending) {
+            session.peerConnection.addIceCandidate(candidate);
+        }
+    }
+
+    public void closeSession(String viewerId) {
+        post(() -> closeSessionNow(viewerId));
+    }
+
+    private void closeSessionNow(String viewerId) {
+        ViewerSession session = engine.close(viewerId);
+        candidateBatcher.discard(viewerId);
+        if (session != null) {
+            sessionsClosed.incrementAndGet();
+            if (statsSampler != null) {
+                statsSampler.remove(viewerId);
+            }
+            if (session.onCellular) {
+                countSessionsOnCellular();
+            }
+            Log.d(TAG, "Viewer session closed for " + viewerId + ", active sessions: " + sessions.size());
+            logEncoderFanOut();
+        }
+    }
+
+    private void logEncoderFanOut() {
+        if (sharedEncoderFactory != null) {
+            Log.d(TAG, "Shared encoder: " + sharedEncoderFactory.getEncodedFrameCount() + " frames encoded, "
+                    + sharedEncoderFactory.getDeliveredFrameCount() + " delivered");
+        }
+    }
+
+    /** Closes a departed viewer's session and forgets its layer choice. */
+    public void removeViewer(String viewerId) {
+        post(() -> {
+            pendingOffers.remove(viewerId);
+            closeSessionNow(viewerId);
+            setViewerLayerNow(viewerId, null);
+        });
+    }
+
+    /**
+     * After a signaling reconnect: closes direct sessions for viewers the server no
+     * longer has and offers to those it has that we don't. The relay session is
+     * left alone.
+     */
+    public void reconcileViewers(List<String> viewerIds, OfferFactory offers) {
+        post(() -> {
+            Set<String> current = new HashSet<>(viewerIds);
+            for (String viewerId : new ArrayList<>(sessions.keySet())) {
+                if (!current.contains(viewerId) && !viewerId.equals(relayId)) {
+                    Log.d(TAG, "Viewer " + viewerId + " left while signaling was down");
+                    closeSessionNow(viewerId);
+                    setViewerLayerNow(viewerId, null);
+                }
+            }
+            pendingOffers.keySet().removeIf(viewerId -> !current.contains(viewerId) && !viewerId.equals(relayId));
+            for (String viewerId : current) {
+                if (!sessions.containsKey(viewerId) && !pendingOffers.containsKey(viewerId)) {
+                    requestOffer(viewerId, options.negotiationMode, offers.callbackFor(viewerId));
+                }
+            }
+        });
+    }
+
+    public void closeAllSessions() {
+        post(this::closeAllSessionsNow);
+    }
+
+    private void closeAllSessionsNow() {
+        relayId = null;
+        viewerLayers.clear();
+        pendingOffers.clear();
+        candidateBatcher.clear();
+        sessionsClosed.addAndGet(engine.closeAll());
+        sessionsOnCellular = 0;
+        if (statsSampler != null) {
+            statsSampler.clear();
+        }
+    }
+
+    /** Viewers with stats history; empty when the history is disabled. */
+    public Set<String> getStatsViewerIds() {
+        return statsSampler != null ? statsSampler.getViewerIds() : Collections.emptySet();
+    }
+
+    /** Percentile (0..100) of a viewer's recent {@code metric} samples, or NaN when there are none. */
+    public double getStatsPercentile(String viewerId, StatsSampler.Metric metric, double percentile) {
+        return statsSampler != null ? statsSampler.getPercentile(viewerId, metric, percentile) : Double.NaN;
+    }
+
+    public double getStatsMean(String viewerId, StatsSampler.Metric metric) {
+        return statsSampler != null ? statsSampler.getMean(viewerId, metric) : Double.NaN;
+    }
+
+    public double getStatsLatest(String viewerId, StatsSampler.Metric metric) {
+        return statsSampler != null ? statsSampler.getLatest(viewerId, metric) : Double.NaN;
+    }
+
+    /** Share (0..1) of a viewer's recent samples held back by {@code limitation}, or NaN. */
+    public double getLimitationShare(String viewerId, StatsSampler.Limitation limitation) {
+        return statsSampler != null ? statsSampler.getLimitationShare(viewerId, limitation) : Double.NaN;
+    }
+
+    /**
+     * Fills a fleet telemetry reading from the stats history and process CPU time.
+     * Bitrate is summed over viewers, frame rate is the best any viewer gets. Call it
+     * from one thread, e.g. the telemetry scheduler; it takes no lock the engine uses.
+     */
+    public void sampleHealth(StreamHealth health) {
+        long bitrateBps = 0;
+        double fps = 0;
+        for (String viewerId : getStatsViewerIds()) {
+            double bitrate = getStatsLatest(viewerId, StatsSampler.Metric.BITRATE_BPS);
+            if (!Double.isNaN(bitrate)) {
+                bitrateBps += (long) bitrate;
+            }
+            double viewerFps = getStatsLatest(viewerId, StatsSampler.Metric.FPS);
+            if (!Double.isNaN(viewerFps)) {
+                fps = Math.max(fps, viewerFps);
+            }
+        }
+
+        long nowMs = SystemClock.elapsedRealtime();
+        long cpuTimeMs = Process.getElapsedCpuTime();
+        double cpuPercent = 0;
+        if (lastCpuTimeMs >= 0 && nowMs > lastCpuWallMs) {
+            cpuPercent = (cpuTimeMs - lastCpuTimeMs) * 100.0
+                    / ((nowMs - lastCpuWallMs) * Runtime.getRuntime().availableProcessors());
+        }
+        lastCpuTimeMs = cpuTimeMs;
+        lastCpuWallMs = nowMs;
+
+        health.timestampMs = System.currentTimeMillis();
+        health.bitrateBps = bitrateBps;
+        health.framesPerSecond = fps;
+        health.viewers = engine.getSessionCount();
+        health.cpuPercent = Math.min(100, cpuPercent);
+        health.tier = qualityTier.ordinal();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter out) {
+        out.gauge("dome_sessions", "Open viewer sessions", engine.getSessionCount());
+        out.counter("dome_sessions_opened_total", "Viewer sessions opened", sessionsOpened.get());
+        out.counter("dome_sessions_closed_total", "Viewer sessions closed", sessionsClosed.get());
+        out.histogram("dome_negotiation_seconds", "Offer creation to remote answer applied", negotiationLatency);
+        out.histogram("dome_ice_restart_negotiation_seconds", "ICE restart offer to remote answer applied",
+                restartNegotiationLatency);
+        out.histogram("dome_offer_gathering_wait_seconds", "Half-trickle offers held for ICE gathering",
+                gatheringWait);
+        out.counter("dome_offer_gathering_deadlines_total", "Half-trickle offers sent at the deadline, gathering unfinished",
+                gatheringDeadlinesHit.get());
+        out.counter("dome_remote_candidates_buffered_total", "Remote candidates held until the answer was applied",
+                remoteCandidatesBuffered.get());
+        out.counter("dome_sessions_buffered_candidates_total", "Sessions that received candidates before their answer",
+                sessionsBufferingCandidates.get());
+        out.family("dome_remote_candidates_dropped_total", "counter", "Remote candidates that could not be used, by reason");
+        out.sample("dome_remote_candidates_dropped_total", "reason", "overflow", remoteCandidatesOverflowed.get());
+        out.sample("dome_remote_candidates_dropped_total", "reason", "no_session", remoteCandidatesWithoutSession.get());
+        out.family("dome_offer_sdp_chars_total", "counter", "Offer SDP size as created and as set after munging");
+        out.sample("dome_offer_sdp_chars_total", "stage", "created", offerSdpCreatedChars.get());
+        out.sample("dome_offer_sdp_chars_total", "stage", "set", offerSdpSetChars.get());
+        out.counter("dome_munged_offers_rejected_total", "Munged offers libwebrtc refused, set as created instead",
+                mungedOffersRejected.get());
+        out.family("dome_ice_restarts_total", "counter", "ICE restarts on existing sessions, by trigger");
+        for (int i = 0; i < RESTART_REASONS.length; i++) {
+            out.sample("dome_ice_restarts_total", "reason", RESTART_REASONS[i], iceRestarts.get(i));
+        }
+        out.counter("dome_ice_restarts_abandoned_total", "Sessions left to fail after the most ICE restarts in a row",
+                iceRestartsAbandoned.get());
+        out.counter("dome_network_changes_total", "Default network switches seen while streaming", networkChanges.get());
+        out.histogram("dome_handover_gap_seconds", "Connectivity lost (network gone or ICE disconnected) to ICE connected again",
+                handoverGap);
+        out.counter("dome_selected_pair_changes_total", "ICE moves to another candidate pair, failovers included",
+                selectedPairChanges.get());
+        out.histogram("dome_pair_switch_gap_seconds", "Time without data before ICE moved to another pair, as WebRTC estimates it",
+                pairSwitchGap);
+        out.counter("dome_path_steers_total", "Network preference changes after RTT or loss spikes", pathSteers.get());
+        out.counter("dome_cellular_bytes_sent_total", "Bytes sent on cellular candidate pairs", cellularBytesSent.get());
+        out.gauge("dome_sessions_on_cellular", "Sessions whose selected pair is on cellular", sessionsOnCellular);
+        out.family("dome_time_to_connected_seconds", "histogram",
+                "Session creation to ICE connected, by negotiation mode and the phone's network");
+        for (int mode = 0; mode < NEGOTIATION_MODES.length; mode++) {
+            for (int network = 0; network < NETWORK_LABELS.length; network++) {
+                out.histogramSeries("dome_time_to_connected_seconds", timeToConnectedLabels[mode][network],
+                        timeToConnected[mode][network]);
+            }
+        }
+        out.family("dome_ice_transitions_total", "counter", "ICE connection state changes, by new state");
+        for (int i = 0; i < ICE_STATE_LABELS.length; i++) {
+            out.sample("dome_ice_transitions_total", "state", ICE_STATE_LABELS[i], iceTransitions.get(i));
+        }
+        out.counter("dome_video_bytes_sent_total", "Video bytes sent to viewers, as of the last stats poll",
+                videoBytesSent.get());
+        out.counter("dome_abr_rung_changes_total", "Adaptive bitrate ladder moves", abrRungChanges.get());
+        out.gauge("dome_quality_tier", "Quality governor tier, 0 = normal", qualityTier.ordinal());
+    }
+
+    /** Index into NETWORK_LABELS of the network the phone is on now. */
+    private int activeNetwork() {
+        ConnectivityManager connectivity = (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkCapabilities capabilities = connectivity != null
+                ? connectivity.getNetworkCapabilities(connectivity.getActiveNetwork()) : null;
+        if (capabilities == null) {
+            return NETWORK_OTHER;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return 0;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return 1;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return 2;
+        }
+        return NETWORK_OTHER;
+    }
+
+    /** Sessions open as of the last change on the media thread; safe to read from anywhere. */
+    public int getSessionCount() {
+        return engine.getSessionCount();
+    }
+
     public void close() {
+        statsScheduler.shutdownNow();
+        if (networkCallback != null) {
+            ConnectivityManager connectivity =
+                    (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE);
+            connectivity.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+        if (governor != null) {
+            governor.stop();
+            governor = null;
+        }
+        cameraExecutor.shutdownNow();
+        // Queued behind any startup work still in flight, so nothing is released mid-build.
+        engine.shutdown(this::releaseMedia);
+    }
+
+    private void releaseMedia() {
+        // Sessions go first, so no connection still sends from a track disposed below.
+        closeAllSessionsNow();
         if (videoCapturer != null) {
             try {
                 videoCapturer.stopCapture();
@@ -359,13 +1634,13 @@ public class WebRTCClient {
             localAudioTrack.dispose();
             localAudioTrack = null;
         }
-        if (peerConnection != null) {
-            peerConnection.close();
-            peerConnection = null;
+        if (surfaceTextureHelper != null) {
+            surfaceTextureHelper.dispose();
+            surfaceTextureHelper = null;
         }
         if (peerConnectionFactory != null) {
             peerConnectionFactory.dispose();
-            // peerConnectionFactory = null; // final field
+            peerConnectionFactory = null;
         }
         if (eglBase != null) {
             eglBase.release();
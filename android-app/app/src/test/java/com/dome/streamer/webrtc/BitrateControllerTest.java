@@ -0,0 +1,144 @@
+package com.dome.streamer.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays stats traces (one sender sample per line, as the client's stats poll sees
+ * them) through the default ABR policy and checks the bitrate it targets. Traces may
+ * leave out the trailing availableOutgoingBitrate column, as when there is no estimate.
+ */
+public class BitrateControllerTest {
+
+    @Test
+    public void congestionStepsDownEveryTwoBadSamples() throws IOException {
+        List<Integer> targets = replay("congestion.csv");
+
+        // Ten samples at the top rung, the lone lossy one (index 5) included
+        for (int i = 0; i < 10; i++) {
+            assertEquals("sample " + i, 1_200_000, (int) targets.get(i));
+        }
+        // Then one rung down for every second congested sample, to the bottom
+        assertEquals(1_200_000, (int) targets.get(10));
+        assertEquals(800_000, (int) targets.get(11));
+        assertEquals(800_000, (int) targets.get(12));
+        assertEquals(500_000, (int) targets.get(13));
+        assertEquals(300_000, (int) targets.get(15));
+        assertEquals(150_000, (int) targets.get(17));
+    }
+
+    @Test
+    public void recoveryClimbsOneRungPerFiveCleanSamples() throws IOException {
+        List<Integer> targets = replay("recovery.csv");
+
+        assertEquals(150_000, (int) targets.get(7));
+        // Clean from sample 8: up after each run of five, never faster than the hold
+        assertEquals(150_000, (int) targets.get(11));
+        assertEquals(300_000, (int) targets.get(12));
+        assertEquals(300_000, (int) targets.get(16));
+        assertEquals(500_000, (int) targets.get(17));
+        assertEquals(800_000, (int) targets.get(22));
+        assertEquals(1_200_000, (int) targets.get(27));
+        assertEquals(1_200_000, (int) targets.get(targets.size() - 1));
+    }
+
+    @Test
+    public void heldAtItsOwnCapTheSenderStillClimbsBack() throws IOException {
+        // No bandwidth estimate, and "bandwidth" reported throughout because of the rung's cap
+        List<Integer> targets = replay("capped.csv");
+
+        assertEquals(800_000, (int) targets.get(1));
+        assertEquals(500_000, (int) targets.get(3));
+        assertEquals(500_000, (int) targets.get(7));
+        assertEquals(800_000, (int) targets.get(8));
+        assertEquals(800_000, (int) targets.get(12));
+        assertEquals(1_200_000, (int) targets.get(13));
+        for (int i = 13; i < targets.size(); i++) {
+            assertEquals("sample " + i, 1_200_000, (int) targets.get(i));
+        }
+    }
+
+    @Test
+    public void bandwidthEstimateBelowTheRungStepsDownWithoutLoss() throws IOException {
+        List<Integer> targets = replay("bwe.csv");
+
+        // A generous estimate outweighs the "bandwidth" verdict at the top rung's cap
+        for (int i = 0; i < 7; i++) {
+            assertEquals("sample " + i, 1_200_000, (int) targets.get(i));
+        }
+        // 600 kbps from sample 6: down until the rung fits under the estimate
+        assertEquals(800_000, (int) targets.get(7));
+        assertEquals(500_000, (int) targets.get(9));
+        assertEquals(500_000, (int) targets.get(13));
+        // Recovered from sample 12: back up at the usual pace
+        assertEquals(800_000, (int) targets.get(14));
+        assertEquals(800_000, (int) targets.get(18));
+        assertEquals(1_200_000, (int) targets.get(19));
+        assertEquals(1_200_000, (int) targets.get(targets.size() - 1));
+    }
+
+    @Test
+    public void measuresSendBitrateAndEncodeTimeFromCounterDeltas() throws IOException {
+        BitrateController controller = new BitrateController(AbrPolicy.defaults());
+        List<StreamStats> trace = load("congestion.csv");
+        controller.onSample(trace.get(0));
+        controller.onSample(trace.get(1));
+
+        StreamStats first = trace.get(0);
+        StreamStats second = trace.get(1);
+        double expectedBps = (second.bytesSent - first.bytesSent) * 8000.0 / (second.timestampMs - first.timestampMs);
+        assertEquals(expectedBps, controller.getSendBitrateBps(), 1e-6);
+        double expectedMs = (second.totalEncodeTimeSec - first.totalEncodeTimeSec) * 1000
+                / (second.framesEncoded - first.framesEncoded);
+        assertEquals(expectedMs, controller.getEncodeMsPerFrame(), 1e-6);
+    }
+
+    /** The rung bitrate the controller targets after each sample of the trace. */
+    private static List<Integer> replay(String trace) throws IOException {
+        BitrateController controller = new BitrateController(AbrPolicy.defaults());
+        List<Integer> targets = new ArrayList<>();
+        for (StreamStats sample : load(trace)) {
+            controller.onSample(sample);
+            targets.add(controller.getCurrentRung().maxBitrateBps);
+        }
+        return targets;
+    }
+
+    private static List<StreamStats> load(String trace) throws IOException {
+        InputStream in = BitrateControllerTest.class.getResourceAsStream("/traces/" + trace);
+        assertNotNull(trace, in);
+        List<StreamStats> samples = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.startsWith("timestampMs")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                StreamStats stats = new StreamStats();
+                stats.timestampMs = Long.parseLong(fields[0]);
+                stats.bytesSent = Long.parseLong(fields[1]);
+                stats.framesEncoded = Long.parseLong(fields[2]);
+                stats.totalEncodeTimeSec = Double.parseDouble(fields[3]);
+                stats.roundTripTimeSec = Double.parseDouble(fields[4]);
+                stats.fractionLost = Double.parseDouble(fields[5]);
+                stats.qualityLimitationReason = fields[6];
+                if (fields.length > 7) {
+                    stats.availableOutgoingBitrate = Double.parseDouble(fields[7]);
+                }
+                samples.add(stats);
+            }
+        }
+        return samples;
+    }
+}
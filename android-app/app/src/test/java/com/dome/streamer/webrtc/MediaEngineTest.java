@@ -0,0 +1,178 @@
+package com.dome.streamer.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MediaEngineTest {
+    private static final String THREAD = "MediaEngineTest";
+
+    private final MediaEngine<FakeSession> engine = new MediaEngine<>(THREAD);
+    private final List<FakeSession> created = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+    private final MediaEngine.SessionFactory<FakeSession> factory = id -> {
+        checkEngineThread();
+        if (id.endsWith("-broken")) {
+            return null; // as when no PeerConnection could be created
+        }
+        FakeSession session = new FakeSession(id);
+        created.add(session);
+        return session;
+    };
+
+    private class FakeSession implements MediaEngine.Session {
+        final String id;
+        final AtomicInteger closes = new AtomicInteger();
+
+        FakeSession(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void close() {
+            checkEngineThread();
+            closes.incrementAndGet();
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        engine.shutdown(engine::closeAll);
+        engine.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void interleavedJoinsAndLeavesLeakNothing() throws Exception {
+        int producers = 8;
+        int operations = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            long seed = p;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        String id = "viewer-" + random.nextInt(24) + (random.nextInt(20) == 0 ? "-broken" : "");
+                        int op = random.nextInt(100);
+                        if (op < 50) {
+                            // As createOfferNow: a rejoin replaces the old session
+                            post(() -> {
+                                engine.close(id);
+                                engine.open(id, factory);
+                            });
+                        } else if (op < 98) {
+                            post(() -> engine.close(id));
+                        } else {
+                            post(engine::closeAll);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    failures.add(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        CountDownLatch checked = new CountDownLatch(1);
+        post(() -> {
+            Map<String, FakeSession> open = engine.sessions();
+            assertEquals(open.size(), engine.getSessionCount());
+            for (FakeSession session : created) {
+                boolean current = open.get(session.id) == session;
+                // Open sessions were never closed; every other one was closed exactly once
+                assertEquals(session.id, current ? 0 : 1, session.closes.get());
+            }
+            for (String id : open.keySet()) {
+                assertFalse(id.endsWith("-broken"));
+            }
+            checked.countDown();
+        });
+        assertTrue(checked.await(10, TimeUnit.SECONDS));
+
+        engine.shutdown(engine::closeAll);
+        assertTrue(engine.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, engine.getSessionCount());
+        for (FakeSession session : created) {
+            assertEquals(session.id, 1, session.closes.get());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void openReplacesAndFailedOpenKeepsTheOldSession() throws Exception {
+        runOnEngine(() -> {
+            FakeSession first = engine.open("a", factory);
+            FakeSession second = engine.open("a", factory);
+            assertEquals(1, first.closes.get());
+            assertSame(second, engine.sessions().get("a"));
+
+            assertNull(engine.open("b-broken", factory));
+            assertFalse(engine.sessions().containsKey("b-broken"));
+            assertEquals(1, engine.getSessionCount());
+
+            assertSame(second, engine.close("a"));
+            assertNull(engine.close("a"));
+            assertEquals(1, second.closes.get());
+            assertEquals(0, engine.getSessionCount());
+        });
+    }
+
+    @Test
+    public void postAfterShutdownIsRefused() throws Exception {
+        engine.shutdown(() -> {});
+        assertTrue(engine.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(engine.post(() -> {}));
+    }
+
+    private void post(Runnable task) {
+        boolean accepted = engine.post(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        });
+        if (!accepted) {
+            failures.add(new AssertionError("engine refused work before shutdown"));
+        }
+    }
+
+    private void runOnEngine(Runnable task) throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        post(() -> {
+            try {
+                task.run();
+            } finally {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private void checkEngineThread() {
+        if (!THREAD.equals(Thread.currentThread().getName())) {
+            throw new AssertionError("session touched on " + Thread.currentThread().getName());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.dome.streamer.webrtc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays path checks (every 500 ms, as the client polls them) through the default
+ * network policy: Wi-Fi preferred, cellular as the warm standby.
+ */
+public class PathMonitorTest {
+    private static final long CHECK_MS = 500;
+
+    private final NetworkPolicy policy = NetworkPolicy.defaults();
+    private PathMonitor monitor;
+    private long now;
+    private long checks;
+
+    @Before
+    public void setUp() {
+        monitor = new PathMonitor(policy);
+        now = 1_000_000;
+        checks = 0;
+    }
+
+    @Test
+    public void rttSpikeFailsOverToCellularAndReturnsAfterTheHold() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("wifi", check("wifi-pair", "wifi", 0.040, 0.040, 0.080, true));
+        }
+        // Wi-Fi RTT jumps to 600 ms: the first impaired check is not enough...
+        assertEquals("wifi", check("wifi-pair", "wifi", 0.600, 0.600, 0.080, true));
+        // ...the second moves to the standby, a second after the spike began
+        assertEquals("cellular", check("wifi-pair", "wifi", 0.600, 0.600, 0.080, true));
+        long switchedAt = now;
+
+        // ICE follows the preference; Wi-Fi recovers at once, but the hold keeps cellular
+        while (now + CHECK_MS - switchedAt < policy.returnHoldMs) {
+            assertEquals("cellular", check("cell-pair", "cellular", 0.080, 0.040, 0.080, true));
+        }
+        assertEquals("wifi", check("cell-pair", "cellular", 0.080, 0.040, 0.080, true));
+    }
+
+    @Test
+    public void staysOnTheStandbyWhilePreferredNetworkIsStillBad() {
+        spikeOnto("cellular");
+        for (int i = 0; i < 30; i++) {
+            assertEquals("cellular", check("cell-pair", "cellular", 0.080, 0.900, 0.080, true));
+        }
+    }
+
+    @Test
+    public void unansweredChecksFailOver() {
+        long requests = 0;
+        for (int i = 0; i < 8; i++) {
+            requests += 2;
+            assertEquals("wifi", check("wifi-pair", "wifi", 0.040, requests, requests, 0.040, 0.080));
+        }
+        long answered = requests;
+        // Responses stop; RTT still shows the last good value. Two checks later it has moved.
+        requests += 2;
+        assertEquals("wifi", check("wifi-pair", "wifi", 0.040, requests, answered, 0.040, 0.080));
+        requests += 2;
+        assertEquals("cellular", check("wifi-pair", "wifi", 0.040, requests, answered, 0.040, 0.080));
+    }
+
+    @Test
+    public void spentCellularBudgetLeavesCellularAtOnce() {
+        spikeOnto("cellular");
+        assertEquals("cellular", check("cell-pair", "cellular", 0.080, 0.900, 0.080, true));
+        // Budget spent: back to Wi-Fi even though it is still bad and the hold has not passed
+        assertEquals("wifi", check("cell-pair", "cellular", 0.080, 0.900, 0.080, false));
+    }
+
+    @Test
+    public void spentCellularBudgetNeverMovesToCellular() {
+        for (int i = 0; i < 10; i++) {
+            check("wifi-pair", "wifi", 0.040, 0.040, 0.080, false);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("wifi", check("wifi-pair", "wifi", 0.600, 0.600, 0.080, false));
+        }
+    }
+
+    @Test
+    public void noStandbyPairMeansNoMove() {
+        for (int i = 0; i < 10; i++) {
+            check("wifi-pair", "wifi", 0.040, 0.040, -1, true);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("wifi", check("wifi-pair", "wifi", 0.600, 0.600, -1, true));
+        }
+    }
+
+    private void spikeOnto(String expected) {
+        for (int i = 0; i < 10; i++) {
+            check("wifi-pair", "wifi", 0.040, 0.040, 0.080, true);
+        }
+        check("wifi-pair", "wifi", 0.600, 0.600, 0.080, true);
+        assertEquals(expected, check("wifi-pair", "wifi", 0.600, 0.600, 0.080, true));
+    }
+
+    /** One check with every connectivity check answered; a negative RTT leaves that network out. */
+    private String check(String pairId, String network, double rttSec, double wifiRttSec, double cellularRttSec,
+                         boolean cellularAllowed) {
+        checks += 2;
+        return monitor.onSample(sample(pairId, network, rttSec, checks, checks, wifiRttSec, cellularRttSec),
+                cellularAllowed);
+    }
+
+    private String check(String pairId, String network, double rttSec, long requests, long responses,
+                         double wifiRttSec, double cellularRttSec) {
+        return monitor.onSample(sample(pairId, network, rttSec, requests, responses, wifiRttSec, cellularRttSec), true);
+    }
+
+    private PathStats sample(String pairId, String network, double rttSec, long requests, long responses,
+                             double wifiRttSec, double cellularRttSec) {
+        now += CHECK_MS;
+        PathStats stats = new PathStats();
+        stats.timestampMs = now;
+        stats.selectedPairId = pairId;
+        stats.selectedNetwork = network;
+        stats.selectedRoundTripTimeSec = rttSec;
+        stats.selectedRequestsSent = requests;
+        stats.selectedResponsesReceived = responses;
+        if (wifiRttSec >= 0) {
+            stats.bestRoundTripTimeSec.put("wifi", wifiRttSec);
+        }
+        if (cellularRttSec >= 0) {
+            stats.bestRoundTripTimeSec.put("cellular", cellularRttSec);
+        }
+        return stats;
+    }
+}
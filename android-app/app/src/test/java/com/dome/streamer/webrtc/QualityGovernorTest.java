@@ -0,0 +1,115 @@
+package com.dome.streamer.webrtc;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.PowerManager;
+
+import com.dome.streamer.webrtc.QualityGovernor.Tier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays thermal and battery sequences against the governor's clock, ticking every
+ * 10 s as the client does.
+ */
+public class QualityGovernorTest {
+    private static final long TICK_MS = 10_000;
+
+    private final List<Tier> changes = new ArrayList<>();
+    private QualityGovernor governor;
+    private long now;
+
+    @Before
+    public void setUp() {
+        now = 1_000_000;
+        changes.clear();
+        governor = new QualityGovernor(changes::add, () -> now);
+    }
+
+    @Test
+    public void overheatingDropsAtOnceAndRecoversOneTierPerHold() {
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_CRITICAL);
+        assertEquals(Tier.MINIMAL, governor.getTier());
+
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_NONE);
+        long coolSince = now;
+        // Cool again, but nothing moves until the device has stayed cool for the hold...
+        tickUntil(coolSince + governor.recoveryHoldMs - 1);
+        assertEquals(Tier.MINIMAL, governor.getTier());
+
+        // ...then it climbs one tier per hold, not straight back to normal
+        tickUntil(coolSince + governor.recoveryHoldMs);
+        assertEquals(Tier.LOW, governor.getTier());
+        tickUntil(coolSince + 2 * governor.recoveryHoldMs);
+        assertEquals(Tier.REDUCED, governor.getTier());
+        tickUntil(coolSince + 3 * governor.recoveryHoldMs);
+        assertEquals(Tier.NORMAL, governor.getTier());
+
+        tickUntil(now + 5 * governor.recoveryHoldMs);
+        assertEquals(Arrays.asList(Tier.MINIMAL, Tier.LOW, Tier.REDUCED, Tier.NORMAL), changes);
+    }
+
+    @Test
+    public void renewedHeatRestartsTheHold() {
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_SEVERE);
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_NONE);
+
+        tickUntil(now + governor.recoveryHoldMs / 2);
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_SEVERE);
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_NONE);
+        long coolSince = now;
+
+        tickUntil(coolSince + governor.recoveryHoldMs - 1);
+        assertEquals(Tier.LOW, governor.getTier());
+        tickUntil(coolSince + governor.recoveryHoldMs);
+        assertEquals(Tier.REDUCED, governor.getTier());
+        assertEquals(Arrays.asList(Tier.LOW, Tier.REDUCED), changes);
+    }
+
+    @Test
+    public void theWorseOfThermalAndBatteryWins() {
+        governor.onBatteryChanged(25, false);
+        assertEquals(Tier.REDUCED, governor.getTier());
+
+        // Battery says reduced, heat says low: low wins
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_SEVERE);
+        assertEquals(Tier.LOW, governor.getTier());
+
+        // Cooling down only recovers as far as the battery allows
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_NONE);
+        tickUntil(now + 3 * governor.recoveryHoldMs);
+        assertEquals(Tier.REDUCED, governor.getTier());
+
+        // A critical battery on a warm device: the battery is now the worse of the two
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_MODERATE);
+        governor.onBatteryChanged(12, false);
+        assertEquals(Tier.LOW, governor.getTier());
+
+        // Plugging in leaves the heat as the limit
+        governor.onBatteryChanged(12, true);
+        tickUntil(now + 3 * governor.recoveryHoldMs);
+        assertEquals(Tier.REDUCED, governor.getTier());
+
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_LIGHT);
+        tickUntil(now + 3 * governor.recoveryHoldMs);
+        assertEquals(Tier.NORMAL, governor.getTier());
+        assertEquals(Arrays.asList(Tier.REDUCED, Tier.LOW, Tier.REDUCED, Tier.LOW, Tier.REDUCED, Tier.NORMAL),
+                changes);
+    }
+
+    private void tickUntil(long until) {
+        while (now + TICK_MS <= until) {
+            now += TICK_MS;
+            governor.tick();
+        }
+        if (now < until) {
+            now = until;
+            governor.tick();
+        }
+    }
+}
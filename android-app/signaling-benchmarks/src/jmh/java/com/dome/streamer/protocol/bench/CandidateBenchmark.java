@@ -0,0 +1,47 @@
+package com.dome.streamer.protocol.bench;
+
+import com.dome.streamer.protocol.SignalingCodec;
+import com.dome.streamer.protocol.SignalingMessage;
+import com.google.gson.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the outgoing ice-candidate frame for a local candidate, as done from
+ * WebRTCClient's onIceCandidate. {@code legacy} is the previous path: the candidate
+ * serialized to a JSON string, then embedded as a string property in the frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CandidateBenchmark {
+    private static final String TARGET_ID = "7d2c7a4e-1f0b-4a55-9b53-0e6f2a0d8c11";
+
+    private final SignalingCodec codec = new SignalingCodec();
+
+    @Benchmark
+    public String typed() {
+        SignalingMessage.Candidate candidate = new SignalingMessage.Candidate(SampleMessages.CANDIDATE, "0", 0);
+        return codec.encode(new SignalingMessage.IceCandidate(candidate, TARGET_ID));
+    }
+
+    @Benchmark
+    public String legacy() {
+        JsonObject candidate = new JsonObject();
+        candidate.addProperty("candidate", SampleMessages.CANDIDATE);
+        candidate.addProperty("sdpMid", "0");
+        candidate.addProperty("sdpMLineIndex", 0);
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "ice-candidate");
+        message.addProperty("candidate", candidate.toString());
+        message.addProperty("targetId", TARGET_ID);
+        return message.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package com.dome.streamer.protocol.bench;
+
+import com.dome.streamer.protocol.SignalingCodec;
+import com.dome.streamer.protocol.SignalingMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode and encode cost per message type. {@code legacyDecode} replays the previous
+ * receive path: a Gson tree for the frame, {@code toString()} on the nested payload,
+ * then a second parse of that string, as SignalingClient and WebRTCClient used to do.
+ * Run with {@code -prof gc} (the default here) to see allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+
+    @Param({"offer-1codec", "offer-5codecs", "offer-simulcast", "ice-candidate", "viewer-joined"})
+    public String kind;
+
+    private final SignalingCodec codec = new SignalingCodec();
+    private final Gson gson = new Gson();
+    private String frame;
+    private SignalingMessage message;
+
+    @Setup
+    public void setUp() throws IOException {
+        frame = SampleMessages.frame(kind);
+        message = codec.decode(frame);
+    }
+
+    @Benchmark
+    public SignalingMessage decode() throws IOException {
+        return codec.decode(frame);
+    }
+
+    @Benchmark
+    public String encode() {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public Object legacyDecode() {
+        JsonObject json = gson.fromJson(frame, JsonObject.class);
+        String type = json.get("type").getAsString();
+        JsonElement payload = json.get(type.equals("ice-candidate") ? "candidate" : type);
+        if (payload == null || !payload.isJsonObject()) {
+            return json;
+        }
+        // The nested object went to WebRTCClient as a string and was parsed again there.
+        return gson.fromJson(payload.toString(), JsonObject.class);
+    }
+}
@@ -0,0 +1,65 @@
+package com.dome.streamer.protocol.bench;
+
+import com.dome.streamer.protocol.SignalingCodec;
+import com.dome.streamer.protocol.SignalingMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode and dispatch of a mixed message stream with several threads sharing one
+ * codec, the way a busy streamer sees a burst of joins, answers and candidates.
+ * Dispatch mirrors SignalingClient's type checks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DispatchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final SignalingCodec codec = new SignalingCodec();
+        String[] frames;
+
+        @Setup
+        public void setUp() {
+            String answer = SampleMessages.descriptionFrame("answer", SampleMessages.sdp("answer", 1, false));
+            String candidate = SampleMessages.iceCandidate();
+            String joined = SampleMessages.viewerJoined();
+            // Roughly what one viewer join produces: one answer, several candidates
+            frames = new String[] {joined, answer, candidate, candidate, candidate, candidate, candidate};
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void decodeAndDispatch(Shared shared, Cursor cursor, Blackhole blackhole) throws IOException {
+        String frame = shared.frames[cursor.next];
+        cursor.next = (cursor.next + 1) % shared.frames.length;
+
+        SignalingMessage message = shared.codec.decode(frame);
+        if (message instanceof SignalingMessage.ViewerEvent) {
+            blackhole.consume(((SignalingMessage.ViewerEvent) message).viewerId);
+        } else if (message instanceof SignalingMessage.Description) {
+            blackhole.consume(((SignalingMessage.Description) message).description.sdp);
+        } else if (message instanceof SignalingMessage.IceCandidate) {
+            blackhole.consume(((SignalingMessage.IceCandidate) message).candidate);
+        } else {
+            blackhole.consume(message);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.dome.streamer.protocol.bench;
+
+/**
+ * Realistic signaling frames. Offers are shaped like the ones the Android client
+ * produces: BUNDLEd unified-plan audio plus a send-only video section carrying the
+ * codecs WebRTC offers by default, optionally with three simulcast layers.
+ */
+final class SampleMessages {
+    private SampleMessages() {}
+
+    static final String CANDIDATE =
+            "candidate:842163049 1 udp 1677729535 203.0.113.24 51234 typ srflx raddr 192.168.1.23 rport 51234 "
+                    + "generation 0 ufrag EsAw network-id 3 network-cost 10";
+
+    /** The frame a benchmark's {@code kind} parameter names. */
+    static String frame(String kind) {
+        switch (kind) {
+            case "offer-1codec":
+                return descriptionFrame("offer", sdp("offer", 1, false));
+            case "offer-5codecs":
+                return descriptionFrame("offer", sdp("offer", 5, false));
+            case "offer-simulcast":
+                return descriptionFrame("offer", sdp("offer", 5, true));
+            case "ice-candidate":
+                return iceCandidate();
+            case "viewer-joined":
+                return viewerJoined();
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+    }
+
+    static String viewerJoined() {
+        return "{\"type\":\"viewer-joined\",\"viewerId\":\"7d2c7a4e-1f0b-4a55-9b53-0e6f2a0d8c11\",\"streamId\":\"cam-4821\"}";
+    }
+
+    static String iceCandidate() {
+        return "{\"type\":\"ice-candidate\",\"candidate\":{\"candidate\":\"" + CANDIDATE + "\",\"sdpMid\":\"0\","
+                + "\"sdpMLineIndex\":0,\"usernameFragment\":\"EsAw\"},\"senderId\":\"7d2c7a4e-1f0b-4a55-9b53-0e6f2a0d8c11\"}";
+    }
+
+    /** @param videoCodecs how many of the default video codecs to include (1..5) */
+    static String sdp(String type, int videoCodecs, boolean simulcast) {
+        StringBuilder sdp = new StringBuilder(8192);
+        line(sdp, "v=0");
+        line(sdp, "o=- 4611731400430051336 2 IN IP4 127.0.0.1");
+        line(sdp, "s=-");
+        line(sdp, "t=0 0");
+        line(sdp, "a=group:BUNDLE 0 1");
+        line(sdp, "a=extmap-allow-mixed");
+        line(sdp, "a=msid-semantic: WMS local_stream");
+
+        line(sdp, "m=video 9 UDP/TLS/RTP/SAVPF " + payloadList(videoCodecs));
+        line(sdp, "c=IN IP4 0.0.0.0");
+        line(sdp, "a=rtcp:9 IN IP4 0.0.0.0");
+        line(sdp, "a=ice-ufrag:EsAw");
+        line(sdp, "a=ice-pwd:bP+XJMM09aR8AiX1jdukzR6Y");
+        line(sdp, "a=ice-options:trickle renomination");
+        line(sdp, "a=fingerprint:sha-256 7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08");
+        line(sdp, "a=setup:actpass");
+        line(sdp, "a=mid:0");
+        String[] extensions = {
+                "urn:ietf:params:rtp-hdrext:toffset",
+                "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+                "urn:3gpp:video-orientation",
+                "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+                "http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+                "http://www.webrtc.org/experiments/rtp-hdrext/video-content-type",
+                "http://www.webrtc.org/experiments/rtp-hdrext/video-timing",
+                "http://www.webrtc.org/experiments/rtp-hdrext/color-space",
+                "urn:ietf:params:rtp-hdrext:sdes:mid",
+                "urn:ietf:params:rtp-hdrext:sdes:rtp-stream-id",
+                "urn:ietf:params:rtp-hdrext:sdes:repaired-rtp-stream-id"};
+        for (int i = 0; i < extensions.length; i++) {
+            line(sdp, "a=extmap:" + (i + 2) + " " + extensions[i]);
+        }
+        line(sdp, "a=sendonly");
+        line(sdp, "a=msid:local_stream local_video_track");
+        line(sdp, "a=rtcp-mux");
+        line(sdp, "a=rtcp-rsize");
+        String[] codecs = {"H264", "VP8", "VP9", "H265", "AV1"};
+        for (int i = 0; i < videoCodecs; i++) {
+            int pt = 96 + i * 2;
+            line(sdp, "a=rtpmap:" + pt + " " + codecs[i] + "/90000");
+            line(sdp, "a=rtcp-fb:" + pt + " goog-remb");
+            line(sdp, "a=rtcp-fb:" + pt + " transport-cc");
+            line(sdp, "a=rtcp-fb:" + pt + " ccm fir");
+            line(sdp, "a=rtcp-fb:" + pt + " nack");
+            line(sdp, "a=rtcp-fb:" + pt + " nack pli");
+            if (i == 0) {
+                line(sdp, "a=fmtp:" + pt + " level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f");
+            }
+            line(sdp, "a=rtpmap:" + (pt + 1) + " rtx/90000");
+            line(sdp, "a=fmtp:" + (pt + 1) + " apt=" + pt);
+        }
+        line(sdp, "a=rtpmap:120 red/90000");
+        line(sdp, "a=rtpmap:121 rtx/90000");
+        line(sdp, "a=fmtp:121 apt=120");
+        line(sdp, "a=rtpmap:122 ulpfec/90000");
+        if (simulcast) {
+            line(sdp, "a=rid:f send");
+            line(sdp, "a=rid:h send");
+            line(sdp, "a=rid:q send");
+            line(sdp, "a=simulcast:send f;h;q");
+        } else {
+            line(sdp, "a=ssrc-group:FID 2417829562 1860372716");
+            line(sdp, "a=ssrc:2417829562 cname:N7a9dWjMbb2EJ1sZ");
+            line(sdp, "a=ssrc:2417829562 msid:local_stream local_video_track");
+            line(sdp, "a=ssrc:1860372716 cname:N7a9dWjMbb2EJ1sZ");
+            line(sdp, "a=ssrc:1860372716 msid:local_stream local_video_track");
+        }
+
+        line(sdp, "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 9 0 8 13 110 126");
+        line(sdp, "c=IN IP4 0.0.0.0");
+        line(sdp, "a=rtcp:9 IN IP4 0.0.0.0");
+        line(sdp, "a=ice-ufrag:EsAw");
+        line(sdp, "a=ice-pwd:bP+XJMM09aR8AiX1jdukzR6Y");
+        line(sdp, "a=ice-options:trickle renomination");
+        line(sdp, "a=setup:actpass");
+        line(sdp, "a=mid:1");
+        line(sdp, "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level");
+        line(sdp, "a=sendonly");
+        line(sdp, "a=msid:local_stream local_audio_track");
+        line(sdp, "a=rtcp-mux");
+        line(sdp, "a=rtpmap:111 opus/48000/2");
+        line(sdp, "a=rtcp-fb:111 transport-cc");
+        line(sdp, "a=fmtp:111 minptime=10;useinbandfec=1");
+        line(sdp, "a=rtpmap:63 red/48000/2");
+        line(sdp, "a=fmtp:63 111/111");
+        line(sdp, "a=rtpmap:9 G722/8000");
+        line(sdp, "a=rtpmap:0 PCMU/8000");
+        line(sdp, "a=rtpmap:8 PCMA/8000");
+        line(sdp, "a=rtpmap:13 CN/8000");
+        line(sdp, "a=rtpmap:110 telephone-event/48000");
+        line(sdp, "a=rtpmap:126 telephone-event/8000");
+        line(sdp, "a=ssrc:3735928559 cname:N7a9dWjMbb2EJ1sZ");
+        return sdp.toString();
+    }
+
+    /** A frame as relayed by the server, with the SDP nested as an object. */
+    static String descriptionFrame(String type, String sdp) {
+        return "{\"type\":\"" + type + "\",\"" + type + "\":{\"type\":\"" + type + "\",\"sdp\":\""
+                + escape(sdp) + "\"},\"senderId\":\"7d2c7a4e-1f0b-4a55-9b53-0e6f2a0d8c11\"}";
+    }
+
+    private static String payloadList(int videoCodecs) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < videoCodecs; i++) {
+            list.append(96 + i * 2).append(' ').append(97 + i * 2).append(' ');
+        }
+        return list.append("120 121 122").toString();
+    }
+
+    private static void line(StringBuilder sdp, String line) {
+        sdp.append(line).append("\r\n");
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "\\r").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,72 @@
+package com.dome.streamer.protocol.bench;
+
+import com.dome.streamer.protocol.SdpMunger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of trimming an offer with the default {@link SdpMunger}, and the SDP that is
+ * left as the {@code mungedChars} counter; {@code offerChars} is the offer as created.
+ * In this mode JMH prints the counters as time per character; the score divided by
+ * the counter is characters per offer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SdpMungerBenchmark {
+
+    @Param({"offer-1codec", "offer-5codecs", "offer-simulcast"})
+    public String kind;
+
+    private final SdpMunger munger = SdpMunger.defaults();
+    private String sdp;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Size {
+        public long offerChars;
+        public long mungedChars;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            offerChars = 0;
+            mungedChars = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        switch (kind) {
+            case "offer-1codec":
+                sdp = SampleMessages.sdp("offer", 1, false);
+                break;
+            case "offer-5codecs":
+                sdp = SampleMessages.sdp("offer", 5, false);
+                break;
+            case "offer-simulcast":
+                sdp = SampleMessages.sdp("offer", 5, true);
+                break;
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+    }
+
+    @Benchmark
+    public String munge(Size size) {
+        String munged = munger.munge(sdp);
+        size.offerChars += sdp.length();
+        size.mungedChars += munged.length();
+        return munged;
+    }
+}
@@ -0,0 +1,55 @@
+package com.dome.streamer.protocol.bench;
+
+import com.dome.streamer.protocol.TelemetryEncoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stream-stats report of six samples: time, allocation (via the gc profiler)
+ * and, as the {@code reportChars} counter, the size that goes on the wire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TelemetryEncoderBenchmark {
+    private static final int SAMPLES = 6;
+
+    private final TelemetryEncoder encoder = new TelemetryEncoder(SAMPLES);
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Size {
+        public long reportChars;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            reportChars = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        long now = 1_700_000_000_000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            // A steady stream with small wobbles, as a healthy device reports
+            encoder.add(now + i * 5000L, 1180 + (i % 3) * 7, 24, 3, 31 + (i % 2), 0, 0);
+        }
+    }
+
+    @Benchmark
+    public String encodeReport(Size size) {
+        String report = encoder.encode().toString();
+        size.reportChars += report.length();
+        return report;
+    }
+}
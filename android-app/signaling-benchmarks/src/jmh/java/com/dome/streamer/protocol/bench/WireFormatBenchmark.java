@@ -0,0 +1,105 @@
+package com.dome.streamer.protocol.bench;
+
+import com.dome.streamer.protocol.SignalingCodec;
+import com.dome.streamer.protocol.SignalingMessage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * JSON text frames against CBOR binary ones: decode and encode cost, frame size as
+ * the {@code frameBytes} counter, and what permessage-deflate makes of the frame as
+ * {@code deflatedBytes} (raw deflate, sync flush, no context takeover, which is the
+ * worst case for the extension). In this mode JMH prints the counters as time per
+ * byte; the score divided by the counter is bytes per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WireFormatBenchmark {
+
+    @Param({"offer-5codecs", "offer-simulcast", "ice-candidate", "viewer-joined"})
+    public String kind;
+
+    @Param({"json", "cbor"})
+    public String format;
+
+    private final SignalingCodec codec = new SignalingCodec();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] deflated = new byte[64 * 1024];
+    private SignalingMessage message;
+    private String text;
+    private byte[] bytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class FrameSize {
+        public long frameBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frameBytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class DeflatedSize {
+        public long deflatedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deflatedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        message = codec.decode(SampleMessages.frame(kind));
+        if ("json".equals(format)) {
+            text = codec.encode(message);
+            bytes = text.getBytes(StandardCharsets.UTF_8);
+        } else {
+            bytes = codec.encodeBinary(message);
+        }
+    }
+
+    @Benchmark
+    public SignalingMessage decode() throws IOException {
+        return text != null ? codec.decode(text) : codec.decode(bytes);
+    }
+
+    @Benchmark
+    public Object encode(FrameSize size) {
+        if (text != null) {
+            String frame = codec.encode(message);
+            size.frameBytes += frame.length(); // ASCII, so characters are bytes
+            return frame;
+        }
+        byte[] frame = codec.encodeBinary(message);
+        size.frameBytes += frame.length;
+        return frame;
+    }
+
+    @Benchmark
+    public int deflate(DeflatedSize size) {
+        deflater.reset();
+        deflater.setInput(bytes);
+        int length = deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH);
+        size.deflatedBytes += length;
+        return length;
+    }
+}
@@ -0,0 +1,406 @@
+package com.dome.streamer.protocol;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads one CBOR (RFC 8949) item through Gson's streaming interface, so
+ * {@link SignalingCodec} decodes binary frames with the same code as JSON ones.
+ * Maps and arrays may have definite or indefinite length; tags are skipped. Byte
+ * strings read as UTF-8 text. Map keys must be text.
+ */
+final class CborReader extends JsonReader {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+    private static final int BREAK = 0xff;
+    private static final int MAX_DEPTH = 32;
+
+    private final byte[] data;
+    private int pos;
+
+    // Open containers: items left (-1 when indefinite), items read, and whether it is a map
+    private final long[] remaining = new long[MAX_DEPTH];
+    private final long[] itemsRead = new long[MAX_DEPTH];
+    private final boolean[] isMap = new boolean[MAX_DEPTH];
+    private int depth;
+
+    CborReader(byte[] data) {
+        super(new StringReader("")); // the text side of JsonReader is never used
+        this.data = data;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        open(MAJOR_ARRAY);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        close(false);
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        open(MAJOR_MAP);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        close(true);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (depth == 0) {
+            return pos < data.length;
+        }
+        if (remaining[depth - 1] >= 0) {
+            return remaining[depth - 1] > 0;
+        }
+        return byteAt(pos) != BREAK;
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        if (depth > 0 && !hasNext()) {
+            return isMap[depth - 1] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+        }
+        if (depth == 0 && pos >= data.length) {
+            return JsonToken.END_DOCUMENT;
+        }
+        if (expectingName()) {
+            return JsonToken.NAME;
+        }
+        int at = skipTags(pos);
+        int initial = byteAt(at);
+        switch (initial >>> 5) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                return JsonToken.NUMBER;
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                return JsonToken.STRING;
+            case MAJOR_ARRAY:
+                return JsonToken.BEGIN_ARRAY;
+            case MAJOR_MAP:
+                return JsonToken.BEGIN_OBJECT;
+            default:
+                switch (initial & 0x1f) {
+                    case 20:
+                    case 21:
+                        return JsonToken.BOOLEAN;
+                    case 22:
+                    case 23:
+                        return JsonToken.NULL;
+                    case 25:
+                    case 26:
+                    case 27:
+                        return JsonToken.NUMBER;
+                    default:
+                        throw syntaxError("Unsupported simple value " + (initial & 0x1f));
+                }
+        }
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        if (!expectingName()) {
+            throw syntaxError("Expected a name");
+        }
+        return nextText();
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        if (token == JsonToken.NUMBER) {
+            double value = nextDouble();
+            return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+        }
+        if (token != JsonToken.STRING) {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        return nextText();
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        itemStart();
+        pos = skipTags(pos);
+        return (byteAt(pos++) & 0x1f) == 21;
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        itemStart();
+        pos = skipTags(pos) + 1;
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        expect(JsonToken.NUMBER);
+        itemStart();
+        pos = skipTags(pos);
+        int initial = byteAt(pos++);
+        int major = initial >>> 5;
+        if (major == MAJOR_SIMPLE) {
+            switch (initial & 0x1f) {
+                case 25: return halfToDouble((int) readBigEndian(2));
+                case 26: return Float.intBitsToFloat((int) readBigEndian(4));
+                default: return Double.longBitsToDouble(readBigEndian(8));
+            }
+        }
+        long argument = argument(initial);
+        double magnitude = argument >= 0 ? argument : (argument >>> 1) * 2.0 + (argument & 1);
+        return major == MAJOR_UNSIGNED ? magnitude : -1 - magnitude;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        expect(JsonToken.NUMBER);
+        int initial = byteAt(skipTags(pos));
+        if (initial >>> 5 == MAJOR_SIMPLE) {
+            double value = nextDouble();
+            long truncated = (long) value;
+            if (truncated != value) {
+                throw new NumberFormatException("Expected a long but was " + value);
+            }
+            return truncated;
+        }
+        itemStart();
+        pos = skipTags(pos) + 1;
+        long argument = argument(initial);
+        if (argument < 0) {
+            throw new NumberFormatException("Integer does not fit in a long");
+        }
+        return initial >>> 5 == MAJOR_UNSIGNED ? argument : -1 - argument;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw new NumberFormatException("Expected an int but was " + value);
+        }
+        return (int) value;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        if (depth > 0 && !hasNext()) {
+            throw syntaxError("Nothing to skip");
+        }
+        itemStart();
+        pos = skipItem(pos, 0);
+    }
+
+    @Override
+    public void close() {
+        depth = 0;
+        pos = data.length;
+    }
+
+    @Override
+    public String toString() {
+        return "CborReader at byte " + pos;
+    }
+
+    private boolean expectingName() {
+        return depth > 0 && isMap[depth - 1] && itemsRead[depth - 1] % 2 == 0;
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+    }
+
+    /** Counts the item about to be read against the container it is in. */
+    private void itemStart() {
+        if (depth > 0) {
+            itemsRead[depth - 1]++;
+            if (remaining[depth - 1] > 0) {
+                remaining[depth - 1]--;
+            }
+        }
+    }
+
+    private void open(int major) throws IOException {
+        if (depth > 0 && !hasNext()) {
+            throw syntaxError("Container ended");
+        }
+        if (depth == MAX_DEPTH) {
+            throw syntaxError("Nested too deeply");
+        }
+        pos = skipTags(pos);
+        int initial = byteAt(pos);
+        if (initial >>> 5 != major || expectingName()) {
+            throw syntaxError("Expected " + (major == MAJOR_MAP ? "an object" : "an array"));
+        }
+        itemStart();
+        pos++;
+        long length = (initial & 0x1f) == 31 ? -1 : argument(initial);
+        if (length > data.length - pos) {
+            throw syntaxError("Truncated container");
+        }
+        remaining[depth] = length >= 0 && major == MAJOR_MAP ? length * 2 : length;
+        itemsRead[depth] = 0;
+        isMap[depth] = major == MAJOR_MAP;
+        depth++;
+    }
+
+    private void close(boolean map) throws IOException {
+        if (depth == 0 || isMap[depth - 1] != map || hasNext()) {
+            throw syntaxError("Expected the end of " + (map ? "an object" : "an array"));
+        }
+        if (remaining[depth - 1] < 0) {
+            pos++; // the break byte
+        }
+        depth--;
+    }
+
+    private String nextText() throws IOException {
+        itemStart();
+        pos = skipTags(pos);
+        int initial = byteAt(pos++);
+        int major = initial >>> 5;
+        if (major != MAJOR_TEXT && major != MAJOR_BYTES) {
+            throw syntaxError("Expected text");
+        }
+        if ((initial & 0x1f) == 31) {
+            throw syntaxError("Indefinite-length strings are not supported");
+        }
+        long length = argument(initial);
+        if (length < 0 || length > data.length - pos) {
+            throw syntaxError("Truncated string");
+        }
+        String text = new String(data, pos, (int) length, StandardCharsets.UTF_8);
+        pos += (int) length;
+        return text;
+    }
+
+    /** Reads the argument that follows {@code initial}, which {@link #pos} has already passed. */
+    private long argument(int initial) throws IOException {
+        int info = initial & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24: return readBigEndian(1);
+            case 25: return readBigEndian(2);
+            case 26: return readBigEndian(4);
+            case 27: return readBigEndian(8);
+            default: throw syntaxError("Unsupported argument " + info);
+        }
+    }
+
+    private long readBigEndian(int bytes) throws IOException {
+        if (bytes > data.length - pos) {
+            throw syntaxError("Truncated");
+        }
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | (data[pos++] & 0xff);
+        }
+        return value;
+    }
+
+    private int skipTags(int at) throws IOException {
+        while (byteAt(at) >>> 5 == MAJOR_TAG) {
+            int saved = pos;
+            pos = at + 1;
+            argument(byteAt(at));
+            at = pos;
+            pos = saved;
+        }
+        return at;
+    }
+
+    /** Returns the offset just past the item at {@code at}, nested containers included. */
+    private int skipItem(int at, int nesting) throws IOException {
+        if (nesting == MAX_DEPTH) {
+            throw syntaxError("Nested too deeply");
+        }
+        at = skipTags(at);
+        int initial = byteAt(at);
+        int major = initial >>> 5;
+        int saved = pos;
+        pos = at + 1;
+        boolean indefinite = (initial & 0x1f) == 31;
+        long argument = indefinite || major == MAJOR_SIMPLE ? 0 : argument(initial);
+        at = pos;
+        pos = saved;
+        switch (major) {
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                if (indefinite || argument < 0 || argument > data.length - at) {
+                    throw syntaxError("Unsupported or truncated string");
+                }
+                return at + (int) argument;
+            case MAJOR_ARRAY:
+            case MAJOR_MAP:
+                long items = major == MAJOR_MAP ? argument * 2 : argument;
+                if (indefinite) {
+                    while (byteAt(at) != BREAK) {
+                        at = skipItem(at, nesting + 1);
+                    }
+                    return at + 1;
+                }
+                if (items < 0 || items > data.length - at) {
+                    throw syntaxError("Truncated container");
+                }
+                for (long i = 0; i < items; i++) {
+                    at = skipItem(at, nesting + 1);
+                }
+                return at;
+            case MAJOR_SIMPLE:
+                switch (initial & 0x1f) {
+                    case 24: return at + 1;
+                    case 25: return at + 2;
+                    case 26: return at + 4;
+                    case 27: return at + 8;
+                    default: return at;
+                }
+            default:
+                return at;
+        }
+    }
+
+    private int byteAt(int at) throws IOException {
+        if (at >= data.length) {
+            throw syntaxError("Truncated");
+        }
+        return data[at] & 0xff;
+    }
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at byte " + pos);
+    }
+}
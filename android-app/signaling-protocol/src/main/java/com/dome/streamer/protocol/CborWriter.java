@@ -0,0 +1,222 @@
+package com.dome.streamer.protocol;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CBOR (RFC 8949) through Gson's streaming interface, so every message's
+ * {@code writeFields} produces binary frames unchanged. Objects and arrays are
+ * written with indefinite length, which needs no lookahead; strings and numbers
+ * take their shortest form.
+ */
+final class CborWriter extends JsonWriter {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+
+    private final ByteArrayOutputStream out;
+
+    CborWriter(ByteArrayOutputStream out) {
+        super(new StringWriter(0)); // the text side of JsonWriter is never used
+        this.out = out;
+    }
+
+    @Override
+    public JsonWriter beginArray() {
+        out.write(0x9f);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() {
+        out.write(0xff);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() {
+        out.write(0xbf);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() {
+        out.write(0xff);
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) {
+        text(name);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        text(value);
+        return this;
+    }
+
+    /** Transcodes the raw JSON into the equivalent CBOR item; malformed JSON is an IOException. */
+    @Override
+    public JsonWriter jsonValue(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        JsonReader in = new JsonReader(new StringReader(value));
+        copy(in);
+        if (in.peek() != JsonToken.END_DOCUMENT) {
+            throw new IOException("Trailing data after JSON value");
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() {
+        out.write(0xf6);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) {
+        out.write(value ? 0xf5 : 0xf4);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) {
+        return value == null ? nullValue() : value(value.booleanValue());
+    }
+
+    @Override
+    public JsonWriter value(float value) {
+        return value((double) value);
+    }
+
+    @Override
+    public JsonWriter value(double value) {
+        out.write(0xfb);
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) {
+        if (value >= 0) {
+            head(MAJOR_UNSIGNED, value);
+        } else {
+            head(MAJOR_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) {
+        if (value == null) {
+            return nullValue();
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(value.longValue());
+        }
+        return value(value.doubleValue());
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    private void copy(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case BEGIN_OBJECT:
+                in.beginObject();
+                beginObject();
+                while (in.hasNext()) {
+                    name(in.nextName());
+                    copy(in);
+                }
+                in.endObject();
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                in.beginArray();
+                beginArray();
+                while (in.hasNext()) {
+                    copy(in);
+                }
+                in.endArray();
+                endArray();
+                break;
+            case STRING:
+                value(in.nextString());
+                break;
+            case NUMBER:
+                number(in.nextString());
+                break;
+            case BOOLEAN:
+                value(in.nextBoolean());
+                break;
+            case NULL:
+                in.nextNull();
+                nullValue();
+                break;
+            default:
+                throw new IOException("Unexpected " + in.peek());
+        }
+    }
+
+    /** Integers that fit a long stay integers; anything else is a double. */
+    private void number(String number) {
+        try {
+            value(Long.parseLong(number));
+        } catch (NumberFormatException e) {
+            value(Double.parseDouble(number));
+        }
+    }
+
+    private void text(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        head(MAJOR_TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** The initial byte and argument of an item, in the fewest bytes that hold {@code argument}. */
+    private void head(int major, long argument) {
+        int type = major << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument < 0x10000) {
+            out.write(type | 25);
+            bigEndian(argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(type | 26);
+            bigEndian(argument, 4);
+        } else {
+            out.write(type | 27);
+            bigEndian(argument, 8);
+        }
+    }
+
+    private void bigEndian(long value, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+}
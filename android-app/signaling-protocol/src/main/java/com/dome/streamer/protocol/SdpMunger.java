@@ -0,0 +1,220 @@
+package com.dome.streamer.protocol;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trims an offer down to what the deployment uses, before it is set as the local
+ * description: codecs outside the allow lists, RED and FEC payloads, RTX for codecs
+ * that went, and header extensions outside {@link #headerExtensions}. The m= line,
+ * rtpmap/fmtp/rtcp-fb lines and RTX ssrc groups are kept consistent.
+ *
+ * A section in which no allowed codec is left is passed through untouched, so the
+ * munger can shrink an offer but never break one. Plain Java, no Android dependencies.
+ */
+public class SdpMunger {
+    public static final String EXT_MID = "urn:ietf:params:rtp-hdrext:sdes:mid";
+    public static final String EXT_RID = "urn:ietf:params:rtp-hdrext:sdes:rtp-stream-id";
+    public static final String EXT_REPAIRED_RID = "urn:ietf:params:rtp-hdrext:sdes:repaired-rtp-stream-id";
+    public static final String EXT_TRANSPORT_CC =
+            "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
+    public static final String EXT_ABS_SEND_TIME = "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time";
+    public static final String EXT_VIDEO_ORIENTATION = "urn:3gpp:video-orientation";
+
+    private static final Set<String> REDUNDANCY = new HashSet<>(Arrays.asList("RED", "ULPFEC", "FLEXFEC-03"));
+
+    /** Video codecs kept, by rtpmap name (upper case); null keeps all. Offer order is preserved. */
+    public Set<String> videoCodecs;
+    /** Audio codecs kept, by rtpmap name (upper case); null keeps all. */
+    public Set<String> audioCodecs;
+    /** Keep RTX for the codecs that stay; NACK retransmissions need it. */
+    public boolean keepRtx = true;
+    /** Keep RED, ULPFEC and FlexFEC payloads. */
+    public boolean keepRedundancy = false;
+    /** Header extension URIs kept; null keeps all. Keep mid, and rid when simulcasting. */
+    public Set<String> headerExtensions;
+
+    /**
+     * H264 and VP8, which every browser must answer (RFC 7742); Opus; RTX; and the
+     * extensions for BUNDLE, simulcast, congestion control and camera rotation. A
+     * sender that prefers other codecs, e.g. ones it can encode in hardware, has to
+     * add them to {@link #videoCodecs} or they are stripped before they are offered.
+     */
+    public static SdpMunger defaults() {
+        SdpMunger munger = new SdpMunger();
+        munger.videoCodecs = new HashSet<>(Arrays.asList("H264", "VP8"));
+        munger.audioCodecs = new HashSet<>(Arrays.asList("OPUS"));
+        munger.headerExtensions = new HashSet<>(Arrays.asList(EXT_MID, EXT_RID, EXT_REPAIRED_RID,
+                EXT_TRANSPORT_CC, EXT_ABS_SEND_TIME, EXT_VIDEO_ORIENTATION));
+        return munger;
+    }
+
+    /** A munger with the same settings; the sets are shared, so replace rather than modify them. */
+    public SdpMunger copy() {
+        SdpMunger munger = new SdpMunger();
+        munger.videoCodecs = videoCodecs;
+        munger.audioCodecs = audioCodecs;
+        munger.keepRtx = keepRtx;
+        munger.keepRedundancy = keepRedundancy;
+        munger.headerExtensions = headerExtensions;
+        return munger;
+    }
+
+    public String munge(String sdp) {
+        String[] lines = sdp.split("\r\n");
+        StringBuilder out = new StringBuilder(sdp.length());
+        int start = 0;
+        for (int i = 1; i <= lines.length; i++) {
+            if (i == lines.length || lines[i].startsWith("m=")) {
+                mungeSection(lines, start, i, out);
+                start = i;
+            }
+        }
+        return out.toString();
+    }
+
+    /** Lines {@code [from, to)}: the session part, or one m= section. */
+    private void mungeSection(String[] lines, int from, int to, StringBuilder out) {
+        Set<String> kept = lines[from].startsWith("m=") ? keptPayloads(lines, from, to) : null;
+        Set<String> droppedSsrcs = new HashSet<>();
+        if (kept != null && !hasRtx(lines, from, to, kept)) {
+            // Without RTX, the retransmission ssrc of each FID group has nothing to carry
+            for (int i = from; i < to; i++) {
+                if (lines[i].startsWith("a=ssrc-group:FID ")) {
+                    String[] ssrcs = lines[i].substring("a=ssrc-group:FID ".length()).split(" ");
+                    droppedSsrcs.addAll(Arrays.asList(ssrcs).subList(1, ssrcs.length));
+                }
+            }
+        }
+        for (int i = from; i < to; i++) {
+            String line = lines[i];
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (i == from && kept != null) {
+                line = mLine(line, kept);
+            } else if (kept != null && !keepPayloadLine(line, kept)) {
+                continue;
+            } else if (line.startsWith("a=extmap:") && !keepExtension(line)) {
+                continue;
+            } else if (!droppedSsrcs.isEmpty() && (line.startsWith("a=ssrc-group:FID ")
+                    || (line.startsWith("a=ssrc:") && droppedSsrcs.contains(ssrcOf(line))))) {
+                continue;
+            }
+            out.append(line).append("\r\n");
+        }
+    }
+
+    /**
+     * The payload types of the section that stay, or null to leave the section as it
+     * is: not RTP, or no allowed codec in it.
+     */
+    private Set<String> keptPayloads(String[] lines, int from, int to) {
+        String[] m = lines[from].split(" ");
+        if (m.length < 4 || !m[2].contains("RTP")) {
+            return null;
+        }
+        Set<String> allowed = m[0].equals("m=video") ? videoCodecs : m[0].equals("m=audio") ? audioCodecs : null;
+        Map<String, String> names = new HashMap<>();
+        Map<String, String> rtxFor = new HashMap<>();
+        for (int i = from + 1; i < to; i++) {
+            String line = lines[i];
+            if (line.startsWith("a=rtpmap:")) {
+                int space = line.indexOf(' ');
+                int slash = line.indexOf('/', space);
+                if (space > 0) {
+                    names.put(line.substring("a=rtpmap:".length(), space),
+                            line.substring(space + 1, slash > 0 ? slash : line.length()).toUpperCase(Locale.ROOT));
+                }
+            } else if (line.startsWith("a=fmtp:")) {
+                int space = line.indexOf(' ');
+                int apt = line.indexOf("apt=");
+                if (space > 0 && apt > 0) {
+                    int end = line.indexOf(';', apt);
+                    rtxFor.put(line.substring("a=fmtp:".length(), space),
+                            line.substring(apt + 4, end > 0 ? end : line.length()));
+                }
+            }
+        }
+
+        Set<String> kept = new LinkedHashSet<>();
+        boolean primaryKept = false;
+        for (int i = 3; i < m.length; i++) {
+            String name = names.get(m[i]);
+            if (name == null) {
+                kept.add(m[i]); // static payload type without rtpmap; not ours to judge
+            } else if (REDUNDANCY.contains(name)) {
+                if (keepRedundancy) {
+                    kept.add(m[i]);
+                }
+            } else if (!name.equals("RTX") && (allowed == null || allowed.contains(name))) {
+                kept.add(m[i]);
+                primaryKept = true;
+            }
+        }
+        if (!primaryKept) {
+            return null;
+        }
+        for (int i = 3; i < m.length; i++) {
+            if ("RTX".equals(names.get(m[i])) && keepRtx && kept.contains(rtxFor.get(m[i]))) {
+                kept.add(m[i]);
+            }
+        }
+        return kept;
+    }
+
+    private static boolean hasRtx(String[] lines, int from, int to, Set<String> kept) {
+        for (int i = from + 1; i < to; i++) {
+            String line = lines[i];
+            if (line.startsWith("a=rtpmap:") && line.toUpperCase(Locale.ROOT).contains(" RTX/")
+                    && kept.contains(payloadOf(line, "a=rtpmap:"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The m= line listing only {@code kept}, in the original order. */
+    private static String mLine(String line, Set<String> kept) {
+        String[] m = line.split(" ");
+        StringBuilder out = new StringBuilder(line.length()).append(m[0]).append(' ').append(m[1]).append(' ').append(m[2]);
+        for (int i = 3; i < m.length; i++) {
+            if (kept.contains(m[i])) {
+                out.append(' ').append(m[i]);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean keepPayloadLine(String line, Set<String> kept) {
+        for (String prefix : new String[] {"a=rtpmap:", "a=fmtp:", "a=rtcp-fb:"}) {
+            if (line.startsWith(prefix)) {
+                String payload = payloadOf(line, prefix);
+                return payload.equals("*") || kept.contains(payload);
+            }
+        }
+        return true;
+    }
+
+    private boolean keepExtension(String line) {
+        if (headerExtensions == null) {
+            return true;
+        }
+        String[] parts = line.split(" ");
+        return parts.length < 2 || headerExtensions.contains(parts[1]);
+    }
+
+    private static String payloadOf(String line, String prefix) {
+        int space = line.indexOf(' ');
+        return line.substring(prefix.length(), space > 0 ? space : line.length());
+    }
+
+    private static String ssrcOf(String line) {
+        return payloadOf(line, "a=ssrc:");
+    }
+}
@@ -0,0 +1,319 @@
+package com.dome.streamer.protocol;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes {@link SignalingMessage}s with Gson's streaming API. Decoding is a
+ * single pass over the frame: known fields are pulled out as they come (in whatever
+ * order), nested SDP and candidate objects are read straight into their typed form,
+ * and the message is built once {@code type} is known. No JSON tree is built.
+ *
+ * For compatibility with older peers, an {@code offer}, {@code answer} or
+ * {@code candidate} sent as a JSON-encoded string is accepted too, as is an answer
+ * holding raw SDP text. Stateless and thread-safe.
+ *
+ * Binary frames carry the same fields as a CBOR (RFC 8949) map and go through the
+ * same code, by way of {@link CborReader} and {@link CborWriter}. They are only sent
+ * to a server that accepted {@link #CBOR_PROTOCOL} during the WebSocket handshake.
+ */
+public class SignalingCodec {
+
+    /** WebSocket subprotocol for JSON text frames, the format every server speaks. */
+    public static final String JSON_PROTOCOL = "dome.json";
+    /** WebSocket subprotocol for CBOR binary frames, version 1. */
+    public static final String CBOR_PROTOCOL = "dome.cbor.1";
+
+    /** Fields of every message type, gathered while reading one frame. */
+    private static class Fields {
+        String type;
+        String senderId;
+        String targetId;
+        String clientId;
+        String role;
+        String streamId;
+        String embedUrl;
+        String viewerId;
+        String relayId;
+        String layer;
+        String mode;
+        String message;
+        String resumeToken;
+        boolean resumed;
+        List<String> viewers;
+        long t;
+        SignalingMessage.Sdp offer;
+        SignalingMessage.Sdp answer;
+        SignalingMessage.Candidate candidate;
+        List<SignalingMessage.Candidate> candidates;
+    }
+
+    /**
+     * Decodes one frame. Types this client does not know come back as
+     * {@link SignalingMessage.Bare}.
+     *
+     * @throws IOException if the frame is not a JSON object or has no {@code type}
+     */
+    public SignalingMessage decode(String text) throws IOException {
+        return read(new JsonReader(new StringReader(text)));
+    }
+
+    /**
+     * Decodes one binary frame.
+     *
+     * @throws IOException if the frame is not a CBOR map or has no {@code type}
+     */
+    public SignalingMessage decode(byte[] frame) throws IOException {
+        return read(new CborReader(frame));
+    }
+
+    private static SignalingMessage read(JsonReader reader) throws IOException {
+        Fields fields = new Fields();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type": fields.type = nextString(reader); break;
+                case "senderId": fields.senderId = nextString(reader); break;
+                case "targetId": fields.targetId = nextString(reader); break;
+                case "clientId": fields.clientId = nextString(reader); break;
+                case "role": fields.role = nextString(reader); break;
+                case "streamId": fields.streamId = nextString(reader); break;
+                case "embedUrl": fields.embedUrl = nextString(reader); break;
+                case "viewerId": fields.viewerId = nextString(reader); break;
+                case "relayId": fields.relayId = nextString(reader); break;
+                case "layer": fields.layer = nextString(reader); break;
+                case "mode": fields.mode = nextString(reader); break;
+                case "message": fields.message = nextString(reader); break;
+                case "resumeToken": fields.resumeToken = nextString(reader); break;
+                case "resumed": fields.resumed = nextBoolean(reader); break;
+                case "viewers": fields.viewers = readStrings(reader); break;
+                case "t": fields.t = nextLong(reader); break;
+                case "offer": fields.offer = readSdp(reader, "offer"); break;
+                case "answer": fields.answer = readSdp(reader, "answer"); break;
+                case "candidate": fields.candidate = readCandidate(reader); break;
+                case "candidates": fields.candidates = readCandidates(reader); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fields.type == null) {
+            throw new IOException("Message has no type");
+        }
+        SignalingMessage message = build(fields);
+        message.senderId = fields.senderId;
+        message.targetId = fields.targetId;
+        return message;
+    }
+
+    private static SignalingMessage build(Fields f) throws IOException {
+        switch (f.type) {
+            case "connected":
+                return new SignalingMessage.Connected(f.clientId);
+            case "registered":
+                return new SignalingMessage.Registered(f.role, f.streamId, f.embedUrl, f.resumeToken, f.resumed,
+                        f.viewers != null ? f.viewers : Collections.emptyList());
+            case "viewer-joined":
+            case "viewer-left":
+                return new SignalingMessage.ViewerEvent(f.type, f.viewerId, f.streamId);
+            case "relay-assigned":
+            case "relay-lost":
+                return new SignalingMessage.RelayEvent(f.type, f.relayId);
+            case "layer-request":
+                return new SignalingMessage.LayerRequest(f.viewerId, f.layer);
+            case "error":
+                return new SignalingMessage.ServerError(f.message != null ? f.message : "Unknown error");
+            case "offer":
+                return new SignalingMessage.Description(require(f.offer, "offer"));
+            case "answer":
+                return new SignalingMessage.Description(require(f.answer, "answer"));
+            case "ice-candidate":
+                return new SignalingMessage.IceCandidate(require(f.candidate, "candidate"));
+            case "ice-candidates":
+                return new SignalingMessage.IceCandidates(require(f.candidates, "candidates"));
+            case "ping":
+            case "pong":
+                return new SignalingMessage.Ping(f.type, f.t);
+            case "register-streamer":
+                return new SignalingMessage.RegisterStreamer(f.streamId, f.mode, f.resumeToken);
+            default:
+                return new SignalingMessage.Bare(f.type);
+        }
+    }
+
+    private static <T> T require(T value, String name) throws IOException {
+        if (value == null) {
+            throw new IOException("Message is missing " + name);
+        }
+        return value;
+    }
+
+    public String encode(SignalingMessage message) {
+        StringWriter out = new StringWriter(256);
+        try {
+            write(new JsonWriter(out), message);
+        } catch (IOException e) {
+            // StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /** Encodes {@code message} as a binary frame for a {@link #CBOR_PROTOCOL} connection. */
+    public byte[] encodeBinary(SignalingMessage message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            write(new CborWriter(out), message);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(JsonWriter writer, SignalingMessage message) throws IOException {
+        writer.beginObject();
+        writer.name("type").value(message.type);
+        message.writeFields(writer);
+        if (message.targetId != null) {
+            writer.name("targetId").value(message.targetId);
+        }
+        if (message.senderId != null) {
+            writer.name("senderId").value(message.senderId);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static long nextLong(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.NUMBER) {
+            reader.skipValue();
+            return 0;
+        }
+        return reader.nextLong();
+    }
+
+    private static boolean nextBoolean(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BOOLEAN) {
+            reader.skipValue();
+            return false;
+        }
+        return reader.nextBoolean();
+    }
+
+    /** Reads a string array, skipping anything in it that is not a string. */
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+                values.add(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    private static SignalingMessage.Sdp readSdp(JsonReader reader, String defaultType) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING) {
+            String text = reader.nextString();
+            if (text.startsWith("{")) {
+                return readSdp(new JsonReader(new StringReader(text)), defaultType);
+            }
+            return new SignalingMessage.Sdp(defaultType, text);
+        }
+        if (token != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String type = defaultType;
+        String sdp = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    String declared = nextString(reader);
+                    type = declared != null ? declared : defaultType;
+                    break;
+                case "sdp": sdp = nextString(reader); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return sdp != null ? new SignalingMessage.Sdp(type, sdp) : null;
+    }
+
+    /** Reads a candidate array, skipping entries that are not candidates. */
+    private static List<SignalingMessage.Candidate> readCandidates(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        List<SignalingMessage.Candidate> candidates = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            SignalingMessage.Candidate candidate = readCandidate(reader);
+            if (candidate != null) {
+                candidates.add(candidate);
+            }
+        }
+        reader.endArray();
+        return candidates;
+    }
+
+    private static SignalingMessage.Candidate readCandidate(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING) {
+            String text = reader.nextString();
+            return text.startsWith("{") ? readCandidate(new JsonReader(new StringReader(text))) : null;
+        }
+        if (token != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String candidate = null;
+        String sdpMid = null;
+        int sdpMLineIndex = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "candidate": candidate = nextString(reader); break;
+                case "sdpMid": sdpMid = nextString(reader); break;
+                case "sdpMLineIndex":
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        sdpMLineIndex = reader.nextInt();
+                    }
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return candidate != null ? new SignalingMessage.Candidate(candidate, sdpMid, sdpMLineIndex) : null;
+    }
+}
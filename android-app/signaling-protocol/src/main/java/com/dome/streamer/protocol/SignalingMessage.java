@@ -0,0 +1,334 @@
+package com.dome.streamer.protocol;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A signaling server message. Each subclass is one wire {@code type} and writes its
+ * own fields; {@link SignalingCodec} reads them back. {@link #senderId} is stamped
+ * by the server on relayed messages, {@link #targetId} addresses outgoing ones.
+ */
+public abstract class SignalingMessage {
+    public final String type;
+    public String senderId;
+    public String targetId;
+
+    protected SignalingMessage(String type) {
+        this.type = type;
+    }
+
+    /** Writes everything but {@code type}, {@code senderId} and {@code targetId}. */
+    abstract void writeFields(JsonWriter writer) throws IOException;
+
+    /** An SDP blob as RTCSessionDescriptionInit: {@code {"type":"offer","sdp":"v=0..."}}. */
+    public static class Sdp {
+        public final String type;
+        public final String sdp;
+
+        public Sdp(String type, String sdp) {
+            this.type = type;
+            this.sdp = sdp;
+        }
+    }
+
+    /** As RTCIceCandidateInit: {@code {"candidate":"candidate:...","sdpMid":"0","sdpMLineIndex":0}}. */
+    public static class Candidate {
+        public final String candidate;
+        public final String sdpMid;
+        public final int sdpMLineIndex;
+
+        public Candidate(String candidate, String sdpMid, int sdpMLineIndex) {
+            this.candidate = candidate;
+            this.sdpMid = sdpMid;
+            this.sdpMLineIndex = sdpMLineIndex;
+        }
+
+        void write(JsonWriter writer) throws IOException {
+            writer.beginObject()
+                    .name("candidate").value(candidate)
+                    .name("sdpMid").value(sdpMid)
+                    .name("sdpMLineIndex").value(sdpMLineIndex)
+                    .endObject();
+        }
+    }
+
+    // Server to client
+
+    public static class Connected extends SignalingMessage {
+        public final String clientId;
+
+        public Connected(String clientId) {
+            super("connected");
+            this.clientId = clientId;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("clientId").value(clientId);
+        }
+    }
+
+    public static class Registered extends SignalingMessage {
+        public final String role;
+        public final String streamId;
+        public final String embedUrl;
+        /** Presented with register-streamer after a reconnect to take the stream back. */
+        public final String resumeToken;
+        /** Whether a reconnecting streamer got its stream back rather than a fresh one. */
+        public final boolean resumed;
+        /** On resume: the viewers the server has for the stream now. */
+        public final List<String> viewers;
+
+        public Registered(String role, String streamId, String embedUrl) {
+            this(role, streamId, embedUrl, null, false, Collections.emptyList());
+        }
+
+        public Registered(String role, String streamId, String embedUrl, String resumeToken, boolean resumed,
+                          List<String> viewers) {
+            super("registered");
+            this.role = role;
+            this.streamId = streamId;
+            this.embedUrl = embedUrl;
+            this.resumeToken = resumeToken;
+            this.resumed = resumed;
+            this.viewers = viewers;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("role").value(role);
+            writer.name("streamId").value(streamId);
+            writer.name("embedUrl").value(embedUrl);
+            if (resumeToken != null) {
+                writer.name("resumeToken").value(resumeToken);
+            }
+            if (resumed) {
+                writer.name("resumed").value(true);
+                writer.name("viewers").beginArray();
+                for (String viewer : viewers) {
+                    writer.value(viewer);
+                }
+                writer.endArray();
+            }
+        }
+    }
+
+    /** {@code viewer-joined} and {@code viewer-left}. */
+    public static class ViewerEvent extends SignalingMessage {
+        public final String viewerId;
+        public final String streamId;
+
+        public ViewerEvent(String type, String viewerId, String streamId) {
+            super(type);
+            this.viewerId = viewerId;
+            this.streamId = streamId;
+        }
+
+        public boolean isJoin() {
+            return "viewer-joined".equals(type);
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("viewerId").value(viewerId);
+            writer.name("streamId").value(streamId);
+        }
+    }
+
+    /** {@code relay-assigned} and {@code relay-lost}. */
+    public static class RelayEvent extends SignalingMessage {
+        public final String relayId;
+
+        public RelayEvent(String type, String relayId) {
+            super(type);
+            this.relayId = relayId;
+        }
+
+        public boolean isAssigned() {
+            return "relay-assigned".equals(type);
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("relayId").value(relayId);
+        }
+    }
+
+    public static class LayerRequest extends SignalingMessage {
+        public final String viewerId;
+        /** Simulcast rid, or null to clear the viewer's request. */
+        public final String layer;
+
+        public LayerRequest(String viewerId, String layer) {
+            super("layer-request");
+            this.viewerId = viewerId;
+            this.layer = layer;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("viewerId").value(viewerId);
+            writer.name("layer").value(layer);
+        }
+    }
+
+    public static class ServerError extends SignalingMessage {
+        public final String message;
+
+        public ServerError(String message) {
+            super("error");
+            this.message = message;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("message").value(message);
+        }
+    }
+
+    // Either direction
+
+    /** {@code offer} and {@code answer}; the SDP sits under a key named after the type. */
+    public static class Description extends SignalingMessage {
+        public final Sdp description;
+
+        public Description(Sdp description) {
+            super(description.type);
+            this.description = description;
+        }
+
+        public static Description offer(String sdp, String targetId) {
+            Description message = new Description(new Sdp("offer", sdp));
+            message.targetId = targetId;
+            return message;
+        }
+
+        public static Description answer(String sdp, String targetId) {
+            Description message = new Description(new Sdp("answer", sdp));
+            message.targetId = targetId;
+            return message;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name(type).beginObject()
+                    .name("type").value(description.type)
+                    .name("sdp").value(description.sdp)
+                    .endObject();
+        }
+    }
+
+    public static class IceCandidate extends SignalingMessage {
+        public final Candidate candidate;
+
+        public IceCandidate(Candidate candidate) {
+            super("ice-candidate");
+            this.candidate = candidate;
+        }
+
+        public IceCandidate(Candidate candidate, String targetId) {
+            this(candidate);
+            this.targetId = targetId;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            candidate.write(writer.name("candidate"));
+        }
+    }
+
+    /** Several candidates for one peer in a single frame, in the order they were gathered. */
+    public static class IceCandidates extends SignalingMessage {
+        public final List<Candidate> candidates;
+
+        public IceCandidates(List<Candidate> candidates) {
+            super("ice-candidates");
+            this.candidates = candidates;
+        }
+
+        public IceCandidates(List<Candidate> candidates, String targetId) {
+            this(candidates);
+            this.targetId = targetId;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("candidates").beginArray();
+            for (Candidate candidate : candidates) {
+                candidate.write(writer);
+            }
+            writer.endArray();
+        }
+    }
+
+    // Client to server
+
+    public static class RegisterStreamer extends SignalingMessage {
+        public final String streamId;
+        /** "direct" or "relay". */
+        public final String mode;
+        /** From an earlier {@link Registered}, to resume that stream; null registers afresh. */
+        public final String resumeToken;
+
+        public RegisterStreamer(String streamId, String mode) {
+            this(streamId, mode, null);
+        }
+
+        public RegisterStreamer(String streamId, String mode, String resumeToken) {
+            super("register-streamer");
+            this.streamId = streamId;
+            this.mode = mode;
+            this.resumeToken = resumeToken;
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            if (streamId != null) {
+                writer.name("streamId").value(streamId);
+            }
+            writer.name("mode").value(mode);
+            if (resumeToken != null) {
+                writer.name("resumeToken").value(resumeToken);
+            }
+        }
+    }
+
+    /**
+     * {@code ping} and the server's {@code pong}, which echoes the ping's {@code t}.
+     * {@code t} is opaque to the server; the sender uses it to time the round trip.
+     */
+    public static class Ping extends SignalingMessage {
+        public final long sentAt;
+
+        public Ping(String type, long sentAt) {
+            super(type);
+            this.sentAt = sentAt;
+        }
+
+        public static Ping ping(long sentAt) {
+            return new Ping("ping", sentAt);
+        }
+
+        public boolean isPong() {
+            return "pong".equals(type);
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) throws IOException {
+            writer.name("t").value(sentAt);
+        }
+    }
+
+    /** Messages that carry nothing but their type: {@code stop-stream}, {@code stream-ended}, and unknown ones. */
+    public static class Bare extends SignalingMessage {
+        public Bare(String type) {
+            super(type);
+        }
+
+        @Override
+        void writeFields(JsonWriter writer) {}
+    }
+}
@@ -0,0 +1,98 @@
+package com.dome.streamer.protocol;
+
+/**
+ * Builds compact {@code stream-stats} messages from a batch of health samples.
+ * Samples are rows of integers in a fixed order ({@link #FIELDS}); the first row of a
+ * report is absolute and every later row holds the difference to the row before, so
+ * a steady stream encodes to mostly zeros. Rows live in a preallocated array and the
+ * message is written into a reused buffer, so a report costs one String.
+ *
+ * Wire format, version 1:
+ * <pre>{"type":"stream-stats","v":1,"s":[[ms,kbps,fps,viewers,cpu,tier,reconnects],[deltas...],...]}</pre>
+ * Plain Java, no Android dependencies.
+ */
+public class TelemetryEncoder {
+    public static final int VERSION = 1;
+    public static final String[] FIELDS = {"ms", "kbps", "fps", "viewers", "cpu", "tier", "reconnects"};
+
+    private final long[][] rows;
+    private int count;
+    private final StringBuilder out = new StringBuilder(256);
+
+    public TelemetryEncoder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        rows = new long[capacity][FIELDS.length];
+    }
+
+    /** Appends a sample; returns false when the batch is full. */
+    public boolean add(long timestampMs, long kbps, long fps, long viewers, long cpuPercent, long tier, long reconnects) {
+        if (count == rows.length) {
+            return false;
+        }
+        long[] row = rows[count++];
+        row[0] = timestampMs;
+        row[1] = kbps;
+        row[2] = fps;
+        row[3] = viewers;
+        row[4] = cpuPercent;
+        row[5] = tier;
+        row[6] = reconnects;
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isFull() {
+        return count == rows.length;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Drops every other sample, keeping the newest, to halve the batch while still
+     * covering its whole time span.
+     */
+    public void thin() {
+        if (count < 2) {
+            return;
+        }
+        int kept = 0;
+        for (int i = (count - 1) % 2; i < count; i += 2) {
+            long[] source = rows[i];
+            long[] target = rows[kept++];
+            if (source != target) {
+                System.arraycopy(source, 0, target, 0, FIELDS.length);
+            }
+        }
+        count = kept;
+    }
+
+    /** Writes the batch as one message. The returned buffer is reused by the next call. */
+    public CharSequence encode() {
+        out.setLength(0);
+        out.append("{\"type\":\"stream-stats\",\"v\":").append(VERSION).append(",\"s\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            long[] row = rows[i];
+            long[] previous = i > 0 ? rows[i - 1] : null;
+            out.append('[');
+            for (int field = 0; field < FIELDS.length; field++) {
+                if (field > 0) {
+                    out.append(',');
+                }
+                out.append(previous != null ? row[field] - previous[field] : row[field]);
+            }
+            out.append(']');
+        }
+        out.append("]}");
+        return out;
+    }
+}
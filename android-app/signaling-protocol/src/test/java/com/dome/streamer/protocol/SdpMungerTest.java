@@ -0,0 +1,229 @@
+package com.dome.streamer.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Munges offers and answers as Chrome, Firefox and Safari write them (in
+ * {@code src/test/resources/sdp}, stored with LF line ends) and checks that what is
+ * left is smaller and still consistent: every payload type on an m= line keeps its
+ * rtpmap/fmtp/rtcp-fb lines, nothing else does, RTX points at a kept codec, and BUNDLE
+ * and the sections it names are untouched.
+ */
+public class SdpMungerTest {
+
+    /** Fixture, then the m=audio and m=video payload types that {@link SdpMunger#defaults()} keeps. */
+    private static final String[][] DEFAULT_KEEPS = {
+            {"chrome-offer", "111", "96 97 102 103 104 105 106 107 108 109 127 125 39 40"},
+            {"chrome-answer", "111", "96 97 102 103 104 105 106 107 108 109 127 125 39 40"},
+            {"firefox-offer", "109", "120 124 126 127 97 98"},
+            {"firefox-answer", "111", "96 97 102 103 104 105 106 107 108 109"},
+            {"safari-offer", "111", "96 97 98 99 102 125"},
+            {"safari-answer", "111", "102 103 104 105 106 107 108 109 127 125 39 40 96 97"},
+    };
+
+    @Test
+    public void defaultsShrinkEveryBrowserAndStayConsistent() throws IOException {
+        SdpMunger munger = SdpMunger.defaults();
+        for (String[] keep : DEFAULT_KEEPS) {
+            String sdp = load(keep[0]);
+            String munged = munger.munge(sdp);
+
+            // At least a fifth goes even from Chrome, which keeps six H264 profiles
+            assertTrue(keep[0] + ": " + sdp.length() + " -> " + munged.length(),
+                    munged.length() < sdp.length() * 0.8);
+            assertEquals(keep[0], "m=audio 9 UDP/TLS/RTP/SAVPF " + keep[1], mLine(munged, "m=audio"));
+            assertEquals(keep[0], "m=video 9 UDP/TLS/RTP/SAVPF " + keep[2], mLine(munged, "m=video"));
+            assertConsistent(keep[0], sdp, munged, munger);
+        }
+    }
+
+    @Test
+    public void preferredCodecsSurviveWhenAdded() throws IOException {
+        SdpMunger munger = SdpMunger.defaults();
+        munger.videoCodecs = new HashSet<>(Arrays.asList("H264", "VP8", "VP9", "H265", "AV1"));
+
+        String chrome = munger.munge(load("chrome-offer"));
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102 103 104 105 106 107 108 109 127 125 39 40 45 46",
+                mLine(chrome, "m=video"));
+        assertTrue(chrome.contains("a=fmtp:100 profile-id=2\r\n"));
+        assertTrue(chrome.contains("a=fmtp:46 apt=45\r\n"));
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 120 124 121 125 126 127 97 98",
+                mLine(munger.munge(load("firefox-offer")), "m=video"));
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102 125 104 106",
+                mLine(munger.munge(load("safari-offer")), "m=video"));
+
+        for (String[] keep : DEFAULT_KEEPS) {
+            String sdp = load(keep[0]);
+            assertConsistent(keep[0], sdp, munger.munge(sdp), munger);
+        }
+    }
+
+    @Test
+    public void withoutRtxTheRetransmissionStreamGoes() throws IOException {
+        SdpMunger munger = SdpMunger.defaults();
+        munger.keepRtx = false;
+        for (String name : new String[] {"chrome-offer", "firefox-offer", "safari-offer"}) {
+            String sdp = load(name);
+            String munged = munger.munge(sdp);
+            assertFalse(name, munged.contains("a=ssrc-group:FID"));
+            assertFalse(name, munged.toLowerCase(Locale.ROOT).contains(" rtx/"));
+            assertConsistent(name, sdp, munged, munger);
+        }
+        String chrome = munger.munge(load("chrome-offer"));
+        assertTrue(chrome.contains("a=ssrc:2968440081 cname:"));
+        assertFalse(chrome.contains("a=ssrc:3307217924"));
+    }
+
+    @Test
+    public void mungingIsIdempotent() throws IOException {
+        SdpMunger munger = SdpMunger.defaults();
+        for (String[] keep : DEFAULT_KEEPS) {
+            String once = munger.munge(load(keep[0]));
+            assertEquals(keep[0], once, munger.munge(once));
+        }
+    }
+
+    @Test
+    public void sectionWithNoAllowedCodecIsLeftAlone() throws IOException {
+        SdpMunger munger = SdpMunger.defaults();
+        munger.videoCodecs = new HashSet<>(Arrays.asList("AV2"));
+        String sdp = load("chrome-offer");
+        assertEquals(mLine(sdp, "m=video"), mLine(munger.munge(sdp), "m=video"));
+        assertEquals("m=audio 9 UDP/TLS/RTP/SAVPF 111", mLine(munger.munge(sdp), "m=audio"));
+    }
+
+    /** The invariants any munged description has to keep, whatever was dropped. */
+    private static void assertConsistent(String name, String original, String munged, SdpMunger munger) {
+        assertTrue(name, munged.endsWith("\r\n"));
+        assertEquals(name, line(original, "a=group:BUNDLE"), line(munged, "a=group:BUNDLE"));
+        assertEquals(name, sections(original).keySet(), sections(munged).keySet());
+
+        Set<String> originalLines = new HashSet<>(Arrays.asList(original.split("\r\n")));
+        for (Map.Entry<String, List<String>> section : sections(munged).entrySet()) {
+            String where = name + " mid " + section.getKey();
+            List<String> lines = section.getValue();
+            String[] m = lines.get(0).split(" ");
+            if (!m[2].contains("RTP")) {
+                assertEquals(where, sections(original).get(section.getKey()), lines);
+                continue;
+            }
+            Set<String> payloads = new HashSet<>(Arrays.asList(m).subList(3, m.length));
+            Map<String, String> names = new HashMap<>();
+            Set<String> ssrcs = new HashSet<>();
+            for (String line : lines) {
+                // Nothing is rewritten except the m= line
+                assertTrue(where + ": " + line, line.startsWith("m=") || originalLines.contains(line));
+                for (String prefix : new String[] {"a=rtpmap:", "a=fmtp:", "a=rtcp-fb:"}) {
+                    if (line.startsWith(prefix)) {
+                        String payload = line.substring(prefix.length(), line.indexOf(' '));
+                        assertTrue(where + ": " + line, payload.equals("*") || payloads.contains(payload));
+                    }
+                }
+                if (line.startsWith("a=rtpmap:")) {
+                    String payload = line.substring("a=rtpmap:".length(), line.indexOf(' '));
+                    String codec = line.substring(line.indexOf(' ') + 1, line.indexOf('/')).toUpperCase(Locale.ROOT);
+                    names.put(payload, codec);
+                } else if (line.startsWith("a=ssrc:")) {
+                    ssrcs.add(line.substring("a=ssrc:".length(), line.indexOf(' ')));
+                } else if (line.startsWith("a=extmap:") && munger.headerExtensions != null) {
+                    assertTrue(where + ": " + line, munger.headerExtensions.contains(line.split(" ")[1]));
+                }
+            }
+
+            Set<String> allowed = m[0].equals("m=video") ? munger.videoCodecs : munger.audioCodecs;
+            for (String payload : payloads) {
+                String codec = names.get(payload);
+                assertNotNull(where + ": no rtpmap for " + payload, codec);
+                if (codec.equals("RTX")) {
+                    String apt = fmtp(lines, payload).replaceAll(".*apt=(\\d+).*", "$1");
+                    assertTrue(where + ": rtx " + payload + " for dropped " + apt, payloads.contains(apt));
+                } else {
+                    assertTrue(where + ": " + codec, allowed.contains(codec));
+                }
+                // A kept codec keeps its parameters and feedback exactly as offered
+                for (String line : sections(original).get(section.getKey())) {
+                    if (line.startsWith("a=fmtp:" + payload + " ") || line.startsWith("a=rtcp-fb:" + payload + " ")) {
+                        assertTrue(where + ": lost " + line, lines.contains(line));
+                    }
+                }
+            }
+            for (String line : lines) {
+                if (line.startsWith("a=ssrc-group:FID ")) {
+                    for (String ssrc : line.substring("a=ssrc-group:FID ".length()).split(" ")) {
+                        assertTrue(where + ": " + line, ssrcs.contains(ssrc));
+                    }
+                }
+            }
+        }
+    }
+
+    private static String fmtp(List<String> lines, String payload) {
+        for (String line : lines) {
+            if (line.startsWith("a=fmtp:" + payload + " ")) {
+                return line;
+            }
+        }
+        throw new AssertionError("No fmtp for " + payload);
+    }
+
+    /** The lines of each m= section, keyed by its mid. */
+    private static Map<String, List<String>> sections(String sdp) {
+        Map<String, List<String>> sections = new HashMap<>();
+        List<String> current = null;
+        for (String line : sdp.split("\r\n")) {
+            if (line.startsWith("m=")) {
+                current = new ArrayList<>();
+            }
+            if (current != null) {
+                current.add(line);
+                if (line.startsWith("a=mid:")) {
+                    sections.put(line.substring("a=mid:".length()), current);
+                }
+            }
+        }
+        return sections;
+    }
+
+    private static String mLine(String sdp, String kind) {
+        return line(sdp, kind + " ");
+    }
+
+    private static String line(String sdp, String prefix) {
+        for (String line : sdp.split("\r\n")) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        throw new AssertionError("No " + prefix + " line");
+    }
+
+    private static String load(String name) throws IOException {
+        try (InputStream in = SdpMungerTest.class.getResourceAsStream("/sdp/" + name + ".sdp")) {
+            assertNotNull(name, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString(StandardCharsets.UTF_8.name()).replace("\r\n", "\n").replace("\n", "\r\n");
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.dome.streamer.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Every message type through both wire formats: {@link SignalingCodec#encode} and
+ * {@link SignalingCodec#encodeBinary} must each read back to the same message.
+ * Frames from the server are hand-written JSON, transcoded to CBOR for the binary side.
+ */
+public class SignalingCodecTest {
+    private static final String OFFER_SDP = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+
+    private final SignalingCodec codec = new SignalingCodec();
+
+    @Test
+    public void connected() throws IOException {
+        for (SignalingMessage.Connected decoded : roundTrip(new SignalingMessage.Connected("c1"))) {
+            assertEquals("c1", decoded.clientId);
+        }
+    }
+
+    @Test
+    public void registered() throws IOException {
+        SignalingMessage.Registered fresh = new SignalingMessage.Registered("streamer", "s1", "https://x/e/s1");
+        for (SignalingMessage.Registered decoded : roundTrip(fresh)) {
+            assertEquals("streamer", decoded.role);
+            assertEquals("s1", decoded.streamId);
+            assertEquals("https://x/e/s1", decoded.embedUrl);
+            assertNull(decoded.resumeToken);
+            assertFalse(decoded.resumed);
+            assertTrue(decoded.viewers.isEmpty());
+        }
+
+        SignalingMessage.Registered resumed = new SignalingMessage.Registered("streamer", "s1", null, "tok", true,
+                Arrays.asList("v1", "v2"));
+        for (SignalingMessage.Registered decoded : roundTrip(resumed)) {
+            assertNull(decoded.embedUrl);
+            assertEquals("tok", decoded.resumeToken);
+            assertTrue(decoded.resumed);
+            assertEquals(Arrays.asList("v1", "v2"), decoded.viewers);
+        }
+    }
+
+    @Test
+    public void viewerEvents() throws IOException {
+        for (String type : new String[] {"viewer-joined", "viewer-left"}) {
+            for (SignalingMessage.ViewerEvent decoded : roundTrip(new SignalingMessage.ViewerEvent(type, "v1", "s1"))) {
+                assertEquals(type, decoded.type);
+                assertEquals("viewer-joined".equals(type), decoded.isJoin());
+                assertEquals("v1", decoded.viewerId);
+                assertEquals("s1", decoded.streamId);
+            }
+        }
+    }
+
+    @Test
+    public void relayEvents() throws IOException {
+        for (String type : new String[] {"relay-assigned", "relay-lost"}) {
+            for (SignalingMessage.RelayEvent decoded : roundTrip(new SignalingMessage.RelayEvent(type, "r1"))) {
+                assertEquals(type, decoded.type);
+                assertEquals("relay-assigned".equals(type), decoded.isAssigned());
+                assertEquals("r1", decoded.relayId);
+            }
+        }
+    }
+
+    @Test
+    public void layerRequest() throws IOException {
+        for (SignalingMessage.LayerRequest decoded : roundTrip(new SignalingMessage.LayerRequest("v1", "h"))) {
+            assertEquals("v1", decoded.viewerId);
+            assertEquals("h", decoded.layer);
+        }
+        // A null layer clears the request and is written as an explicit null
+        for (SignalingMessage.LayerRequest decoded : roundTrip(new SignalingMessage.LayerRequest("v1", null))) {
+            assertEquals("v1", decoded.viewerId);
+            assertNull(decoded.layer);
+        }
+    }
+
+    @Test
+    public void serverError() throws IOException {
+        for (SignalingMessage.ServerError decoded : roundTrip(new SignalingMessage.ServerError("Stream not found"))) {
+            assertEquals("Stream not found", decoded.message);
+        }
+        for (SignalingMessage.ServerError decoded : roundTrip(new SignalingMessage.ServerError(null))) {
+            assertEquals("Unknown error", decoded.message);
+        }
+    }
+
+    @Test
+    public void descriptions() throws IOException {
+        for (SignalingMessage.Description decoded : roundTrip(SignalingMessage.Description.offer(OFFER_SDP, "v1"))) {
+            assertEquals("offer", decoded.type);
+            assertEquals("offer", decoded.description.type);
+            assertEquals(OFFER_SDP, decoded.description.sdp);
+            assertEquals("v1", decoded.targetId);
+        }
+        for (SignalingMessage.Description decoded : roundTrip(SignalingMessage.Description.answer(OFFER_SDP, "s1"))) {
+            assertEquals("answer", decoded.type);
+            assertEquals("answer", decoded.description.type);
+            assertEquals(OFFER_SDP, decoded.description.sdp);
+        }
+    }
+
+    @Test
+    public void iceCandidate() throws IOException {
+        SignalingMessage.Candidate candidate = new SignalingMessage.Candidate(
+                "candidate:1 1 udp 2122260223 192.168.1.2 54321 typ host", "0", 0);
+        for (SignalingMessage.IceCandidate decoded : roundTrip(new SignalingMessage.IceCandidate(candidate, "v1"))) {
+            assertCandidate(candidate, decoded.candidate);
+            assertEquals("v1", decoded.targetId);
+        }
+        SignalingMessage.Candidate noMid = new SignalingMessage.Candidate("candidate:2 1 udp 1 10.0.0.1 1 typ host",
+                null, 1);
+        for (SignalingMessage.IceCandidate decoded : roundTrip(new SignalingMessage.IceCandidate(noMid))) {
+            assertCandidate(noMid, decoded.candidate);
+            assertNull(decoded.targetId);
+        }
+    }
+
+    @Test
+    public void iceCandidates() throws IOException {
+        List<SignalingMessage.Candidate> candidates = Arrays.asList(
+                new SignalingMessage.Candidate("candidate:1 1 udp 2122260223 192.168.1.2 54321 typ host", "0", 0),
+                new SignalingMessage.Candidate("candidate:2 1 udp 1686052607 203.0.113.7 40000 typ srflx", "0", 0),
+                new SignalingMessage.Candidate("candidate:3 1 udp 41885439 198.51.100.3 3478 typ relay", "1", 1));
+        for (SignalingMessage.IceCandidates decoded : roundTrip(new SignalingMessage.IceCandidates(candidates, "v1"))) {
+            assertEquals(candidates.size(), decoded.candidates.size());
+            for (int i = 0; i < candidates.size(); i++) {
+                assertCandidate(candidates.get(i), decoded.candidates.get(i));
+            }
+        }
+        for (SignalingMessage.IceCandidates decoded
+                : roundTrip(new SignalingMessage.IceCandidates(Collections.emptyList()))) {
+            assertTrue(decoded.candidates.isEmpty());
+        }
+    }
+
+    @Test
+    public void registerStreamer() throws IOException {
+        for (SignalingMessage.RegisterStreamer decoded
+                : roundTrip(new SignalingMessage.RegisterStreamer("s1", "relay", "tok"))) {
+            assertEquals("s1", decoded.streamId);
+            assertEquals("relay", decoded.mode);
+            assertEquals("tok", decoded.resumeToken);
+        }
+        for (SignalingMessage.RegisterStreamer decoded
+                : roundTrip(new SignalingMessage.RegisterStreamer(null, "direct"))) {
+            assertNull(decoded.streamId);
+            assertEquals("direct", decoded.mode);
+            assertNull(decoded.resumeToken);
+        }
+    }
+
+    @Test
+    public void pingAndPong() throws IOException {
+        // Large enough to need a 64-bit CBOR integer
+        long sentAt = 1_760_000_000_123L;
+        for (SignalingMessage.Ping decoded : roundTrip(SignalingMessage.Ping.ping(sentAt))) {
+            assertFalse(decoded.isPong());
+            assertEquals(sentAt, decoded.sentAt);
+        }
+        for (SignalingMessage.Ping decoded : roundTrip(new SignalingMessage.Ping("pong", -1))) {
+            assertTrue(decoded.isPong());
+            assertEquals(-1, decoded.sentAt);
+        }
+    }
+
+    @Test
+    public void bare() throws IOException {
+        for (String type : new String[] {"stop-stream", "stream-ended", "something-new"}) {
+            SignalingMessage.Bare message = new SignalingMessage.Bare(type);
+            message.senderId = "s1";
+            for (SignalingMessage.Bare decoded : roundTrip(message)) {
+                assertEquals(type, decoded.type);
+                assertEquals("s1", decoded.senderId);
+            }
+        }
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        String json = "{\"future\":{\"nested\":[1,2.5,{\"x\":null}],\"flag\":true},"
+                + "\"type\":\"viewer-joined\",\"extra\":[\"a\",[]],"
+                + "\"viewerId\":\"v1\",\"streamId\":\"s1\",\"n\":-42,\"senderId\":\"srv\"}";
+        for (SignalingMessage.ViewerEvent decoded : decodeBoth(json, SignalingMessage.ViewerEvent.class)) {
+            assertTrue(decoded.isJoin());
+            assertEquals("v1", decoded.viewerId);
+            assertEquals("s1", decoded.streamId);
+            assertEquals("srv", decoded.senderId);
+        }
+
+        String candidate = "{\"type\":\"ice-candidate\",\"candidate\":{\"candidate\":\"candidate:1 1 udp 1 h 1 typ host\","
+                + "\"usernameFragment\":\"abcd\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}";
+        for (SignalingMessage.IceCandidate decoded : decodeBoth(candidate, SignalingMessage.IceCandidate.class)) {
+            assertEquals("candidate:1 1 udp 1 h 1 typ host", decoded.candidate.candidate);
+            assertEquals("0", decoded.candidate.sdpMid);
+        }
+    }
+
+    @Test
+    public void nullValuesReadAsAbsent() throws IOException {
+        String registered = "{\"type\":\"registered\",\"role\":\"streamer\",\"streamId\":null,\"embedUrl\":null,"
+                + "\"resumeToken\":null,\"resumed\":null,\"viewers\":null,\"senderId\":null,\"targetId\":null}";
+        for (SignalingMessage.Registered decoded : decodeBoth(registered, SignalingMessage.Registered.class)) {
+            assertEquals("streamer", decoded.role);
+            assertNull(decoded.streamId);
+            assertNull(decoded.embedUrl);
+            assertNull(decoded.resumeToken);
+            assertFalse(decoded.resumed);
+            assertTrue(decoded.viewers.isEmpty());
+            assertNull(decoded.senderId);
+            assertNull(decoded.targetId);
+        }
+
+        String candidate = "{\"type\":\"ice-candidate\",\"candidate\":{\"candidate\":\"candidate:1\","
+                + "\"sdpMid\":null,\"sdpMLineIndex\":null}}";
+        for (SignalingMessage.IceCandidate decoded : decodeBoth(candidate, SignalingMessage.IceCandidate.class)) {
+            assertNull(decoded.candidate.sdpMid);
+            assertEquals(0, decoded.candidate.sdpMLineIndex);
+        }
+
+        String ping = "{\"type\":\"pong\",\"t\":null}";
+        for (SignalingMessage.Ping decoded : decodeBoth(ping, SignalingMessage.Ping.class)) {
+            assertEquals(0, decoded.sentAt);
+        }
+    }
+
+    @Test
+    public void rawJsonIsTranscodedToCbor() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CborWriter(out).jsonValue("{\"a\":[1,-2,2.5,\"x\",null,true],\"b\":{}}");
+        CborReader in = new CborReader(out.toByteArray());
+        in.beginObject();
+        assertEquals("a", in.nextName());
+        in.beginArray();
+        assertEquals(1, in.nextLong());
+        assertEquals(-2, in.nextLong());
+        assertEquals(2.5, in.nextDouble(), 0);
+        assertEquals("x", in.nextString());
+        in.nextNull();
+        assertTrue(in.nextBoolean());
+        in.endArray();
+        assertEquals("b", in.nextName());
+        in.beginObject();
+        in.endObject();
+        in.endObject();
+
+        assertThrows(() -> new CborWriter(new ByteArrayOutputStream()).jsonValue("{\"a\":"));
+        assertThrows(() -> new CborWriter(new ByteArrayOutputStream()).jsonValue("1 2"));
+    }
+
+    @Test
+    public void missingPayloadFails() {
+        for (String json : new String[] {
+                "{\"senderId\":\"v1\"}",
+                "{\"type\":\"offer\",\"offer\":null}",
+                "{\"type\":\"ice-candidate\",\"candidate\":{\"sdpMid\":\"0\"}}",
+                "{\"type\":\"ice-candidates\"}"}) {
+            assertThrows(() -> codec.decode(json));
+            assertThrows(() -> codec.decode(cbor(json)));
+        }
+    }
+
+    /** Encodes as JSON and as CBOR and returns both decodings, checking the routing fields on the way. */
+    @SuppressWarnings("unchecked")
+    private <T extends SignalingMessage> List<T> roundTrip(T message) throws IOException {
+        List<T> decoded = new ArrayList<>();
+        decoded.add((T) codec.decode(codec.encode(message)));
+        decoded.add((T) codec.decode(codec.encodeBinary(message)));
+        for (T each : decoded) {
+            assertEquals(message.getClass(), each.getClass());
+            assertEquals(message.type, each.type);
+            assertEquals(message.senderId, each.senderId);
+            assertEquals(message.targetId, each.targetId);
+        }
+        return decoded;
+    }
+
+    private <T extends SignalingMessage> List<T> decodeBoth(String json, Class<T> type) throws IOException {
+        return Arrays.asList(type.cast(codec.decode(json)), type.cast(codec.decode(cbor(json))));
+    }
+
+    private static void assertCandidate(SignalingMessage.Candidate expected, SignalingMessage.Candidate actual) {
+        assertEquals(expected.candidate, actual.candidate);
+        assertEquals(expected.sdpMid, actual.sdpMid);
+        assertEquals(expected.sdpMLineIndex, actual.sdpMLineIndex);
+    }
+
+    private interface Decode {
+        void run() throws IOException;
+    }
+
+    private static void assertThrows(Decode decode) {
+        try {
+            decode.run();
+        } catch (IOException expected) {
+            return;
+        }
+        throw new AssertionError("Expected an IOException");
+    }
+
+    /** The same value as a CBOR item, as a server speaking {@link SignalingCodec#CBOR_PROTOCOL} would send it. */
+    private static byte[] cbor(String json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CborWriter(out).jsonValue(json);
+        return out.toByteArray();
+    }
+}
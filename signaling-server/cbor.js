@@ -0,0 +1,177 @@
+// Minimal CBOR (RFC 8949) for signaling frames: maps, arrays, text, numbers,
+// booleans and null, which is everything a JSON message can hold. Decoding also
+// takes indefinite-length maps and arrays (the Android client writes those),
+// byte strings, half/single floats and tags (skipped).
+
+function encode(value) {
+  const chunks = [];
+  write(value, chunks);
+  return Buffer.concat(chunks);
+}
+
+function head(major, argument, chunks) {
+  if (argument < 24) {
+    chunks.push(Buffer.from([(major << 5) | argument]));
+  } else if (argument < 0x100) {
+    chunks.push(Buffer.from([(major << 5) | 24, argument]));
+  } else if (argument < 0x10000) {
+    const b = Buffer.alloc(3);
+    b[0] = (major << 5) | 25;
+    b.writeUInt16BE(argument, 1);
+    chunks.push(b);
+  } else if (argument < 0x100000000) {
+    const b = Buffer.alloc(5);
+    b[0] = (major << 5) | 26;
+    b.writeUInt32BE(argument, 1);
+    chunks.push(b);
+  } else {
+    const b = Buffer.alloc(9);
+    b[0] = (major << 5) | 27;
+    b.writeBigUInt64BE(BigInt(argument), 1);
+    chunks.push(b);
+  }
+}
+
+function write(value, chunks) {
+  if (value === null || value === undefined) {
+    chunks.push(Buffer.from([0xf6]));
+  } else if (value === true || value === false) {
+    chunks.push(Buffer.from([value ? 0xf5 : 0xf4]));
+  } else if (typeof value === 'number') {
+    if (Number.isSafeInteger(value)) {
+      if (value >= 0) head(0, value, chunks);
+      else head(1, -1 - value, chunks);
+    } else {
+      const b = Buffer.alloc(9);
+      b[0] = 0xfb;
+      b.writeDoubleBE(value, 1);
+      chunks.push(b);
+    }
+  } else if (typeof value === 'string') {
+    const text = Buffer.from(value, 'utf8');
+    head(3, text.length, chunks);
+    chunks.push(text);
+  } else if (Array.isArray(value)) {
+    head(4, value.length, chunks);
+    value.forEach((item) => write(item, chunks));
+  } else if (typeof value === 'object') {
+    // As JSON.stringify: undefined members are left out
+    const keys = Object.keys(value).filter((key) => value[key] !== undefined);
+    head(5, keys.length, chunks);
+    keys.forEach((key) => {
+      write(key, chunks);
+      write(value[key], chunks);
+    });
+  } else {
+    throw new TypeError(`Cannot encode ${typeof value} as CBOR`);
+  }
+}
+
+function decode(buffer) {
+  const reader = { buffer, pos: 0 };
+  const value = read(reader, 0);
+  if (value === BREAK || reader.pos !== buffer.length) {
+    throw new Error('Malformed CBOR frame');
+  }
+  return value;
+}
+
+const BREAK = Symbol('break');
+const MAX_DEPTH = 32;
+
+function need(reader, bytes) {
+  if (reader.pos + bytes > reader.buffer.length) {
+    throw new Error('Truncated CBOR frame');
+  }
+}
+
+function readArgument(reader, info) {
+  if (info < 24) return info;
+  const { buffer } = reader;
+  let value;
+  switch (info) {
+    case 24: need(reader, 1); value = buffer[reader.pos]; reader.pos += 1; return value;
+    case 25: need(reader, 2); value = buffer.readUInt16BE(reader.pos); reader.pos += 2; return value;
+    case 26: need(reader, 4); value = buffer.readUInt32BE(reader.pos); reader.pos += 4; return value;
+    case 27: need(reader, 8); value = Number(buffer.readBigUInt64BE(reader.pos)); reader.pos += 8; return value;
+    case 31: return -1; // indefinite length
+    default: throw new Error(`Unsupported CBOR argument ${info}`);
+  }
+}
+
+function read(reader, depth) {
+  if (depth > MAX_DEPTH) throw new Error('CBOR nested too deeply');
+  need(reader, 1);
+  const initial = reader.buffer[reader.pos++];
+  if (initial === 0xff) return BREAK;
+  const major = initial >> 5;
+  const info = initial & 0x1f;
+
+  if (major === 7) {
+    switch (info) {
+      case 20: return false;
+      case 21: return true;
+      case 22: case 23: return null;
+      case 25: {
+        need(reader, 2);
+        const half = reader.buffer.readUInt16BE(reader.pos);
+        reader.pos += 2;
+        const exponent = (half >> 10) & 0x1f;
+        const mantissa = half & 0x3ff;
+        let value;
+        if (exponent === 0) value = mantissa * 2 ** -24;
+        else if (exponent === 31) value = mantissa === 0 ? Infinity : NaN;
+        else value = (mantissa + 1024) * 2 ** (exponent - 25);
+        return half & 0x8000 ? -value : value;
+      }
+      case 26: need(reader, 4); reader.pos += 4; return reader.buffer.readFloatBE(reader.pos - 4);
+      case 27: need(reader, 8); reader.pos += 8; return reader.buffer.readDoubleBE(reader.pos - 8);
+      default: throw new Error(`Unsupported CBOR simple value ${info}`);
+    }
+  }
+
+  const length = readArgument(reader, info);
+  if (length < 0 && (major < 2 || major === 6)) throw new Error('Malformed CBOR frame');
+  switch (major) {
+    case 0: return length;
+    case 1: return -1 - length;
+    case 2:
+    case 3: {
+      if (length < 0) throw new Error('Indefinite-length CBOR strings are not supported');
+      need(reader, length);
+      const text = reader.buffer.toString('utf8', reader.pos, reader.pos + length);
+      reader.pos += length;
+      return text;
+    }
+    case 4: {
+      const items = [];
+      for (let i = 0; length < 0 || i < length; i++) {
+        const item = read(reader, depth + 1);
+        if (item === BREAK) {
+          if (length < 0) break;
+          throw new Error('Unexpected CBOR break');
+        }
+        items.push(item);
+      }
+      return items;
+    }
+    case 5: {
+      const object = {};
+      for (let i = 0; length < 0 || i < length; i++) {
+        const key = read(reader, depth + 1);
+        if (key === BREAK) {
+          if (length < 0) break;
+          throw new Error('Unexpected CBOR break');
+        }
+        const value = read(reader, depth + 1);
+        if (value === BREAK) throw new Error('Unexpected CBOR break');
+        if (key !== '__proto__') object[String(key)] = value;
+      }
+      return object;
+    }
+    default: // 6: tag, whose item we take as is
+      return read(reader, depth);
+  }
+}
+
+module.exports = { encode, decode };
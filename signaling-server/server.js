@@ -3,10 +3,26 @@ const http = require('http');
 const WebSocket = require('ws');
 const cors = require('cors');
 const { v4: uuidv4 } = require('uuid');
+const cbor = require('./cbor');
+
+// WebSocket subprotocols naming the frame format. Clients that ask for none (browsers)
+// get JSON text; the Android client can offer CBOR binary frames, version 1.
+const JSON_PROTOCOL = 'dome.json';
+const CBOR_PROTOCOL = 'dome.cbor.1';
 
 const app = express();
 const server = http.createServer(app);
-const wss = new WebSocket.Server({ server });
+const wss = new WebSocket.Server({
+  server,
+  handleProtocols: (protocols) => {
+    if (protocols.has(CBOR_PROTOCOL)) return CBOR_PROTOCOL;
+    if (protocols.has(JSON_PROTOCOL)) return JSON_PROTOCOL;
+    return false;
+  },
+  // Offers and answers are several KB of highly repetitive SDP; small frames
+  // aren't worth the CPU
+  perMessageDeflate: { threshold: 1024 }
+});
 
 app.use(cors());
 app.use(express.json());
@@ -14,6 +30,19 @@ app.use(express.json());
 // Store active connections
 const clients = new Map();
 const streams = new Map();
+// Relay peers (SFUs) that take one upstream from a camera and serve its viewers
+const relays = new Map();
+
+// Fleet telemetry: field order of 'stream-stats' v1 rows, and samples kept per stream
+const TELEMETRY_FIELDS = ['ms', 'kbps', 'fps', 'viewers', 'cpu', 'tier', 'reconnects'];
+const TELEMETRY_HISTORY = 120;
+
+// A streamer whose connection drops keeps its stream this long, so it can reconnect
+// and resume it; its viewers' PeerConnections don't need us in the meantime.
+const STREAM_RESUME_GRACE_MS = parseInt(process.env.STREAM_RESUME_GRACE_MS, 10) || 30000;
+// Client ids of resumed streamers' earlier connections, mapped to the current one, so
+// viewers that still address the old id reach the streamer.
+const clientAliases = new Map();
 
 // REST API endpoints
 app.get('/', (req, res) => {
@@ -31,7 +60,8 @@ app.get('/api/health', (req, res) => {
   res.json({
     status: 'ok',
     activeClients: clients.size,
-    activeStreams: streams.size
+    activeStreams: streams.size,
+    activeRelays: relays.size
   });
 });
 
@@ -40,11 +70,22 @@ app.get('/api/streams', (req, res) => {
     id: stream.id,
     streamerId: stream.streamerId,
     createdAt: stream.createdAt,
-    viewerCount: stream.viewers.size
+    mode: stream.relayId ? 'relay' : 'direct',
+    viewerCount: stream.viewers.size,
+    state: stream.graceTimer ? 'reconnecting' : 'live',
+    health: stream.telemetry[stream.telemetry.length - 1] || null
   }));
   res.json({ streams: streamList });
 });
 
+app.get('/api/streams/:streamId/stats', (req, res) => {
+  const stream = streams.get(req.params.streamId);
+  if (!stream) {
+    return res.status(404).json({ error: 'Stream not found' });
+  }
+  res.json({ streamId: stream.id, samples: stream.telemetry });
+});
+
 // WebSocket connection handler
 wss.on('connection', (ws) => {
   const clientId = uuidv4();
@@ -53,17 +94,18 @@ wss.on('connection', (ws) => {
   clients.set(clientId, {
     id: clientId,
     ws: ws,
-    type: null, // 'streamer' or 'viewer'
+    type: null, // 'streamer', 'viewer' or 'relay'
     streamId: null
   });
 
-  ws.on('message', (message) => {
+  ws.on('message', (message, isBinary) => {
     try {
-      const data = JSON.parse(message);
+      // A CBOR client may still send some frames (telemetry) as JSON text
+      const data = isBinary ? cbor.decode(message) : JSON.parse(message);
       handleMessage(clientId, data);
     } catch (error) {
       console.error('Error parsing message:', error);
-      ws.send(JSON.stringify({ type: 'error', message: 'Invalid message format' }));
+      send(ws, { type: 'error', message: 'Invalid message format' });
     }
   });
 
@@ -76,17 +118,26 @@ wss.on('connection', (ws) => {
   });
 
   // Send welcome message with client ID
-  ws.send(JSON.stringify({
+  send(ws, {
     type: 'connected',
     clientId: clientId
-  }));
+  });
 });
 
+// Sends in the frame format the connection negotiated
+function send(ws, message) {
+  if (ws.protocol === CBOR_PROTOCOL) {
+    ws.send(cbor.encode(message), { binary: true });
+  } else {
+    ws.send(JSON.stringify(message));
+  }
+}
+
 function handleMessage(clientId, data) {
   const client = clients.get(clientId);
   if (!client) return;
 
-  console.log(`Message from ${clientId}:`, data.type);
+  if (data.type !== 'ping') console.log(`Message from ${clientId}:`, data.type);
 
   switch (data.type) {
     case 'register-streamer':
@@ -97,6 +148,10 @@ function handleMessage(clientId, data) {
       handleRegisterViewer(clientId, data);
       break;
 
+    case 'register-relay':
+      handleRegisterRelay(clientId);
+      break;
+
     case 'offer':
       handleOffer(clientId, data);
       break;
@@ -109,6 +164,23 @@ function handleMessage(clientId, data) {
       handleIceCandidate(clientId, data);
       break;
 
+    case 'ice-candidates':
+      handleIceCandidates(clientId, data);
+      break;
+
+    case 'layer-request':
+      handleLayerRequest(clientId, data);
+      break;
+
+    case 'stream-stats':
+      handleStreamStats(clientId, data);
+      break;
+
+    case 'ping':
+      // Keepalive: echo the sender's timestamp so it can time the round trip
+      send(client.ws, { type: 'pong', t: data.t });
+      break;
+
     case 'stop-stream':
       handleStopStream(clientId);
       break;
@@ -122,34 +194,197 @@ function handleRegisterStreamer(clientId, data) {
   const client = clients.get(clientId);
   const streamId = data.streamId || uuidv4();
 
-  // Check if streamId is already in use by another ACTIVE streamer
-  if (streams.has(streamId)) {
+  const existing = streams.get(streamId);
+  if (existing && data.resumeToken && data.resumeToken === existing.resumeToken) {
+    resumeStream(clientId, existing);
+    return;
+  }
+
+  // Without its token the id stays taken, also while the stream waits out its grace
+  // period for a reconnect: a restarted app presents the token it saved.
+  if (existing) {
     console.log(`Registration failed: Stream ID '${streamId}' is already in use.`);
-    client.ws.send(JSON.stringify({
+    send(client.ws, {
       type: 'error',
       message: `Stream ID '${streamId}' is already in use. Please choose another name.`
-    }));
+    });
     return;
   }
 
   client.type = 'streamer';
   client.streamId = streamId;
 
-  streams.set(streamId, {
+  const stream = {
     id: streamId,
     streamerId: clientId,
+    relayId: null,
     createdAt: new Date().toISOString(),
-    viewers: new Set()
-  });
+    viewers: new Set(),
+    telemetry: [],
+    resumeToken: uuidv4(),
+    previousStreamerIds: [],
+    graceTimer: null
+  };
+  streams.set(streamId, stream);
 
   console.log(`Streamer registered: ${clientId}, stream: ${streamId}`);
 
-  client.ws.send(JSON.stringify({
+  send(client.ws, {
     type: 'registered',
     role: 'streamer',
     streamId: streamId,
-    embedUrl: `${getBaseUrl()}?streamId=${streamId}`
-  }));
+    embedUrl: `${getBaseUrl()}?streamId=${streamId}`,
+    resumeToken: stream.resumeToken
+  });
+
+  if (data.mode === 'relay') {
+    assignRelay(stream);
+  }
+}
+
+// A reconnecting streamer takes its stream back. The old connection may still look
+// open if it died without a close (half-open on a mobile network); it is dropped.
+// The streamer gets the current viewer list to reconcile against: viewers that
+// joined or left while it was away were not announced to it.
+function resumeStream(clientId, stream) {
+  const client = clients.get(clientId);
+  const previousId = stream.streamerId;
+
+  if (stream.graceTimer) {
+    clearTimeout(stream.graceTimer);
+    stream.graceTimer = null;
+  }
+  const previous = clients.get(previousId);
+  if (previous && previousId !== clientId) {
+    previous.type = null; // so its disconnect does not end the stream
+    previous.ws.terminate();
+  }
+
+  stream.previousStreamerIds.push(previousId);
+  stream.previousStreamerIds.forEach(id => clientAliases.set(id, clientId));
+  stream.streamerId = clientId;
+  client.type = 'streamer';
+  client.streamId = stream.id;
+
+  console.log(`Streamer resumed: ${clientId} (was ${previousId}), stream: ${stream.id}`);
+
+  send(client.ws, {
+    type: 'registered',
+    role: 'streamer',
+    streamId: stream.id,
+    embedUrl: `${getBaseUrl()}?streamId=${stream.id}`,
+    resumeToken: stream.resumeToken,
+    resumed: true,
+    viewers: stream.relayId ? [] : Array.from(stream.viewers)
+  });
+}
+
+function resolveClient(id) {
+  return clients.get(clientAliases.get(id) || id);
+}
+
+// The id a client's peers know it by. A streamer keeps the id it first registered
+// with across resumes (resolveClient maps that id to its current connection), so
+// viewers see one sender for the whole stream and answer a re-offer on the
+// connection they already have.
+function publicId(clientId) {
+  const client = clients.get(clientId);
+  const stream = client && client.type === 'streamer' ? streams.get(client.streamId) : null;
+  return stream && stream.previousStreamerIds.length ? stream.previousStreamerIds[0] : clientId;
+}
+
+/*
+ * Relay publish mode
+ *
+ * A relay is any WebRTC peer (typically an SFU) that connects here and sends
+ * 'register-relay'. For a stream registered with mode 'relay':
+ *   1. the relay receives 'relay-publish' { streamId, streamerId }
+ *   2. the streamer receives 'relay-assigned' { relayId } and sends its single
+ *      offer to relayId; answer and candidates flow through the usual messages
+ *   3. 'viewer-joined' / 'viewer-left' { viewerId, streamId } go to the relay,
+ *      which negotiates with viewers itself using the same offer flow
+ * If no relay is available, or the relay disconnects, the stream falls back to
+ * direct mode and the streamer is told about every viewer again.
+ */
+function handleRegisterRelay(clientId) {
+  const client = clients.get(clientId);
+  client.type = 'relay';
+  relays.set(clientId, { id: clientId, streams: new Set() });
+
+  console.log(`Relay registered: ${clientId}`);
+
+  send(client.ws, {
+    type: 'registered',
+    role: 'relay'
+  });
+}
+
+function assignRelay(stream) {
+  let relay = null;
+  relays.forEach(candidate => {
+    const relayClient = clients.get(candidate.id);
+    if (!relayClient || relayClient.ws.readyState !== WebSocket.OPEN) return;
+    if (!relay || candidate.streams.size < relay.streams.size) {
+      relay = candidate;
+    }
+  });
+
+  const streamer = clients.get(stream.streamerId);
+  if (!relay) {
+    console.log(`No relay available for stream ${stream.id}, staying in direct mode`);
+    return;
+  }
+
+  relay.streams.add(stream.id);
+  stream.relayId = relay.id;
+  console.log(`Stream ${stream.id} assigned to relay ${relay.id}`);
+
+  send(clients.get(relay.id).ws, {
+    type: 'relay-publish',
+    streamId: stream.id,
+    streamerId: stream.streamerId
+  });
+
+  if (streamer && streamer.ws.readyState === WebSocket.OPEN) {
+    send(streamer.ws, {
+      type: 'relay-assigned',
+      relayId: relay.id
+    });
+  }
+}
+
+function releaseRelay(relayId) {
+  const relay = relays.get(relayId);
+  if (!relay) return;
+
+  relay.streams.forEach(streamId => {
+    const stream = streams.get(streamId);
+    if (!stream || stream.relayId !== relayId) return;
+
+    stream.relayId = null;
+    console.log(`Relay ${relayId} lost, stream ${streamId} falls back to direct mode`);
+
+    const streamer = clients.get(stream.streamerId);
+    if (streamer && streamer.ws.readyState === WebSocket.OPEN) {
+      send(streamer.ws, { type: 'relay-lost', relayId: relayId });
+      stream.viewers.forEach(viewerId => {
+        send(streamer.ws, { type: 'viewer-joined', viewerId: viewerId });
+      });
+    }
+  });
+
+  relays.delete(relayId);
+}
+
+// Viewer arrivals and departures go to whoever serves the stream's media
+function getMediaSource(stream) {
+  if (stream.relayId) {
+    const relay = clients.get(stream.relayId);
+    if (relay && relay.ws.readyState === WebSocket.OPEN) {
+      return relay;
+    }
+  }
+  return clients.get(stream.streamerId);
 }
 
 function handleRegisterViewer(clientId, data) {
@@ -157,10 +392,10 @@ function handleRegisterViewer(clientId, data) {
   const streamId = data.streamId;
 
   if (!streamId || !streams.has(streamId)) {
-    client.ws.send(JSON.stringify({
+    send(client.ws, {
       type: 'error',
       message: 'Stream not found'
-    }));
+    });
     return;
   }
 
@@ -172,58 +407,119 @@ function handleRegisterViewer(clientId, data) {
 
   console.log(`Viewer registered: ${clientId}, stream: ${streamId}`);
 
-  client.ws.send(JSON.stringify({
+  send(client.ws, {
     type: 'registered',
     role: 'viewer',
     streamId: streamId
-  }));
+  });
 
-  // Notify streamer about new viewer
-  const streamer = clients.get(stream.streamerId);
-  if (streamer && streamer.ws.readyState === WebSocket.OPEN) {
-    streamer.ws.send(JSON.stringify({
+  // Notify streamer (or its relay) about new viewer
+  const source = getMediaSource(stream);
+  if (source && source.ws.readyState === WebSocket.OPEN) {
+    send(source.ws, {
       type: 'viewer-joined',
-      viewerId: clientId
-    }));
+      viewerId: clientId,
+      streamId: streamId
+    });
   }
 }
 
 function handleOffer(clientId, data) {
   const targetId = data.targetId;
-  const target = clients.get(targetId);
+  const target = resolveClient(targetId);
 
   if (target && target.ws.readyState === WebSocket.OPEN) {
-    target.ws.send(JSON.stringify({
+    send(target.ws, {
       type: 'offer',
       offer: data.offer,
-      senderId: clientId
-    }));
+      senderId: publicId(clientId)
+    });
   }
 }
 
 function handleAnswer(clientId, data) {
   const targetId = data.targetId;
-  const target = clients.get(targetId);
+  const target = resolveClient(targetId);
 
   if (target && target.ws.readyState === WebSocket.OPEN) {
-    target.ws.send(JSON.stringify({
+    send(target.ws, {
       type: 'answer',
       answer: data.answer,
-      senderId: clientId
-    }));
+      senderId: publicId(clientId)
+    });
   }
 }
 
 function handleIceCandidate(clientId, data) {
   const targetId = data.targetId;
-  const target = clients.get(targetId);
+  const target = resolveClient(targetId);
 
   if (target && target.ws.readyState === WebSocket.OPEN) {
-    target.ws.send(JSON.stringify({
+    send(target.ws, {
       type: 'ice-candidate',
       candidate: data.candidate,
-      senderId: clientId
-    }));
+      senderId: publicId(clientId)
+    });
+  }
+}
+
+// A batch of candidates gathered within a short window, relayed as one frame.
+function handleIceCandidates(clientId, data) {
+  const target = resolveClient(data.targetId);
+
+  if (Array.isArray(data.candidates) && target && target.ws.readyState === WebSocket.OPEN) {
+    send(target.ws, {
+      type: 'ice-candidates',
+      candidates: data.candidates,
+      senderId: publicId(clientId)
+    });
+  }
+}
+
+// Which simulcast layer ('f', 'h', 'q') a viewer can take; layer null clears it.
+// Relays send this on behalf of their viewers, direct viewers for themselves.
+function handleLayerRequest(clientId, data) {
+  const client = clients.get(clientId);
+  const target = resolveClient(data.targetId);
+
+  if (target && target.ws.readyState === WebSocket.OPEN) {
+    send(target.ws, {
+      type: 'layer-request',
+      viewerId: client.type === 'relay' ? data.viewerId : clientId,
+      layer: data.layer || null,
+      senderId: publicId(clientId)
+    });
+  }
+}
+
+// Batched health reports from a streamer. Rows are integers in TELEMETRY_FIELDS
+// order; the first row of a batch is absolute, every later one a delta to the
+// row before it.
+function handleStreamStats(clientId, data) {
+  const client = clients.get(clientId);
+  const stream = client.type === 'streamer' ? streams.get(client.streamId) : null;
+  if (!stream || !Array.isArray(data.s)) return;
+  if (data.v !== 1) {
+    console.log(`Ignoring stream-stats version ${data.v} from ${clientId}`);
+    return;
+  }
+
+  let previous = null;
+  for (const row of data.s) {
+    if (!Array.isArray(row) || row.length !== TELEMETRY_FIELDS.length
+        || !row.every(Number.isFinite)) {
+      console.log(`Malformed stream-stats row from ${clientId}`);
+      return;
+    }
+    const values = previous ? row.map((delta, i) => previous[i] + delta) : row;
+    const sample = {};
+    TELEMETRY_FIELDS.forEach((field, i) => { sample[field] = values[i]; });
+    stream.telemetry.push(sample);
+    previous = values;
+  }
+
+  if (stream.telemetry.length > TELEMETRY_HISTORY) {
+    stream.telemetry.splice(0, stream.telemetry.length - TELEMETRY_HISTORY);
   }
 }
 
@@ -232,20 +528,38 @@ function handleStopStream(clientId) {
   if (!client || !client.streamId) return;
 
   const stream = streams.get(client.streamId);
-  if (!stream) return;
+  client.streamId = null;
+  if (stream) stopStream(stream);
+}
 
+// Tells the stream's viewers (and relay) it is over, and forgets it
+function stopStream(stream) {
   // Notify all viewers
   stream.viewers.forEach(viewerId => {
     const viewer = clients.get(viewerId);
     if (viewer && viewer.ws.readyState === WebSocket.OPEN) {
-      viewer.ws.send(JSON.stringify({
+      send(viewer.ws, {
         type: 'stream-ended'
-      }));
+      });
     }
   });
 
-  streams.delete(client.streamId);
-  console.log(`Stream ended: ${client.streamId}`);
+  if (stream.relayId) {
+    const relay = relays.get(stream.relayId);
+    if (relay) relay.streams.delete(stream.id);
+    const relayClient = clients.get(stream.relayId);
+    if (relayClient && relayClient.ws.readyState === WebSocket.OPEN) {
+      send(relayClient.ws, { type: 'stream-ended', streamId: stream.id });
+    }
+  }
+
+  if (stream.graceTimer) {
+    clearTimeout(stream.graceTimer);
+    stream.graceTimer = null;
+  }
+  stream.previousStreamerIds.forEach(id => clientAliases.delete(id));
+  streams.delete(stream.id);
+  console.log(`Stream ended: ${stream.id}`);
 }
 
 function handleDisconnect(clientId) {
@@ -255,21 +569,32 @@ function handleDisconnect(clientId) {
   console.log(`Client disconnected: ${clientId}`);
 
   if (client.type === 'streamer' && client.streamId) {
-    handleStopStream(clientId);
+    // Hold the stream for a reconnect; 'stop-stream' is how a streamer ends it for good
+    const stream = streams.get(client.streamId);
+    if (stream && stream.streamerId === clientId) {
+      console.log(`Streamer ${clientId} dropped, holding stream ${stream.id} for ${STREAM_RESUME_GRACE_MS} ms`);
+      stream.graceTimer = setTimeout(() => {
+        stream.graceTimer = null;
+        stopStream(stream);
+      }, STREAM_RESUME_GRACE_MS);
+    }
   } else if (client.type === 'viewer' && client.streamId) {
     const stream = streams.get(client.streamId);
     if (stream) {
       stream.viewers.delete(clientId);
 
-      // Notify streamer
-      const streamer = clients.get(stream.streamerId);
-      if (streamer && streamer.ws.readyState === WebSocket.OPEN) {
-        streamer.ws.send(JSON.stringify({
+      // Notify streamer (or its relay)
+      const source = getMediaSource(stream);
+      if (source && source.ws.readyState === WebSocket.OPEN) {
+        send(source.ws, {
           type: 'viewer-left',
-          viewerId: clientId
-        }));
+          viewerId: clientId,
+          streamId: stream.id
+        });
       }
     }
+  } else if (client.type === 'relay') {
+    releaseRelay(clientId);
   }
 
   clients.delete(clientId);
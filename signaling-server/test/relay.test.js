@@ -0,0 +1,180 @@
+// Relay publish mode end to end: a real server, and plain WebSocket peers standing in
+// for the streamer app, a viewer and a relay (SFU). Run with `npm test`.
+const { test, beforeEach, afterEach } = require('node:test');
+const assert = require('node:assert/strict');
+const { spawn } = require('node:child_process');
+const { once } = require('node:events');
+const net = require('node:net');
+const path = require('node:path');
+const WebSocket = require('ws');
+
+const JSON_PROTOCOL = 'dome.json';
+
+let server;
+let port;
+let peers;
+
+beforeEach(async () => {
+  port = await freePort();
+  server = spawn(process.execPath, [path.join(__dirname, '..', 'server.js')], {
+    env: { ...process.env, PORT: String(port) },
+    stdio: ['ignore', 'pipe', 'inherit']
+  });
+  let output = '';
+  server.stdout.setEncoding('utf8');
+  while (!output.includes('Signaling server running')) {
+    const [chunk] = await once(server.stdout, 'data');
+    output += chunk;
+  }
+  server.stdout.resume();
+  peers = [];
+});
+
+afterEach(async () => {
+  peers.forEach(peer => peer.ws.terminate());
+  server.kill();
+  await once(server, 'exit');
+});
+
+function freePort() {
+  return new Promise((resolve, reject) => {
+    const probe = net.createServer();
+    probe.on('error', reject);
+    probe.listen(0, '127.0.0.1', () => {
+      const { port } = probe.address();
+      probe.close(() => resolve(port));
+    });
+  });
+}
+
+// A signaling connection. Messages wait in an inbox until a test asks for their type,
+// so the order in which different peers are served does not matter.
+async function connect() {
+  const ws = new WebSocket(`ws://127.0.0.1:${port}`, JSON_PROTOCOL);
+  const inbox = [];
+  const waiting = [];
+  ws.on('message', data => {
+    const message = JSON.parse(data);
+    const i = waiting.findIndex(waiter => waiter.type === message.type);
+    if (i >= 0) {
+      waiting.splice(i, 1)[0].resolve(message);
+    } else {
+      inbox.push(message);
+    }
+  });
+  await once(ws, 'open');
+
+  const peer = {
+    ws,
+    send: message => ws.send(JSON.stringify(message)),
+    next(type) {
+      const i = inbox.findIndex(message => message.type === type);
+      if (i >= 0) return Promise.resolve(inbox.splice(i, 1)[0]);
+      return new Promise(resolve => waiting.push({ type, resolve }));
+    },
+    // Everything the server sent this peer so far has arrived once a ping is answered
+    async received(type) {
+      peer.send({ type: 'ping', t: Date.now() });
+      await peer.next('pong');
+      return inbox.filter(message => message.type === type);
+    }
+  };
+  peer.id = (await peer.next('connected')).clientId;
+  peers.push(peer);
+  return peer;
+}
+
+async function relay() {
+  const peer = await connect();
+  peer.send({ type: 'register-relay' });
+  assert.equal((await peer.next('registered')).role, 'relay');
+  return peer;
+}
+
+async function streamer(streamId, mode) {
+  const peer = await connect();
+  peer.send({ type: 'register-streamer', streamId, mode });
+  assert.equal((await peer.next('registered')).streamId, streamId);
+  return peer;
+}
+
+async function viewer(streamId) {
+  const peer = await connect();
+  peer.send({ type: 'register-viewer', streamId });
+  assert.equal((await peer.next('registered')).role, 'viewer');
+  return peer;
+}
+
+// One offer/answer exchange plus a candidate each way, checking what each side sees
+async function negotiate(offerer, answerer, sdp) {
+  offerer.send({ type: 'offer', targetId: answerer.id, offer: { type: 'offer', sdp } });
+  const offer = await answerer.next('offer');
+  assert.equal(offer.senderId, offerer.id);
+  assert.deepEqual(offer.offer, { type: 'offer', sdp });
+
+  answerer.send({ type: 'answer', targetId: offerer.id, answer: { type: 'answer', sdp: `${sdp} answer` } });
+  const answer = await offerer.next('answer');
+  assert.equal(answer.senderId, answerer.id);
+  assert.equal(answer.answer.sdp, `${sdp} answer`);
+
+  const candidate = { candidate: 'candidate:1 1 udp 2122260223 192.168.1.2 54321 typ host', sdpMid: '0', sdpMLineIndex: 0 };
+  offerer.send({ type: 'ice-candidate', targetId: answerer.id, candidate });
+  assert.deepEqual((await answerer.next('ice-candidate')).candidate, candidate);
+  answerer.send({ type: 'ice-candidates', targetId: offerer.id, candidates: [candidate] });
+  assert.deepEqual((await offerer.next('ice-candidates')).candidates, [candidate]);
+}
+
+test('relay mode sends the stream through the relay to its viewers', { timeout: 10000 }, async () => {
+  const sfu = await relay();
+  const camera = await streamer('cam', 'relay');
+
+  assert.equal((await camera.next('relay-assigned')).relayId, sfu.id);
+  const publish = await sfu.next('relay-publish');
+  assert.equal(publish.streamId, 'cam');
+  assert.equal(publish.streamerId, camera.id);
+  await negotiate(camera, sfu, 'upstream');
+
+  const watcher = await viewer('cam');
+  const joined = await sfu.next('viewer-joined');
+  assert.equal(joined.viewerId, watcher.id);
+  assert.equal(joined.streamId, 'cam');
+  await negotiate(sfu, watcher, 'downstream');
+
+  // The relay speaks for its viewers when asking for a layer
+  sfu.send({ type: 'layer-request', targetId: camera.id, viewerId: watcher.id, layer: 'h' });
+  const layer = await camera.next('layer-request');
+  assert.equal(layer.viewerId, watcher.id);
+  assert.equal(layer.layer, 'h');
+
+  assert.deepEqual(await camera.received('viewer-joined'), []);
+
+  watcher.ws.close();
+  assert.equal((await sfu.next('viewer-left')).viewerId, watcher.id);
+  assert.deepEqual(await camera.received('viewer-left'), []);
+});
+
+test('relay mode without a relay falls back to direct P2P', { timeout: 10000 }, async () => {
+  const camera = await streamer('cam', 'relay');
+  const watcher = await viewer('cam');
+
+  assert.equal((await camera.next('viewer-joined')).viewerId, watcher.id);
+  await negotiate(camera, watcher, 'direct');
+  assert.deepEqual(await camera.received('relay-assigned'), []);
+});
+
+test('losing the relay hands its viewers back to the streamer', { timeout: 10000 }, async () => {
+  const sfu = await relay();
+  const camera = await streamer('cam', 'relay');
+  await camera.next('relay-assigned');
+  const watcher = await viewer('cam');
+  await sfu.next('viewer-joined');
+
+  sfu.ws.close();
+  assert.equal((await camera.next('relay-lost')).relayId, sfu.id);
+  assert.equal((await camera.next('viewer-joined')).viewerId, watcher.id);
+  await negotiate(camera, watcher, 'direct');
+
+  const late = await viewer('cam');
+  assert.equal((await camera.next('viewer-joined')).viewerId, late.id);
+  await negotiate(camera, late, 'direct');
+});
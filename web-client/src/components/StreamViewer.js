@@ -3,12 +3,16 @@ import './StreamViewer.css';
 
 // signaling server address can be configured at build/run time via env variable
 const SIGNALING_SERVER = process.env.REACT_APP_SIGNALING_SERVER || 'ws://localhost:3000'; // override via REACT_APP_SIGNALING_SERVER
+// local ICE candidates gathered within this many ms go to the streamer in one message
+const CANDIDATE_BATCH_MS = 50;
 
 const StreamViewer = ({ streamId, isEmbed }) => {
   const videoRef = useRef(null);
   const wsRef = useRef(null);
   const pcRef = useRef(null);
+  const senderRef = useRef(null);
   const isCleanedUpRef = useRef(false);
+  const candidateBatchRef = useRef(null);
   const [status, setStatus] = useState('connecting');
   const [error, setError] = useState(null);
   const [clientId, setClientId] = useState(null);
@@ -63,17 +67,15 @@ const StreamViewer = ({ streamId, isEmbed }) => {
           break;
 
         case 'ice-candidate':
-          if (message.candidate && pcRef.current) {
-            try {
-              // Parse candidate if it's a string
-              const candidateData = typeof message.candidate === 'string'
-                ? JSON.parse(message.candidate)
-                : message.candidate;
-              console.log('Adding ICE candidate:', candidateData);
-              await pcRef.current.addIceCandidate(new RTCIceCandidate(candidateData));
-            } catch (e) {
-              console.error('Failed to add ICE candidate:', e, message.candidate);
-            }
+          if (message.candidate) {
+            await addRemoteCandidate(message.candidate);
+          }
+          break;
+
+        case 'ice-candidates':
+          // in gathering order; each waits for the one before it
+          for (const candidate of message.candidates || []) {
+            await addRemoteCandidate(candidate);
           }
           break;
 
@@ -104,11 +106,56 @@ const StreamViewer = ({ streamId, isEmbed }) => {
     };
   };
 
+  const addRemoteCandidate = async (candidate) => {
+    if (!pcRef.current) return;
+    try {
+      // Parse candidate if it's a string
+      const candidateData = typeof candidate === 'string' ? JSON.parse(candidate) : candidate;
+      console.log('Adding ICE candidate:', candidateData);
+      await pcRef.current.addIceCandidate(new RTCIceCandidate(candidateData));
+    } catch (e) {
+      console.error('Failed to add ICE candidate:', e, candidate);
+    }
+  };
+
+  // Holds local candidates for CANDIDATE_BATCH_MS so a burst goes out as one message
+  const queueLocalCandidate = (candidate, targetId) => {
+    let batch = candidateBatchRef.current;
+    if (!batch || batch.targetId !== targetId) {
+      flushLocalCandidates();
+      batch = { targetId, candidates: [], timer: setTimeout(flushLocalCandidates, CANDIDATE_BATCH_MS) };
+      candidateBatchRef.current = batch;
+    }
+    batch.candidates.push(candidate);
+  };
+
+  const flushLocalCandidates = () => {
+    const batch = candidateBatchRef.current;
+    candidateBatchRef.current = null;
+    if (!batch) return;
+    clearTimeout(batch.timer);
+    if (!wsRef.current || wsRef.current.readyState !== WebSocket.OPEN || batch.candidates.length === 0) return;
+    wsRef.current.send(JSON.stringify(batch.candidates.length === 1
+      ? { type: 'ice-candidate', candidate: batch.candidates[0], targetId: batch.targetId }
+      : { type: 'ice-candidates', candidates: batch.candidates, targetId: batch.targetId }));
+  };
+
   const handleOffer = async (offer, senderId) => {
     try {
       // Parse offer if it's a string (Android sends it as a JSON string inside the message)
       const offerData = typeof offer === 'string' ? JSON.parse(offer) : offer;
 
+      // A new offer from the same streamer is an ICE restart (e.g. the phone switched
+      // networks): answer it on the existing connection so the video keeps playing
+      if (pcRef.current && senderRef.current === senderId && pcRef.current.signalingState !== 'closed') {
+        await answerOffer(offerData, senderId);
+        return;
+      }
+      if (pcRef.current) {
+        pcRef.current.close();
+      }
+      senderRef.current = senderId;
+
       // Create RTCPeerConnection with TURN servers
       pcRef.current = new RTCPeerConnection({
         iceServers: [
@@ -165,12 +212,11 @@ const StreamViewer = ({ streamId, isEmbed }) => {
 
       // Handle ICE candidates
       pcRef.current.onicecandidate = (event) => {
-        if (event.candidate && wsRef.current) {
-          wsRef.current.send(JSON.stringify({
-            type: 'ice-candidate',
-            candidate: event.candidate,
-            targetId: senderId
-          }));
+        if (event.candidate) {
+          queueLocalCandidate(event.candidate, senderId);
+        } else {
+          // gathering complete: nothing more is coming, send what is held
+          flushLocalCandidates();
         }
       };
 
@@ -185,19 +231,7 @@ const StreamViewer = ({ streamId, isEmbed }) => {
         console.log('ICE connection state:', pcRef.current.iceConnectionState);
       };
 
-      // Set remote description
-      await pcRef.current.setRemoteDescription(new RTCSessionDescription(offerData));
-
-      // Create answer
-      const answer = await pcRef.current.createAnswer();
-      await pcRef.current.setLocalDescription(answer);
-
-      // Send answer
-      wsRef.current.send(JSON.stringify({
-        type: 'answer',
-        answer: answer,
-        targetId: senderId
-      }));
+      await answerOffer(offerData, senderId);
     } catch (error) {
       console.error('Error handling offer:', error);
       setError('Failed to establish connection');
@@ -205,10 +239,31 @@ const StreamViewer = ({ streamId, isEmbed }) => {
     }
   };
 
+  const answerOffer = async (offerData, senderId) => {
+    // Set remote description
+    await pcRef.current.setRemoteDescription(new RTCSessionDescription(offerData));
+
+    // Create answer
+    const answer = await pcRef.current.createAnswer();
+    await pcRef.current.setLocalDescription(answer);
+
+    // Send answer
+    wsRef.current.send(JSON.stringify({
+      type: 'answer',
+      answer: answer,
+      targetId: senderId
+    }));
+  };
+
   const cleanup = () => {
+    if (candidateBatchRef.current) {
+      clearTimeout(candidateBatchRef.current.timer);
+      candidateBatchRef.current = null;
+    }
     if (pcRef.current) {
       pcRef.current.close();
       pcRef.current = null;
+      senderRef.current = null;
     }
     if (wsRef.current) {
       wsRef.current.close();